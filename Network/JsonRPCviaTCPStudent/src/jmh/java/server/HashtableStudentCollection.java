@@ -0,0 +1,95 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The backing store StudentCollectionImpl had before its reads went lock
+ * free, kept for StudentCollectionBenchmark: a Hashtable of students and
+ * indexes that are read under the collection's monitor. Holds only what
+ * is added, it does not use the json file.
+ *
+ * Ser321 Foundations of Distributed Software Systems
+ */
+class HashtableStudentCollection implements StudentCollection {
+
+   private final Hashtable<String,Student> students = new Hashtable<String,Student>();
+   private StudentIdIndex byId = new StudentIdIndex();
+   private final Map<String,Set<Student>> byCourse = new HashMap<String,Set<Student>>();
+
+   private void index(Student stud) {
+      byId.add(stud);
+      for (String course : stud.takes()) {
+         byCourse.computeIfAbsent(course, c -> new LinkedHashSet<Student>()).add(stud);
+      }
+   }
+
+   private void unindex(Student stud) {
+      byId.remove(stud);
+      for (String course : stud.takes()) {
+         Set<Student> takers = byCourse.get(course);
+         if (takers != null) {
+            takers.remove(stud);
+            if (takers.isEmpty()) {
+               byCourse.remove(course);
+            }
+         }
+      }
+   }
+
+   public boolean saveToJsonFile() {
+      return false;
+   }
+
+   public synchronized boolean resetFromJsonFile() {
+      students.clear();
+      byId = new StudentIdIndex();
+      byCourse.clear();
+      return true;
+   }
+
+   public synchronized boolean add(Student aStud) {
+      Student old = students.put(aStud.name, aStud);
+      if (old != null) {
+         unindex(old);
+      }
+      index(aStud);
+      return true;
+   }
+
+   public synchronized boolean remove(String aName) {
+      Student old = students.remove(aName);
+      if (old == null) {
+         return false;
+      }
+      unindex(old);
+      return true;
+   }
+
+   public Student get(String aName) {
+      Student aStud = students.get(aName);
+      return aStud != null ? aStud : new Student("unknown",0,new String[]{"empty"});
+   }
+
+   public synchronized String getNameById(int id) {
+      Student aStud = byId.first(id);
+      return aStud == null ? "unknown" : aStud.name;
+   }
+
+   public String[] getNames() {
+      return students.keySet().toArray(new String[0]);
+   }
+
+   public synchronized Student[] getByCourse(String course) {
+      Set<Student> takers = byCourse.get(course);
+      return takers == null ? new Student[0] : takers.toArray(new Student[0]);
+   }
+
+   public synchronized int countByCourse(String course) {
+      Set<Student> takers = byCourse.get(course);
+      return takers == null ? 0 : takers.size();
+   }
+}
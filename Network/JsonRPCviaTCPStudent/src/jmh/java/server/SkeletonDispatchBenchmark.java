@@ -0,0 +1,124 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of dispatching one call in the skeleton: the if/else chain the
+ * skeleton had before MethodRegistry (legacy) against a registry lookup
+ * and handler (registry), both on an already parsed request, and a whole
+ * request through callMethod, parsing and the response text included.
+ *
+ * getNameById was near the top of the old chain, countByCourse at the
+ * bottom; add decodes a student.
+ *
+ * Run with: gradle jmh
+ *
+ * Ser321 Foundations of Distributed Software Systems
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SkeletonDispatchBenchmark {
+
+   @Param({"getNameById", "countByCourse", "add"})
+   public String method;
+
+   private StudentCollection studLib;
+   private StudentCollectionSkeleton skeleton;
+   private JSONArray params;
+   private String request;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      // in memory only, adds are not written to the log
+      studLib = new StudentCollectionImpl(null);
+      for (int i = 0; i < 100; i++) {
+         studLib.add(new Student("student" + i, i, new String[]{"Ser321", "Ser423"}));
+      }
+      skeleton = new StudentCollectionSkeleton(studLib);
+      params = new JSONArray();
+      if (method.equals("getNameById")) {
+         params.put(42);
+      } else if (method.equals("countByCourse")) {
+         params.put("Ser321");
+      } else {
+         params.put(new Student("student7", 7, new String[]{"Ser321", "Cse240"}).toJson());
+      }
+      JSONObject call = new JSONObject();
+      call.put("jsonrpc", "2.0");
+      call.put("id", 1);
+      call.put("method", method);
+      call.put("params", params);
+      request = call.toString();
+   }
+
+   @Benchmark
+   public Object legacy() throws Exception {
+      return legacyDispatch(studLib, method, params);
+   }
+
+   @Benchmark
+   public Object registry() throws Throwable {
+      return MethodRegistry.get(method).invoke(studLib, params);
+   }
+
+   @Benchmark
+   public String callMethod() {
+      return skeleton.callMethod(request);
+   }
+
+   /**
+    * The dispatch of the skeleton before MethodRegistry, the result as it
+    * was put in the response
+    */
+   static Object legacyDispatch(StudentCollection studLib, String method, JSONArray params)
+         throws Exception {
+      if(method.equals("add")){
+         JSONObject studJson = params.getJSONObject(0);
+         Student studToAdd = new Student(studJson);
+         studLib.add(studToAdd);
+         return true;
+      }else if(method.equals("remove")){
+         String studName = params.getString(0);
+         studLib.remove(studName);
+         return true;
+      }else if(method.equals("getNameById")){
+         int studNum = params.getInt(0);
+         return studLib.getNameById(studNum);
+      }else if(method.equals("get")){
+         String studName = params.getString(0);
+         return studLib.get(studName).toJson();
+      }else if(method.equals("getNames")){
+         String[] names = studLib.getNames();
+         JSONArray resArr = new JSONArray();
+         for (int i=0; i<names.length; i++){
+            resArr.put(names[i]);
+         }
+         return resArr;
+      }else if(method.equals("getByCourse")){
+         String course = params.getString(0);
+         Student[] takers = studLib.getByCourse(course);
+         JSONArray resArr = new JSONArray();
+         for (int i=0; i<takers.length; i++){
+            resArr.put(takers[i].toJson());
+         }
+         return resArr;
+      }else if(method.equals("countByCourse")){
+         String course = params.getString(0);
+         return studLib.countByCourse(course);
+      }
+      return 0.0;
+   }
+}
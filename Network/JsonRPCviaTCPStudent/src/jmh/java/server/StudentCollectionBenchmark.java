@@ -0,0 +1,113 @@
+package server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Contention on the student collection: all threads share one collection
+ * and call it as the server's connections do, about 99% reads. The old
+ * backing store (HashtableStudentCollection, reads under one monitor) is
+ * compared with StudentCollectionImpl (lock free reads).
+ *
+ * gradle jmh runs it with the thread count of the jmh block, main (gradle
+ * contention) runs it for 1, 2, 4, 8, 16, 32 and 64 threads.
+ *
+ * Ser321 Foundations of Distributed Software Systems
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StudentCollectionBenchmark {
+
+   private static final String[] COURSES = {"Ser321", "Ser423", "Ser315", "Cse240", "Cse310"};
+
+   @Param({"hashtable", "concurrent"})
+   public String store;
+
+   @Param({"1000"})
+   public int size;
+
+   private StudentCollection students;
+   private String[] names;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      // in memory only, adds are not written to the log
+      students = store.equals("hashtable") ? new HashtableStudentCollection()
+         : new StudentCollectionImpl(null);
+      names = new String[size];
+      for (int i = 0; i < size; i++) {
+         names[i] = "student" + i;
+         students.add(student(i));
+      }
+   }
+
+   private Student student(int i) {
+      return new Student(names[i], i,
+         new String[]{COURSES[i % COURSES.length], COURSES[(i + 2) % COURSES.length]});
+   }
+
+   /** 98 gets, one getNameById and one add that replaces a student per 100 calls */
+   @Benchmark
+   public Object mixed() {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      int i = random.nextInt(size);
+      int op = random.nextInt(100);
+      if (op == 0) {
+         return students.add(student(i));
+      }
+      if (op == 1) {
+         return students.getNameById(i);
+      }
+      return students.get(names[i]);
+   }
+
+   @Benchmark
+   public Student get() {
+      return students.get(names[ThreadLocalRandom.current().nextInt(size)]);
+   }
+
+   @Benchmark
+   public String getNameById() {
+      return students.getNameById(ThreadLocalRandom.current().nextInt(size));
+   }
+
+   @Benchmark
+   public String[] getNames() {
+      return students.getNames();
+   }
+
+   @Benchmark
+   public int countByCourse() {
+      return students.countByCourse(COURSES[ThreadLocalRandom.current().nextInt(COURSES.length)]);
+   }
+
+   public static void main(String[] args) throws RunnerException {
+      int[] threads = {1, 2, 4, 8, 16, 32, 64};
+      for (int t : threads) {
+         Options opts = new OptionsBuilder()
+            .include(StudentCollectionBenchmark.class.getSimpleName()
+                     + (args.length > 0 ? "." + args[0] : ""))
+            .threads(t)
+            .forks(1)
+            .warmupIterations(3)
+            .measurementIterations(5)
+            .build();
+         new Runner(opts).run();
+      }
+   }
+}
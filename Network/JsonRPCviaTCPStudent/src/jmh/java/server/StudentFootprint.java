@@ -0,0 +1,97 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Random;
+import java.util.Vector;
+import java.util.function.Function;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Heap taken by one student: the original layout (a String per course in
+ * a Vector, as read from json) against Student (course codes in an int
+ * array). Both are built from the same JSONObjects, the way the server
+ * gets them from a client or the log, and measured as the growth of the
+ * heap after a gc divided by the number of students.
+ *
+ * Run with: gradle footprint [-Pstudents=200000]
+ *
+ * Ser321 Foundations of Distributed Software Systems
+ */
+public class StudentFootprint {
+
+   private static final String[] COURSES = {"Ser321", "Ser423", "Ser315", "Ser316", "Ser322",
+      "Cse240", "Cse310", "Cse340", "Cse445", "Cse494"};
+
+   /** the Student of the original example */
+   static class VectorStudent {
+      String name;
+      int studentid;
+      Vector<String> takes;
+
+      VectorStudent(JSONObject jsonObj) {
+         name = jsonObj.optString("name", "unknown");
+         studentid = jsonObj.optInt("studentid", 0);
+         takes = new Vector<String>();
+         JSONArray ja = jsonObj.getJSONArray("takes");
+         for (int i = 0; i < ja.length(); i++) {
+            takes.add(ja.getString(i));
+         }
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      int students = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+      System.out.printf("%-28s %16s%n", "layout", "bytes/student");
+      report("Vector<String> takes", students, VectorStudent::new);
+      report("int[] course codes", students, Student::new);
+   }
+
+   private static void report(String layout, int students, Function<JSONObject,Object> build)
+         throws InterruptedException {
+      Random random = new Random(42);
+      Object[] kept = new Object[students];
+      long before = heapAfterGc();
+      for (int i = 0; i < students; i++) {
+         kept[i] = build.apply(json(random, i));
+      }
+      long after = heapAfterGc();
+      System.out.printf("%-28s %16.1f%n", layout, (double) (after - before) / students);
+      if (kept[students - 1] == null) {
+         throw new IllegalStateException();
+      }
+   }
+
+   /**
+    * A student as a client sends it, 1 to 4 courses
+    */
+   private static JSONObject json(Random random, int i) {
+      JSONArray takes = new JSONArray();
+      for (int c = 1 + random.nextInt(4); c > 0; c--) {
+         // a new String each time, as parsing a request gives
+         takes.put(new String(COURSES[random.nextInt(COURSES.length)]));
+      }
+      JSONObject stud = new JSONObject();
+      stud.put("name", "Student" + i);
+      stud.put("studentid", 1000 + i);
+      stud.put("takes", takes);
+      return stud;
+   }
+
+   private static long heapAfterGc() throws InterruptedException {
+      for (int i = 0; i < 3; i++) {
+         System.gc();
+         Thread.sleep(50);
+      }
+      long used = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         if (pool.getType() == MemoryType.HEAP) {
+            used += pool.getUsage().getUsed();
+         }
+      }
+      return used;
+   }
+}
@@ -0,0 +1,159 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Startup cost of loading students.json: time and peak heap of the
+ * original loader (a JSONObject of the whole file, then one Student per
+ * entry) against StudentJsonReader, sequential and parallel, for files of
+ * growing size.
+ *
+ * Not a JMH benchmark, a load happens once per start. Each loader runs
+ * twice per file in this JVM and the second run is reported; peak heap is
+ * the highest heap use during the load minus the heap in use before it,
+ * retained the heap still used by the result after a gc.
+ *
+ * Run with: gradle loadBenchmark [-Pstudents=10000,100000,1000000]
+ *
+ * Ser321 Foundations of Distributed Software Systems
+ */
+public class StudentLoadBenchmark {
+
+   private static final String[] COURSES = {"Ser321", "Ser423", "Ser315", "Ser316", "Ser322",
+      "Cse240", "Cse310", "Cse340", "Cse445", "Cse494"};
+
+   interface Loader {
+      void load(File file, Map<String,Student> into) throws IOException;
+   }
+
+   public static void main(String[] args) throws Exception {
+      String sizes = args.length > 0 ? args[0] : "10000,100000,1000000";
+      File dir = new File(System.getProperty("java.io.tmpdir"));
+      System.out.printf("%10s %9s %-10s %9s %10s %12s%n",
+                        "students", "file MB", "loader", "load ms", "peak MB", "retained MB");
+      for (String size : sizes.split(",")) {
+         int students = Integer.parseInt(size.trim());
+         File file = new File(dir, "students-" + students + ".json");
+         write(file, students);
+         run(file, students, "jsonobject", StudentLoadBenchmark::loadJsonObject);
+         run(file, students, "streaming", (f, into) -> StudentJsonReader.read(f, into, 1));
+         run(file, students, "parallel", (f, into) -> StudentJsonReader.read(f, into,
+            Runtime.getRuntime().availableProcessors()));
+         file.delete();
+      }
+   }
+
+   private static void run(File file, int students, String name, Loader loader) throws Exception {
+      Map<String,Student> into = null;
+      long millis = 0;
+      long peak = 0;
+      long retained = 0;
+      for (int round = 0; round < 2; round++) {
+         into = null;
+         long before = heapAfterGc();
+         resetPeaks();
+         long start = System.nanoTime();
+         into = new ConcurrentHashMap<String,Student>();
+         loader.load(file, into);
+         millis = (System.nanoTime() - start) / 1000000;
+         peak = peakHeap() - before;
+         retained = heapAfterGc() - before;
+      }
+      if (into.size() != students) {
+         throw new IllegalStateException(name + " loaded " + into.size() + " of " + students);
+      }
+      System.out.printf("%10d %9.1f %-10s %9d %10.1f %12.1f%n", students, file.length() / 1e6,
+                        name, millis, peak / 1e6, retained / 1e6);
+   }
+
+   /**
+    * The loader StudentCollectionImpl used before StudentJsonReader
+    */
+   private static void loadJsonObject(File file, Map<String,Student> into) throws IOException {
+      try (InputStreamReader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+         JSONObject studentMap = new JSONObject(new JSONTokener(in));
+         Iterator<String> it = studentMap.keys();
+         while (it.hasNext()) {
+            Student stud = new Student(studentMap.optJSONObject(it.next()));
+            into.put(stud.name, stud);
+         }
+      }
+   }
+
+   /**
+    * A students.json in the layout the server writes, one student per line
+    */
+   private static void write(File file, int students) throws IOException {
+      Random random = new Random(students);
+      try (Writer out = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+         out.write("{\n");
+         for (int i = 0; i < students; i++) {
+            String[] takes = new String[1 + random.nextInt(4)];
+            for (int c = 0; c < takes.length; c++) {
+               takes[c] = COURSES[random.nextInt(COURSES.length)];
+            }
+            Student stud = new Student("Student" + i, 1000 + i, takes);
+            out.write(i == 0 ? "  " : ",\n  ");
+            out.write(JSONObject.quote(stud.name));
+            out.write(":");
+            out.write(stud.toJsonString());
+         }
+         out.write("\n}\n");
+      }
+   }
+
+   private static long heapAfterGc() throws InterruptedException {
+      for (int i = 0; i < 3; i++) {
+         System.gc();
+         Thread.sleep(50);
+      }
+      long used = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         if (pool.getType() == MemoryType.HEAP) {
+            used += pool.getUsage().getUsed();
+         }
+      }
+      return used;
+   }
+
+   private static void resetPeaks() {
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         if (pool.getType() == MemoryType.HEAP) {
+            pool.resetPeakUsage();
+         }
+      }
+   }
+
+   /**
+    * Sum of the peaks of the heap pools, each may have peaked at another
+    * time, so this is an upper bound
+    */
+   private static long peakHeap() {
+      long peak = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         if (pool.getType() == MemoryType.HEAP) {
+            peak += pool.getPeakUsage().getUsed();
+         }
+      }
+      return peak;
+   }
+}
@@ -0,0 +1,167 @@
+package client;
+
+import server.Framing;
+import java.net.*;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * A persistent, framed connection to the student server that carries many
+ * calls at once. Requests are written as soon as they are made; a reader
+ * thread takes the responses in whatever order the server sends them and
+ * completes the pending call with the same id.
+ *
+ * When the connection fails every pending call fails with the exception,
+ * the connection is closed and the proxy opens a new one for later calls.
+ * An error response without an id is printed and the connection kept.
+ *
+ * Ser321 Foundations of Distributed Software Systems
+ */
+class RpcConnection {
+
+   private static final boolean debugOn = false;
+
+   private final Socket sock;
+   private final OutputStream out;
+   private final InputStream in;
+   /** calls sent and not answered yet, by id */
+   private final Map<Integer, CompletableFuture<JSONObject>> pending =
+      new ConcurrentHashMap<Integer, CompletableFuture<JSONObject>>();
+   private volatile boolean closed;
+
+   RpcConnection(String host, int port, int connectTimeoutMillis) throws IOException {
+      sock = new Socket();
+      sock.setTcpNoDelay(true);
+      sock.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+      out = new BufferedOutputStream(sock.getOutputStream());
+      in = new BufferedInputStream(sock.getInputStream());
+      Thread reader = new Thread(this::readResponses, "rpc-reader-" + host + ":" + port);
+      reader.setDaemon(true);
+      reader.start();
+   }
+
+   private void debug(String message) {
+      if (debugOn)
+         System.out.println("debug: "+message);
+   }
+
+   boolean isClosed() {
+      return closed;
+   }
+
+   /**
+    * Sends a call, the future completes with the whole response object
+    * @param id unique among the calls pending on this connection
+    */
+   CompletableFuture<JSONObject> send(int id, String request) {
+      CompletableFuture<JSONObject> response = new CompletableFuture<JSONObject>();
+      pending.put(id, response);
+      // a call that times out or is cancelled is forgotten
+      response.whenComplete((result, failure) -> pending.remove(id));
+      write(request, Collections.singletonList(response));
+      return response;
+   }
+
+   private void write(String message, List<CompletableFuture<JSONObject>> responses) {
+      if (closed) {
+         for (CompletableFuture<JSONObject> response : responses) {
+            response.completeExceptionally(new IOException("connection closed"));
+         }
+         return;
+      }
+      try {
+         synchronized (out) {
+            Framing.writeFrame(out, message);
+         }
+         debug("sent: "+message);
+      } catch (IOException e) {
+         fail(e);
+      }
+   }
+
+   /**
+    * Sends several calls in one batch, the server answers them in one array
+    * @param ids ids of the calls in the batch, in order
+    * @return one future per call, in the order of ids
+    */
+   List<CompletableFuture<JSONObject>> sendBatch(int[] ids, String batch) {
+      List<CompletableFuture<JSONObject>> responses = new ArrayList<CompletableFuture<JSONObject>>();
+      for (int id : ids) {
+         CompletableFuture<JSONObject> response = new CompletableFuture<JSONObject>();
+         pending.put(id, response);
+         response.whenComplete((result, failure) -> pending.remove(id));
+         responses.add(response);
+      }
+      write(batch, responses);
+      return responses;
+   }
+
+   /**
+    * Reader thread: completes the pending calls until the connection ends
+    */
+   private void readResponses() {
+      try {
+         String message;
+         while ((message = Framing.readFrame(in, Framing.MAX_MESSAGE_BYTES)) != null) {
+            debug("received: "+message);
+            Object parsed = new JSONTokener(message).nextValue();
+            if (parsed instanceof JSONArray) {
+               // answer to a batch
+               JSONArray responses = (JSONArray) parsed;
+               for (int i = 0; i < responses.length(); i++) {
+                  complete(responses.getJSONObject(i));
+               }
+            } else {
+               complete((JSONObject) parsed);
+            }
+         }
+         fail(new EOFException("connection closed by the server"));
+      } catch (Exception e) {
+         fail(e instanceof IOException ? (IOException) e : new IOException(e));
+      }
+   }
+
+   private void complete(JSONObject response) {
+      Object id = response.opt("id");
+      if (!(id instanceof Number)) {
+         // an error the server cannot relate to a call (id null), the
+         // calls of this connection still get their answers
+         System.out.println("server error without a call: " + response.optJSONObject("error"));
+         return;
+      }
+      CompletableFuture<JSONObject> call = pending.remove(((Number) id).intValue());
+      if (call != null) {
+         call.complete(response);
+      }
+   }
+
+   /**
+    * Closes the connection and fails every call still waiting
+    */
+   void fail(IOException cause) {
+      closed = true;
+      try {
+         sock.close();
+      } catch (IOException e) {
+         // closing anyway
+      }
+      for (Integer id : pending.keySet()) {
+         CompletableFuture<JSONObject> call = pending.remove(id);
+         if (call != null) {
+            call.completeExceptionally(cause);
+         }
+      }
+   }
+
+   void close() {
+      fail(new IOException("connection closed by the client"));
+   }
+}
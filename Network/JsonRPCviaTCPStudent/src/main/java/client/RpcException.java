@@ -0,0 +1,26 @@
+package client;
+
+import java.io.IOException;
+
+/**
+ * A call the server answered with a JSON-RPC error, with the code and
+ * message of the error (-32601 for an unknown method, -32602 for wrong
+ * parameters, ...).
+ *
+ * Ser321 Foundations of Distributed Software Systems
+ */
+public class RpcException extends IOException {
+
+   private static final long serialVersionUID = 1L;
+
+   private final int code;
+
+   public RpcException(int code, String message) {
+      super(message + " (" + code + ")");
+      this.code = code;
+   }
+
+   public int getCode() {
+      return code;
+   }
+}
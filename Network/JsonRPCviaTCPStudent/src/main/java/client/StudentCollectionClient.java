@@ -47,7 +47,7 @@ public class StudentCollectionClient extends Object {
          // get input
          BufferedReader stdin = new BufferedReader(
             new InputStreamReader(System.in));
-         System.out.print("Enter end or {add|get|getNameById|getNames|remove} followed by args>");
+         System.out.print("Enter end or {add|get|getNameById|getNames|getByCourse|remove} followed by args>");
          String inStr = stdin.readLine();
          StringTokenizer st = new StringTokenizer(inStr);
          String opn = st.nextToken();
@@ -88,12 +88,21 @@ public class StudentCollectionClient extends Object {
                int idNo = Integer.parseInt(st.nextToken());
                String result = sc.getNameById(idNo);
                System.out.println(result+" has id number "+idNo);
+            }else if (opn.equalsIgnoreCase("getByCourse")) {
+               String course = st.nextToken();
+               Student[] result = sc.getByCourse(course);
+               System.out.print(result.length+" students take "+course+": ");
+               for (int i = 0; i < result.length; i++){
+                  System.out.print(result[i].name+", ");
+               }
+               System.out.println();
             }
-            System.out.print("Enter end or {add|get|getNameById|getNames|remove} followed by args>");
+            System.out.print("Enter end or {add|get|getNameById|getNames|getByCourse|remove} followed by args>");
             inStr = stdin.readLine();
             st = new StringTokenizer(inStr);
             opn = st.nextToken();
          }
+         sc.close();
       }catch (Exception e) {
          e.printStackTrace();
          System.out.println("Oops, you didn't enter the right stuff");
@@ -5,6 +5,13 @@ import server.StudentCollection;
 import java.net.*;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.json.JSONObject;
 import org.json.JSONArray;
 
@@ -15,20 +22,50 @@ import org.json.JSONArray;
  * connection to request the method be executed on the server.
  * Byte arrays are used for communication to support multiple langs.
  *
+ * Calls go over a small pool of persistent connections (RpcConnection)
+ * that are opened on first use and reopened after a failure. Every call
+ * gets a new id and is written right away, so many calls can be in flight
+ * on one connection; the responses are matched to them by id. Next to the
+ * blocking StudentCollection methods there is an asynchronous variant of
+ * each that returns a CompletableFuture. A call that is not answered
+ * within the timeout fails with a TimeoutException (the blocking methods
+ * print it and return their default).
+ *
+ * addAll and getAll send their calls as JSON-RPC batches, one message
+ * and one response for up to MAX_BATCH calls.
+ *
  * @author Tim Lindquist ASU Polytechnic Department of Engineering
  * @version April 2020
  */
 public class StudentTcpProxy extends Object implements StudentCollection {
 
    private static final boolean debugOn = false;
-   private static final int buffSize = 4096;
-   private static int id = 0;
+   public static final int DEFAULT_CONNECTIONS = 4;
+   public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+   /** calls sent in one batch message, larger batches are split */
+   public static final int MAX_BATCH = 256;
+
+   /** ids of all calls, unique while they are pending */
+   private static final AtomicInteger nextId = new AtomicInteger();
    private String host;
    private int port;
-   
+   private final RpcConnection[] connections;
+   private final AtomicInteger nextConnection = new AtomicInteger();
+   private final long timeoutMillis;
+
    public StudentTcpProxy (String host, int port){
+      this(host, port, DEFAULT_CONNECTIONS, DEFAULT_TIMEOUT_MILLIS);
+   }
+
+   /**
+    * @param connections number of persistent connections calls are spread over
+    * @param timeoutMillis time a call may take before it fails
+    */
+   public StudentTcpProxy (String host, int port, int connections, long timeoutMillis){
       this.host = host;
       this.port = port;
+      this.connections = new RpcConnection[connections];
+      this.timeoutMillis = timeoutMillis;
    }
 
    private void debug(String message) {
@@ -40,111 +77,297 @@ public class StudentTcpProxy extends Object implements StudentCollection {
     * Generic method caller using TCP
     * @param method
     * @param params
-    * @return
+    * @return the response, "{}" if the call failed or the server answered
+    *         with an error
     */
    public String callMethod(String method, Object[] params){
-      // create JSON RPC message
-      JSONObject theCall = new JSONObject();
       String ret = "{}";
       try{
-         debug("Request is: "+theCall.toString());
-         theCall.put("method",method);
-         theCall.put("id",id);
-         theCall.put("jsonrpc","2.0");
-         ArrayList<Object> al = new ArrayList();
-         for (int i=0; i<params.length; i++){
-            al.add(params[i]);
-         }
-         JSONArray paramsJson = new JSONArray(al);
-         theCall.put("params",paramsJson);
-
-         // prep connection and the byte array
-         Socket sock = new Socket(host,port);
-         OutputStream os = sock.getOutputStream();
-         InputStream is = sock.getInputStream();
-         int numBytesReceived;
-         int bufLen = 1024;
-         String strToSend = theCall.toString();
-         byte bytesReceived[] = new byte[buffSize];
-         byte bytesToSend[] = strToSend.getBytes();
-
-         // send the message
-         os.write(bytesToSend,0,bytesToSend.length);
-         // get response
-         numBytesReceived = is.read(bytesReceived,0,bufLen);
-         ret = new String(bytesReceived,0,numBytesReceived);
-         
-         // return
+         ret = callMethodAsync(method, params).join().toString();
          debug("callMethod received from server: "+ret);
-         os.close();
-         is.close();
-         sock.close();
       }catch(Exception ex){
-         System.out.println("exception in callMethod: "+ex.getMessage());
+         System.out.println("exception in callMethod: "+cause(ex).getMessage());
       }
       return ret;
    }
 
+   /**
+    * Sends a call on one of the connections without waiting for the answer
+    * @return the whole JSON-RPC response; fails with an RpcException if
+    *         the server answers with an error, an IOException if the
+    *         connection fails and a TimeoutException after the timeout
+    */
+   public CompletableFuture<JSONObject> callMethodAsync(String method, Object[] params){
+      // create JSON RPC message
+      int id = nextId.getAndIncrement() & Integer.MAX_VALUE;
+      JSONObject theCall = new JSONObject();
+      theCall.put("method",method);
+      theCall.put("id",id);
+      theCall.put("jsonrpc","2.0");
+      ArrayList<Object> al = new ArrayList<Object>();
+      for (int i=0; i<params.length; i++){
+         al.add(params[i]);
+      }
+      JSONArray paramsJson = new JSONArray(al);
+      theCall.put("params",paramsJson);
+      debug("Request is: "+theCall.toString());
+
+      RpcConnection conn;
+      try{
+         conn = connection();
+      }catch(IOException ex){
+         CompletableFuture<JSONObject> failed = new CompletableFuture<JSONObject>();
+         failed.completeExceptionally(ex);
+         return failed;
+      }
+      return succeeded(conn.send(id, theCall.toString())
+         .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS));
+   }
+
+   /**
+    * Fails the call with an RpcException if the response is an error
+    */
+   private static CompletableFuture<JSONObject> succeeded(CompletableFuture<JSONObject> call){
+      return call.thenApply(res -> {
+         JSONObject error = res.optJSONObject("error");
+         if (error != null) {
+            throw new CompletionException(
+               new RpcException(error.optInt("code"), error.optString("message")));
+         }
+         return res;
+      });
+   }
+
+   /**
+    * Sends the same method with each of the parameter lists as JSON-RPC
+    * batches of up to MAX_BATCH calls, spread over the connections
+    * @return the responses in the order of the parameter lists; fails as
+    *         callMethodAsync does if one of the calls fails
+    */
+   public CompletableFuture<List<JSONObject>> callBatchAsync(String method, List<Object[]> paramsList){
+      List<CompletableFuture<JSONObject>> calls = new ArrayList<CompletableFuture<JSONObject>>();
+      for (int from = 0; from < paramsList.size(); from += MAX_BATCH) {
+         List<Object[]> chunk = paramsList.subList(from, Math.min(paramsList.size(), from + MAX_BATCH));
+         int[] ids = new int[chunk.size()];
+         JSONArray batch = new JSONArray();
+         for (int i = 0; i < ids.length; i++) {
+            ids[i] = nextId.getAndIncrement() & Integer.MAX_VALUE;
+            JSONObject theCall = new JSONObject();
+            theCall.put("method",method);
+            theCall.put("id",ids[i]);
+            theCall.put("jsonrpc","2.0");
+            theCall.put("params",new JSONArray(Arrays.asList(chunk.get(i))));
+            batch.put(theCall);
+         }
+         debug("Batch is: "+batch.toString());
+         try{
+            for (CompletableFuture<JSONObject> call : connection().sendBatch(ids, batch.toString())) {
+               calls.add(succeeded(call.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)));
+            }
+         }catch(IOException ex){
+            CompletableFuture<JSONObject> failed = new CompletableFuture<JSONObject>();
+            failed.completeExceptionally(ex);
+            calls.add(failed);
+         }
+      }
+      return CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+         List<JSONObject> responses = new ArrayList<JSONObject>(calls.size());
+         for (CompletableFuture<JSONObject> call : calls) {
+            responses.add(call.join());
+         }
+         return responses;
+      });
+   }
+
+   /**
+    * Next connection of the pool, round robin; opens it if it is not open
+    */
+   private RpcConnection connection() throws IOException {
+      int slot = Math.floorMod(nextConnection.getAndIncrement(), connections.length);
+      synchronized (connections) {
+         RpcConnection conn = connections[slot];
+         if (conn == null || conn.isClosed()) {
+            conn = new RpcConnection(host, port, (int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+            connections[slot] = conn;
+         }
+         return conn;
+      }
+   }
+
+   /**
+    * Closes all connections, calls still pending fail
+    */
+   public void close() {
+      synchronized (connections) {
+         for (int i = 0; i < connections.length; i++) {
+            if (connections[i] != null) {
+               connections[i].close();
+               connections[i] = null;
+            }
+         }
+      }
+   }
+
+   private static Throwable cause(Throwable ex) {
+      if (ex instanceof CompletionException && ex.getCause() != null) {
+         ex = ex.getCause();
+      }
+      if (ex instanceof TimeoutException) {
+         return new TimeoutException("no response in time");
+      }
+      return ex;
+   }
+
+   /**
+    * Waits for an asynchronous call and returns its result, or the default
+    * if it failed
+    */
+   private static <T> T await(CompletableFuture<T> call, T otherwise) {
+      try{
+         return call.join();
+      }catch(Exception ex){
+         System.out.println("exception in callMethod: "+cause(ex).getMessage());
+         return otherwise;
+      }
+   }
+
+   public CompletableFuture<Boolean> saveToJsonFileAsync() {
+      return callMethodAsync("saveToJsonFile", new Object[]{})
+         .thenApply(res -> res.optBoolean("result",false));
+   }
+
+   public CompletableFuture<Boolean> resetFromJsonFileAsync() {
+      return callMethodAsync("resetFromJsonFile", new Object[]{})
+         .thenApply(res -> res.optBoolean("result",false));
+   }
+
+   public CompletableFuture<Boolean> addAsync(Student stud) {
+      return callMethodAsync("add", new Object[]{stud.toJson()})
+         .thenApply(res -> res.optBoolean("result",false));
+   }
+
+   public CompletableFuture<Boolean> removeAsync(String aName) {
+      return callMethodAsync("remove", new Object[]{aName})
+         .thenApply(res -> res.optBoolean("result",false));
+   }
+
+   public CompletableFuture<Student> getAsync(String aName) {
+      return callMethodAsync("get", new Object[]{aName})
+         .thenApply(res -> new Student(res.optJSONObject("result")));
+   }
+
+   public CompletableFuture<String> getNameByIdAsync(int id) {
+      return callMethodAsync("getNameById", new Object[]{id})
+         .thenApply(res -> res.optString("result","unknown"));
+   }
+
+   public CompletableFuture<String[]> getNamesAsync() {
+      return callMethodAsync("getNames", new Object[0]).thenApply(res -> {
+         debug("result of getNames is: "+res);
+         JSONArray namesJson = res.optJSONArray("result");
+         String[] ret = new String[namesJson.length()];
+         for (int i=0; i<namesJson.length(); i++){
+            ret[i] = namesJson.optString(i,"unknown");
+         }
+         return ret;
+      });
+   }
+
+   public CompletableFuture<Student[]> getByCourseAsync(String course) {
+      return callMethodAsync("getByCourse", new Object[]{course}).thenApply(res -> {
+         JSONArray studsJson = res.optJSONArray("result");
+         Student[] ret = new Student[studsJson == null ? 0 : studsJson.length()];
+         for (int i=0; i<ret.length; i++){
+            ret[i] = new Student(studsJson.getJSONObject(i));
+         }
+         return ret;
+      });
+   }
+
+   public CompletableFuture<Integer> countByCourseAsync(String course) {
+      return callMethodAsync("countByCourse", new Object[]{course})
+         .thenApply(res -> res.optInt("result",0));
+   }
+
+   /**
+    * Adds all students with batched calls
+    * @return true if every one of them was added
+    */
+   public CompletableFuture<Boolean> addAllAsync(List<Student> studs) {
+      List<Object[]> params = new ArrayList<Object[]>(studs.size());
+      for (Student stud : studs) {
+         params.add(new Object[]{stud.toJson()});
+      }
+      return callBatchAsync("add", params).thenApply(responses -> {
+         for (JSONObject res : responses) {
+            if (!res.optBoolean("result",false)) {
+               return false;
+            }
+         }
+         return true;
+      });
+   }
+
+   /**
+    * Gets the students with the names with batched calls
+    * @return the students in the order of the names, unknown names give
+    *         the server's placeholder student
+    */
+   public CompletableFuture<List<Student>> getAllAsync(List<String> names) {
+      List<Object[]> params = new ArrayList<Object[]>(names.size());
+      for (String name : names) {
+         params.add(new Object[]{name});
+      }
+      return callBatchAsync("get", params).thenApply(responses -> {
+         List<Student> ret = new ArrayList<Student>(responses.size());
+         for (JSONObject res : responses) {
+            ret.add(new Student(res.optJSONObject("result")));
+         }
+         return ret;
+      });
+   }
+
+   public boolean addAll(List<Student> studs) {
+      return await(addAllAsync(studs), false);
+   }
+
+   public List<Student> getAll(List<String> names) {
+      return await(getAllAsync(names), new ArrayList<Student>());
+   }
+
    public boolean saveToJsonFile() {
-      boolean ret = false;
-      String result = callMethod("saveToJsonFile", new Object[]{});
-      JSONObject res = new JSONObject(result);
-      ret = res.optBoolean("result",false);
-      return ret;
+      return await(saveToJsonFileAsync(), false);
    }
-   
+
    public boolean resetFromJsonFile() {
-      boolean ret = false;
-      String result = callMethod("resetFromJsonFile", new Object[]{});
-      JSONObject res = new JSONObject(result);
-      ret = res.optBoolean("result",false);
-      return ret;
+      return await(resetFromJsonFileAsync(), false);
    }
-   
+
    public boolean add(Student stud) {
-      boolean ret = false;
-      String result = callMethod("add", new Object[]{stud.toJson()});
-      JSONObject res = new JSONObject(result);
-      ret = res.optBoolean("result",false);
-      return ret;
+      return await(addAsync(stud), false);
    }
-   
+
    public boolean remove(String aName) {
-      boolean ret = false;
-      String result = callMethod("remove", new Object[]{aName});
-      JSONObject res = new JSONObject(result);
-      ret = res.optBoolean("result",false);
-      return ret;
+      return await(removeAsync(aName), false);
    }
-   
+
    public Student get(String aName) {
-      Student ret = new Student("unknown",-999, new String[]{"unknown"});
-      String result = callMethod("get", new Object[]{aName});
-      JSONObject res = new JSONObject(result);
-      JSONObject studJson = res.optJSONObject("result");
-      ret = new Student(studJson);
-      return ret;
+      return await(getAsync(aName), new Student("unknown",-999, new String[]{"unknown"}));
    }
-   
+
    public String getNameById(int id) {
-      String ret = "unknown";
-      String result = callMethod("getNameById", new Object[]{id});
-      JSONObject res = new JSONObject(result);
-      ret = res.optString("result","unknown");
-      return ret;
+      return await(getNameByIdAsync(id), "unknown");
    }
-   
+
    public String[] getNames() {
-      String[] ret = new String[]{};
-      String result = callMethod("getNames", new Object[0]);
-      debug("result of getNames is: "+result);
-      JSONObject res = new JSONObject(result);
-      JSONArray namesJson = res.optJSONArray("result");
-      ret = new String[namesJson.length()];
-      for (int i=0; i<namesJson.length(); i++){
-         ret[i] = namesJson.optString(i,"unknown");
-      }
-      return ret;
+      return await(getNamesAsync(), new String[]{});
    }
-}
 
+   public Student[] getByCourse(String course) {
+      return await(getByCourseAsync(course), new Student[]{});
+   }
+
+   public int countByCourse(String course) {
+      return await(countByCourseAsync(course), 0);
+   }
+}
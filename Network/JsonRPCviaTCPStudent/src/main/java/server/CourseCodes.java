@@ -0,0 +1,67 @@
+package server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Purpose: numbers for course names, so a Student keeps its courses as
+ * small ints and every course name exists once per JVM.
+ *
+ * Codes are handed out in the order courses are first seen and live as
+ * long as the process: a code is never taken back, even once no student
+ * takes its course any more. Since clients can send any course name, at
+ * most 4096 codes are handed out (-Drpc.maxCourseCodes); a course that
+ * comes after that gets no code and the Student keeps its name instead.
+ * Looking up a known course takes no lock.
+ *
+ * Ser321 Foundations of Distributed Software Systems
+ */
+final class CourseCodes {
+
+   /** the most codes handed out, -Drpc.maxCourseCodes */
+   static final int MAX_CODES = Math.max(0, Integer.getInteger("rpc.maxCourseCodes", 4096));
+   /** code of a course that got none because all are handed out */
+   static final int NONE = -1;
+
+   private static final ConcurrentHashMap<String,Integer> codes =
+      new ConcurrentHashMap<String,Integer>();
+   /** course names by code, replaced when it grows */
+   private static volatile String[] names = new String[64];
+
+   private CourseCodes() {
+   }
+
+   /**
+    * @return the code of the course, a new one if it was not seen before,
+    *         NONE if it was not and all codes are handed out
+    */
+   static int code(String course) {
+      Integer code = codes.get(course);
+      if (code != null) {
+         return code;
+      }
+      synchronized (CourseCodes.class) {
+         code = codes.get(course);
+         if (code != null) {
+            return code;
+         }
+         int next = codes.size();
+         if (next >= MAX_CODES) {
+            return NONE;
+         }
+         String[] current = names;
+         if (next == current.length) {
+            current = Arrays.copyOf(current, Math.min(next * 2, MAX_CODES));
+         }
+         current[next] = course;
+         names = current;
+         // published after the name, whoever gets the code finds the name
+         codes.put(course, next);
+         return next;
+      }
+   }
+
+   static String name(int code) {
+      return names[code];
+   }
+}
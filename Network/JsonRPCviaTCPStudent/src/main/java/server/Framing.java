@@ -0,0 +1,124 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Purpose: message framing for JsonRPC over a TCP stream.
+ *
+ * A framed message is one JSON text in UTF-8 followed by a newline
+ * (newline-delimited JSON). Compact JSON never contains a raw newline, so
+ * the newline always ends a message, no matter how TCP splits or joins
+ * the bytes. Messages larger than the limit are refused.
+ *
+ * The unframed (one-shot) protocol of the original example sends a single
+ * JSON text and waits for the answer; readJsonText reads such a message
+ * up to the end of the JSON text instead of relying on a single read.
+ *
+ * Ser321 Foundations of Distributed Software Systems
+ */
+public class Framing {
+
+   /** default limit for one message, -Drpc.maxMessageBytes overrides it */
+   public static final int MAX_MESSAGE_BYTES =
+      Integer.getInteger("rpc.maxMessageBytes", 1024 * 1024);
+
+   /**
+    * Thrown when a message is longer than the limit. The rest of the
+    * message is not read, so the connection cannot be used any further.
+    */
+   public static class MessageTooLargeException extends IOException {
+      public MessageTooLargeException(int limit) {
+         super("message larger than " + limit + " bytes");
+      }
+   }
+
+   /**
+    * Reads the next newline terminated message
+    * @param in buffered input stream of the connection, it is read byte by byte
+    * @param maxBytes longest message accepted
+    * @return the message without the newline, null if the stream ended
+    *         between two messages
+    */
+   public static String readFrame(InputStream in, int maxBytes) throws IOException {
+      ByteArrayOutputStream message = new ByteArrayOutputStream(256);
+      int b;
+      while ((b = in.read()) != -1) {
+         if (b == '\n') {
+            String text = message.toString(StandardCharsets.UTF_8.name());
+            // clients like telnet end lines with \r\n
+            return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+         }
+         if (message.size() >= maxBytes) {
+            throw new MessageTooLargeException(maxBytes);
+         }
+         message.write(b);
+      }
+      if (message.size() > 0) {
+         throw new IOException("connection closed inside a message");
+      }
+      return null;
+   }
+
+   /**
+    * Writes one message and its newline, callers sharing a stream must
+    * synchronize so messages are not interleaved
+    */
+   public static void writeFrame(OutputStream out, String message) throws IOException {
+      byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+      byte[] frame = new byte[bytes.length + 1];
+      System.arraycopy(bytes, 0, frame, 0, bytes.length);
+      frame[bytes.length] = '\n';
+      out.write(frame);
+      out.flush();
+   }
+
+   /**
+    * Reads one unframed JSON object or array: up to the bracket that closes
+    * the first one, tracking strings and escapes so brackets inside them
+    * are not counted
+    * @return the JSON text, null if the stream ended before any of it
+    */
+   public static String readJsonText(InputStream in, int maxBytes) throws IOException {
+      ByteArrayOutputStream message = new ByteArrayOutputStream(256);
+      int depth = 0;
+      boolean inString = false;
+      boolean escaped = false;
+      int b;
+      while ((b = in.read()) != -1) {
+         if (message.size() >= maxBytes) {
+            throw new MessageTooLargeException(maxBytes);
+         }
+         if (depth == 0 && b != '{' && b != '[') {
+            // whitespace before the message
+            continue;
+         }
+         message.write(b);
+         if (inString) {
+            if (escaped) {
+               escaped = false;
+            } else if (b == '\\') {
+               escaped = true;
+            } else if (b == '"') {
+               inString = false;
+            }
+         } else if (b == '"') {
+            inString = true;
+         } else if (b == '{' || b == '[') {
+            depth++;
+         } else if (b == '}' || b == ']') {
+            depth--;
+            if (depth == 0) {
+               return message.toString(StandardCharsets.UTF_8.name());
+            }
+         }
+      }
+      if (message.size() > 0) {
+         throw new IOException("connection closed inside a message");
+      }
+      return null;
+   }
+}
@@ -0,0 +1,207 @@
+package server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Purpose: the JsonRPC methods of the student server, one handler per
+ * method of the StudentCollection interface.
+ *
+ * The table is built once, when the class is loaded: for every method of
+ * the interface it takes a method handle and picks a decoder for each
+ * parameter type and an encoder for the result type, so a call is a map
+ * lookup and a direct invocation. A method added to StudentCollection is
+ * served without further changes, as long as its parameter and result
+ * types are among those below; otherwise the server does not start.
+ *
+ * Ser321 Foundations of Distributed Software Systems
+ */
+final class MethodRegistry {
+
+   /** thrown by decoders, answered with -32602 */
+   static class InvalidParamsException extends Exception {
+      InvalidParamsException(String message) {
+         super(message);
+      }
+   }
+
+   interface Decoder {
+      Object decode(JSONArray params, int i) throws InvalidParamsException;
+   }
+
+   interface Encoder {
+      Object encode(Object result);
+   }
+
+   /** a method of StudentCollection with the codecs of its signature */
+   static final class Handler {
+      final String name;
+      private final MethodHandle target;
+      private final Decoder[] decoders;
+      private final Encoder encoder;
+
+      Handler(String name, MethodHandle target, Decoder[] decoders, Encoder encoder) {
+         this.name = name;
+         this.target = target;
+         this.decoders = decoders;
+         this.encoder = encoder;
+      }
+
+      /**
+       * @param params positional parameters, null for none
+       * @return the encoded result, ready to put in the response
+       * @throws InvalidParamsException the parameters do not fit the method
+       * @throws Throwable whatever the method throws
+       */
+      Object invoke(StudentCollection studLib, JSONArray params) throws Throwable {
+         int count = params == null ? 0 : params.length();
+         if (count != decoders.length) {
+            throw new InvalidParamsException(name + " takes " + decoders.length
+                                             + " parameters, not " + count);
+         }
+         Object[] args = new Object[decoders.length];
+         for (int i = 0; i < args.length; i++) {
+            args[i] = decoders[i].decode(params, i);
+         }
+         return encoder.encode((Object) target.invokeExact(studLib, args));
+      }
+   }
+
+   private static final Map<String,Handler> handlers = build(StudentCollection.class);
+
+   private MethodRegistry() {
+   }
+
+   /**
+    * @return the handler of the method, null if there is no such method
+    */
+   static Handler get(String method) {
+      return handlers.get(method);
+   }
+
+   private static Map<String,Handler> build(Class<?> api) {
+      Map<String,Handler> table = new HashMap<String,Handler>();
+      MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+      MethodType generic = MethodType.methodType(Object.class, api, Object[].class);
+      for (Method m : api.getMethods()) {
+         Class<?>[] types = m.getParameterTypes();
+         Decoder[] decoders = new Decoder[types.length];
+         for (int i = 0; i < types.length; i++) {
+            decoders[i] = decoder(m, types[i]);
+         }
+         MethodHandle target;
+         try {
+            target = lookup.unreflect(m).asSpreader(Object[].class, types.length).asType(generic);
+         } catch (IllegalAccessException e) {
+            throw new IllegalStateException(m + " cannot be called", e);
+         }
+         Handler handler = new Handler(m.getName(), target, decoders, encoder(m));
+         if (table.put(m.getName(), handler) != null) {
+            throw new IllegalStateException(api.getSimpleName() + "." + m.getName()
+                                            + " is overloaded, JsonRPC calls methods by name only");
+         }
+      }
+      return Collections.unmodifiableMap(table);
+   }
+
+   private static Decoder decoder(Method m, Class<?> type) {
+      if (type == String.class) {
+         return MethodRegistry::string;
+      }
+      if (type == int.class) {
+         return MethodRegistry::integer;
+      }
+      if (type == Student.class) {
+         return MethodRegistry::student;
+      }
+      throw new IllegalStateException("no decoder for " + type.getSimpleName() + " of " + m);
+   }
+
+   private static Encoder encoder(Method m) {
+      Class<?> type = m.getReturnType();
+      if (type == boolean.class || type == int.class || type == String.class) {
+         return result -> result;
+      }
+      if (type == Student.class) {
+         return result -> ((Student) result).toJson();
+      }
+      if (type == String[].class) {
+         return result -> {
+            JSONArray resArr = new JSONArray();
+            for (String s : (String[]) result) {
+               resArr.put(s);
+            }
+            return resArr;
+         };
+      }
+      if (type == Student[].class) {
+         return result -> {
+            JSONArray resArr = new JSONArray();
+            for (Student stud : (Student[]) result) {
+               resArr.put(stud.toJson());
+            }
+            return resArr;
+         };
+      }
+      throw new IllegalStateException("no encoder for " + type.getSimpleName() + " of " + m);
+   }
+
+   private static Object string(JSONArray params, int i) throws InvalidParamsException {
+      Object value = params.opt(i);
+      if (!(value instanceof String)) {
+         throw new InvalidParamsException("parameter " + i + " is not a string");
+      }
+      return value;
+   }
+
+   /**
+    * An integral number, or a string holding one as getInt allows
+    */
+   private static Object integer(JSONArray params, int i) throws InvalidParamsException {
+      Object value = params.opt(i);
+      try {
+         if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            if (d == Math.rint(d) && d >= Integer.MIN_VALUE && d <= Integer.MAX_VALUE) {
+               return (int) d;
+            }
+         } else if (value instanceof String) {
+            return Integer.parseInt((String) value);
+         }
+      } catch (NumberFormatException e) {
+         // not a number
+      }
+      throw new InvalidParamsException("parameter " + i + " is not an int");
+   }
+
+   /**
+    * A student object: name, studentid and takes, all required
+    */
+   private static Object student(JSONArray params, int i) throws InvalidParamsException {
+      JSONObject studJson = params.optJSONObject(i);
+      if (studJson == null) {
+         throw new InvalidParamsException("parameter " + i + " is not a student object");
+      }
+      try {
+         String name = studJson.getString("name");
+         int studentid = studJson.getInt("studentid");
+         JSONArray ja = studJson.getJSONArray("takes");
+         String[] takes = new String[ja.length()];
+         for (int c = 0; c < takes.length; c++) {
+            takes[c] = ja.getString(c);
+         }
+         return new Student(name, studentid, takes);
+      } catch (JSONException e) {
+         throw new InvalidParamsException("parameter " + i + ": " + e.getMessage());
+      }
+   }
+}
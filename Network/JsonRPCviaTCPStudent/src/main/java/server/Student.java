@@ -3,6 +3,15 @@ package server;
  * Purpose: Example Java JsonRPC server for collection of students.
  * implemented with TCP/IP
  *
+ * A Student does not change once it is created, so the collection can hand
+ * the same object to any number of threads; to change a student add a new
+ * one with the same name.
+ *
+ * The courses are kept as codes (see CourseCodes) in an int array, which
+ * is all a student holds besides its name and id; they become names again
+ * in takes() and toJson. Only a student with a course that got no code
+ * keeps the names of its courses instead.
+ *
  * Ser321 Distributed Apps
  * @author Tim Lindquist Tim.Lindquist@asu.edu
  *         Software Engineering, CIDSE, IAFSE, ASU Poly
@@ -12,54 +21,123 @@ package server;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.util.Vector;
-import java.util.Arrays;
+import java.util.AbstractList;
+import java.util.List;
 
 public class Student {
 
    private static final boolean debugOn = false;
+   private static final int[] NO_COURSES = new int[0];
+   private static final String[] NO_NAMES = new String[0];
 
-   public String name;
-   public int studentid;
-   public Vector<String> takes;
+   public final String name;
+   public final int studentid;
+   /** course codes, in the order of takes; null if uncoded is set */
+   private final int[] courses;
+   /** course names, only if one of them got no code */
+   private final String[] uncoded;
 
    public Student(String name, int studentid, String[] courses){
       this.name = name;
       this.studentid = studentid;
-      this.takes = new Vector<String>();
-      this.takes.addAll(Arrays.asList(courses));
+      this.courses = codes(courses);
+      this.uncoded = this.courses == null ? courses.clone() : null;
+   }
+
+   /**
+    * @param courses course codes, kept as they are
+    */
+   Student(String name, int studentid, int[] courses){
+      this.name = name;
+      this.studentid = studentid;
+      this.courses = courses;
+      this.uncoded = null;
    }
 
    public Student(String jsonStr){
+      String aName = null;
+      int anId = 0;
+      String[] names = NO_NAMES;
       try{
          JSONObject jo = new JSONObject(jsonStr);
-         name = jo.getString("name");
-         studentid = jo.getInt("studentid");
-         takes = new Vector<String>();
-         JSONArray ja = jo.optJSONArray("takes");
-         for (int i=0; i< ja.length(); i++){
-            takes.add(ja.getString(i));
-         }
+         aName = jo.getString("name");
+         anId = jo.getInt("studentid");
+         names = names(jo.optJSONArray("takes"));
       }catch (Exception ex){
          System.out.println(this.getClass().getSimpleName()+
                             ": error converting from json string");
       }
+      name = aName;
+      studentid = anId;
+      courses = codes(names);
+      uncoded = courses == null ? names : null;
    }
 
    public Student(JSONObject jsonObj){
+      String aName = null;
+      int anId = 0;
+      String[] names = NO_NAMES;
       try{
          debug("constructor from json received: " + jsonObj.toString());
-         name = jsonObj.optString("name","unknown");
-         studentid = jsonObj.optInt("studentid",0);
-         takes = new Vector<String>();
-         JSONArray ja = jsonObj.getJSONArray("takes");
-         for (int i=0; i< ja.length(); i++){
-            takes.add(ja.getString(i));
-         }
+         aName = jsonObj.optString("name","unknown");
+         anId = jsonObj.optInt("studentid",0);
+         names = names(jsonObj.getJSONArray("takes"));
       }catch(Exception ex){
          System.out.println(this.getClass().getSimpleName()+
                             ": error converting from json string");
       }
+      name = aName;
+      studentid = anId;
+      courses = codes(names);
+      uncoded = courses == null ? names : null;
+   }
+
+   /**
+    * @return the codes of the courses, null if one of them got none
+    */
+   private static int[] codes(String[] courses){
+      if (courses.length == 0){
+         return NO_COURSES;
+      }
+      int[] codes = new int[courses.length];
+      for (int i=0; i<courses.length; i++){
+         codes[i] = CourseCodes.code(courses[i]);
+         if (codes[i] == CourseCodes.NONE){
+            return null;
+         }
+      }
+      return codes;
+   }
+
+   private static String[] names(JSONArray ja){
+      String[] names = new String[ja.length()];
+      for (int i=0; i<names.length; i++){
+         names[i] = ja.getString(i);
+      }
+      return names;
+   }
+
+   private int courseCount(){
+      return uncoded != null ? uncoded.length : courses.length;
+   }
+
+   private String course(int i){
+      return uncoded != null ? uncoded[i] : CourseCodes.name(courses[i]);
+   }
+
+   /**
+    * @return the courses the student takes, an unmodifiable view
+    */
+   public List<String> takes(){
+      return new AbstractList<String>() {
+         public String get(int i) {
+            return course(i);
+         }
+
+         public int size() {
+            return courseCount();
+         }
+      };
    }
 
    public JSONObject toJson(){
@@ -67,7 +145,11 @@ public class Student {
       try{
          jo.put("name",name);
          jo.put("studentid",studentid);
-         jo.put("takes",takes);
+         JSONArray ja = new JSONArray();
+         for (int i=0; i<courseCount(); i++){
+            ja.put(course(i));
+         }
+         jo.put("takes",ja);
       }catch (Exception ex){
          System.out.println(this.getClass().getSimpleName()+
                             ": error converting to json");
@@ -90,8 +172,8 @@ public class Student {
       StringBuilder sb = new StringBuilder();
       sb.append("Student ").append(name).append(" has id ");
       sb.append(studentid).append(" and takes courses ");
-      for (int i=0; i<takes.size(); i++){
-         sb.append(takes.get(i)).append(" ");
+      for (int i=0; i<courseCount(); i++){
+         sb.append(course(i)).append(" ");
       }
       return sb.toString();
    }
@@ -16,4 +16,6 @@ public interface StudentCollection {
    public Student get(String aName);
    public String getNameById(int id);
    public String[] getNames();
+   public Student[] getByCourse(String course);
+   public int countByCourse(String course);
 }
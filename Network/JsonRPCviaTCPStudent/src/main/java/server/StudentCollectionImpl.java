@@ -1,17 +1,21 @@
 package server;
 
-import java.util.Hashtable;
-import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.BufferedReader;
 import java.io.FileReader;
-import java.io.PrintWriter;
 import java.util.Vector;
-import java.util.Enumeration;
 
 import org.json.JSONObject;
-import org.json.JSONTokener;
 
 import java.io.IOException;
 
@@ -20,19 +24,101 @@ import java.io.IOException;
  * and mobile apps connecting to a JsonRPC server where the client and server
  * communicate using TCP/IP stream-based sockets.
  *
+ * Besides the students by name the collection keeps two indexes: students
+ * by studentid (StudentIdIndex) and the students taking each course.
+ *
+ * Nearly all calls only read, so reads take no lock: the students are in a
+ * ConcurrentHashMap, the students of a course in a concurrent set and
+ * Students themselves are immutable. add, remove and resetFromJsonFile are
+ * synchronized among themselves only; a reader sees a student either before
+ * or after a change, never half done (while add replaces a student a course
+ * may briefly list both). resetFromJsonFile builds the new contents aside
+ * and swaps them in at once. getNames copies the names once per change.
+ *
+ * Changes are kept on disk by a StudentLog: add and remove append a record
+ * to the log and answer once it is on disk. A change shows in the
+ * collection only then, in the order of the log; if the record cannot be
+ * written the change is dropped and the call answers false. After
+ * SNAPSHOT_RECORDS records a new students.json is written in the
+ * background; saveToJsonFile writes one right away. resetFromJsonFile loads
+ * students.json and replays the log, which gives the collection as of the
+ * last change; if that fails the collection stays as it was. It is then
+ * not what the files hold, so no snapshot is written (it would replace
+ * students.json and delete segments with changes the collection lacks)
+ * until a reset succeeds; changes are still logged.
+ *
  * @author Tim Lindquist
  * @version April 2020
  *
  **/
 class StudentCollectionImpl extends Object implements StudentCollection{
 
-   public Hashtable<String,Student> students;
    private static final boolean debugOn = false;
    private static final String studentJsonFileName = "students.json";
+   private static final Student[] NONE = new Student[0];
+   /** log records after which a snapshot is taken, -Drpc.snapshotRecords */
+   static final int SNAPSHOT_RECORDS = Integer.getInteger("rpc.snapshotRecords", 10000);
+   /** changes waiting for their log record, more are refused */
+   static final int MAX_UNAPPLIED = 65536;
+
+   private volatile ConcurrentHashMap<String,Student> students;
+   private volatile StudentIdIndex byId;
+   private volatile ConcurrentHashMap<String,Set<Student>> byCourse;
+   /** count of changes, tells whether the names snapshot is current */
+   private volatile long version;
+   private volatile Names names;
+   /** null: changes are kept in memory only */
+   private final StudentLog log;
+   private final ExecutorService snapshots;
+   private final AtomicBoolean snapshotting = new AtomicBoolean();
+   /** changes in the log that are not applied yet, in log order; guarded by this */
+   private final ArrayDeque<Change> unapplied = new ArrayDeque<Change>();
+   /** the last reset failed, snapshots are refused until one succeeds */
+   private volatile boolean resetFailed;
+
+   /** an add (student) or a remove (name) waiting for its log record */
+   private static final class Change {
+      final StudentLog.Ticket ticket;
+      final Student student;
+      final String name;
+
+      Change(StudentLog.Ticket ticket, Student student, String name) {
+         this.ticket = ticket;
+         this.student = student;
+         this.name = name;
+      }
+   }
+
+   /** names of the students as of a version of the collection */
+   private static final class Names {
+      final long version;
+      final String[] names;
+
+      Names(long version, String[] names) {
+         this.version = version;
+         this.names = names;
+      }
+   }
 
    public StudentCollectionImpl() {
+      this(new StudentLog(new File(studentJsonFileName)));
+   }
+
+   /**
+    * @param log keeps the collection, null for a collection in memory only
+    *        that starts empty
+    */
+   StudentCollectionImpl(StudentLog log) {
       debug("creating a new student collection");
-      students = new Hashtable<String,Student>();
+      this.log = log;
+      snapshots = Executors.newSingleThreadExecutor(r -> {
+         Thread t = new Thread(r, "student-snapshots");
+         t.setDaemon(true);
+         return t;
+      });
+      students = new ConcurrentHashMap<String,Student>();
+      byId = new StudentIdIndex();
+      byCourse = new ConcurrentHashMap<String,Set<Student>>();
       try{
          this.resetFromJsonFile();
       }catch(Exception ex){
@@ -46,84 +132,279 @@ class StudentCollectionImpl extends Object implements StudentCollection{
          System.out.println("debug: "+message);
    }
 
-   public boolean resetFromJsonFile() {
+   /**
+    * Adds the student, replacing the one of the same name
+    */
+   private void put(Student stud) {
+      Student old = students.put(stud.name, stud);
+      if (old != null) {
+         unindex(old);
+      }
+      byId.add(stud);
+      for (String course : stud.takes()) {
+         byCourse.computeIfAbsent(course, c -> ConcurrentHashMap.newKeySet()).add(stud);
+      }
+   }
+
+   /**
+    * Applies the changes whose records are on disk, in log order, and drops
+    * those lost with a failed write. The caller holds this.
+    */
+   private void applyWritten() {
+      Change change;
+      while ((change = unapplied.peek()) != null) {
+         int status = log.status(change.ticket);
+         if (status == StudentLog.PENDING) {
+            break;
+         }
+         unapplied.poll();
+         if (status == StudentLog.WRITTEN) {
+            if (change.student != null) {
+               put(change.student);
+            } else {
+               Student old = students.remove(change.name);
+               if (old != null) {
+                  unindex(old);
+               }
+            }
+            version++;
+         }
+      }
+   }
+
+   private void unindex(Student stud) {
+      byId.remove(stud);
+      for (String course : stud.takes()) {
+         Set<Student> takers = byCourse.get(course);
+         if (takers != null) {
+            takers.remove(stud);
+            if (takers.isEmpty()) {
+               byCourse.remove(course);
+            }
+         }
+      }
+   }
+
+   public synchronized boolean resetFromJsonFile() {
       boolean ret = true;
-      try{
-         students.clear();
-         String fileName = studentJsonFileName;
-         File f = new File(fileName);
-         FileInputStream is = new FileInputStream(f);
-         JSONObject studentMap = new JSONObject(new JSONTokener(is));
-         Iterator<String> it = studentMap.keys();
-         while (it.hasNext()){
-            String mType = it.next();
-            JSONObject studentJson = studentMap.optJSONObject(mType);
-            Student stud = new Student(studentJson);
-            students.put(stud.name, stud);
-            debug("added "+stud.name+" : "+stud.toJsonString()+
-                  "\nstudents.size() is: " + students.size());
+      ConcurrentHashMap<String,Student> newStudents = new ConcurrentHashMap<String,Student>();
+      StudentIdIndex newById = new StudentIdIndex();
+      ConcurrentHashMap<String,Set<Student>> newByCourse = new ConcurrentHashMap<String,Set<Student>>();
+      int replayed = 0;
+      if (log != null) {
+         try{
+            replayed = log.lockFiles(() -> {
+               loadSnapshot(newStudents);
+               return log.recover(newStudents);
+            });
+            debug("replayed "+replayed+" log records, students.size() is: "+newStudents.size());
+         }catch (Exception ex){
+            // a partly read collection would drop changes that were answered
+            System.out.println("Exception reading json file: "+ex.getMessage());
+            resetFailed = true;
+            return false;
          }
+         resetFailed = false;
+         // the replay holds every change that was written, the others are lost
+         unapplied.clear();
+      }
+      for (Student stud : newStudents.values()) {
+         newById.add(stud);
+         for (String course : stud.takes()) {
+            newByCourse.computeIfAbsent(course, c -> ConcurrentHashMap.newKeySet()).add(stud);
+         }
+      }
+      students = newStudents;
+      byId = newById;
+      byCourse = newByCourse;
+      version++;
+      if (ret && replayed >= SNAPSHOT_RECORDS) {
+         // a long log slows down the next start, compact it
+         snapshotDue();
+      }
+      return ret;
+   }
+
+   /**
+    * Puts the students of students.json into the map, a missing file is an
+    * empty collection (the log may still hold students)
+    */
+   private void loadSnapshot(Map<String,Student> into) throws IOException {
+      File f = log.snapshotFile();
+      if (f.exists()) {
+         StudentJsonReader.read(f, into);
+         debug("loaded "+into.size()+" students from "+f.getName());
+      }
+   }
+
+   /**
+    * Starts a snapshot in the background once the log has grown enough,
+    * the caller holds this
+    */
+   private void snapshotIfDue() {
+      if (log != null && log.segmentRecords() >= SNAPSHOT_RECORDS) {
+         snapshotDue();
+      }
+   }
+
+   private void snapshotDue() {
+      if (resetFailed || !snapshotting.compareAndSet(false, true)) {
+         return;
+      }
+      try{
+         startSnapshot();
       }catch (Exception ex){
-         System.out.println("Exception reading json file: "+ex.getMessage());
+         System.out.println("Exception starting a snapshot: "+ex.getMessage());
+         snapshotting.set(false);
+      }
+   }
+
+   /**
+    * Moves the log to a new segment and writes the students in the
+    * background, the caller holds this
+    */
+   private Future<?> startSnapshot() throws IOException {
+      long firstSegment = log.roll();
+      // the older segments go away with the snapshot, it must have their changes
+      applyWritten();
+      Collection<Student> current = students.values();
+      return snapshots.submit(() -> {
+         try{
+            log.snapshot(current, firstSegment);
+         }finally{
+            snapshotting.set(false);
+         }
+         return null;
+      });
+   }
+
+   /**
+    * Waits for the record of a change and applies it with the changes
+    * before it; the sync is shared with concurrent writers, so it is done
+    * without holding this
+    * @return false if the record was lost, the change is then dropped
+    */
+   private boolean written(StudentLog.Ticket ticket) {
+      boolean ret = true;
+      try{
+         log.sync(ticket);
+      }catch (IOException ex){
+         System.out.println("Exception writing the log: "+ex.getMessage());
          ret = false;
       }
+      synchronized (this) {
+         applyWritten();
+      }
       return ret;
    }
 
+   /**
+    * Writes students.json now, changes made meanwhile are not held up
+    */
    public boolean saveToJsonFile() {
+      if (log == null) {
+         return false;
+      }
       boolean ret = true;
       try {
-         String jsonStr;
-         JSONObject obj = new JSONObject();
-         for (Enumeration<String> e = students.keys(); e.hasMoreElements();){
-            Student aStud = students.get((String)e.nextElement());
-            obj.put(aStud.name,aStud.toJson());
+         Future<?> done;
+         synchronized (this) {
+            if (resetFailed) {
+               System.out.println("Not writing json file: the collection could not be read from the files, reset it first");
+               return false;
+            }
+            snapshotting.set(true);
+            done = startSnapshot();
          }
-         PrintWriter out = new PrintWriter(studentJsonFileName);
-         out.println(obj.toString(2));
-         out.close();
+         done.get();
       }catch(Exception ex){
+         System.out.println("Exception writing json file: "+ex.getMessage());
+         snapshotting.set(false);
          ret = false;
       }
       return ret;
    }
    
    public boolean add(Student aStud) {
-      boolean ret = true;
       debug("adding student named: "+((aStud==null)?"unknown":aStud.name));
-      try{
-         students.put(aStud.name,aStud);
-      }catch(Exception ex){
-         ret = false;
+      StudentLog.Ticket ticket;
+      synchronized (this) {
+         if (log == null) {
+            put(aStud);
+            version++;
+            return true;
+         }
+         if (unapplied.size() >= MAX_UNAPPLIED) {
+            System.out.println("Exception adding student: too many changes wait for the log");
+            return false;
+         }
+         try{
+            ticket = log.append(StudentLog.addRecord(aStud));
+         }catch(Exception ex){
+            System.out.println("Exception adding student: "+ex.getMessage());
+            return false;
+         }
+         unapplied.add(new Change(ticket, aStud, null));
+         snapshotIfDue();
       }
-      return ret;
+      return written(ticket);
    }
 
    public boolean remove(String aName) {
       debug("removing student named: "+aName);
-      return ((students.remove(aName)==null)?false:true);
+      StudentLog.Ticket ticket;
+      synchronized (this) {
+         if (!students.containsKey(aName)) {
+            return false;
+         }
+         if (log == null) {
+            unindex(students.remove(aName));
+            version++;
+            return true;
+         }
+         if (unapplied.size() >= MAX_UNAPPLIED) {
+            System.out.println("Exception writing the log: too many changes wait for the log");
+            return false;
+         }
+         try{
+            ticket = log.append(StudentLog.removeRecord(aName));
+         }catch(Exception ex){
+            System.out.println("Exception writing the log: "+ex.getMessage());
+            return false;
+         }
+         unapplied.add(new Change(ticket, null, aName));
+         snapshotIfDue();
+      }
+      return written(ticket);
    }
 
+   /**
+    * The names are copied once per change of the collection, not per call
+    */
    public String[] getNames() {
-      String[] ret = {};
-      debug("getting "+students.size()+" student names.");
-      if(students.size()>0){
-         ret = (String[])(students.keySet()).toArray(new String[0]);
+      long current = version;
+      Names snapshot = names;
+      if (snapshot == null || snapshot.version != current) {
+         snapshot = new Names(current, students.keySet().toArray(new String[0]));
+         names = snapshot;
       }
-      return ret;
+      debug("getting "+snapshot.names.length+" student names.");
+      return snapshot.names.clone();
    }
    
    public String getNameById(int id) {
-      String ret = "unknown";
-      String[] keys = (String[])(students.keySet()).toArray(new String[0]);
-      for (int i=0; i< keys.length; i++){
-         Student aStud = students.get(keys[i]);
-         if (aStud.studentid==id){
-            ret = aStud.name;
-            break;
-         }
-      }
-      return ret;
+      Student aStud = byId.first(id);
+      return aStud == null ? "unknown" : aStud.name;
+   }
+
+   public Student[] getByCourse(String course) {
+      Set<Student> takers = byCourse.get(course);
+      return takers == null ? NONE : takers.toArray(NONE);
+   }
+
+   public int countByCourse(String course) {
+      Set<Student> takers = byCourse.get(course);
+      return takers == null ? 0 : takers.size();
    }
    
    public Student get(String aName) {
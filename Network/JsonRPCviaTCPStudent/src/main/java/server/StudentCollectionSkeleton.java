@@ -3,8 +3,11 @@ package server;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.stream.IntStream;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONArray;
+import org.json.JSONTokener;
 
 /**
  * A class for client-server connections with a threaded server.
@@ -13,12 +16,29 @@ import org.json.JSONArray;
  * thread is created to service the call and create the appropriate response.
  * Byte arrays are used for communication to support multiple langs.
  *
+ * A request may also be a JSON-RPC 2.0 batch, an array of calls that is
+ * answered with an array of their responses. Calls without an id are
+ * notifications: they are executed but get no response, a batch of only
+ * notifications is answered with nothing at all. Consecutive calls that
+ * only read run in parallel; a call that changes the collection waits for
+ * the calls before it and the calls after it wait for it.
+ *
+ * Calls are dispatched through MethodRegistry, which serves every method
+ * of StudentCollection. Errors are answered as JSON-RPC error objects:
+ * -32601 for an unknown method, -32602 for parameters that do not fit it
+ * and -32603 if the method fails.
+ *
  * @author Tim Lindquist ASU Polytechnic Department of Engineering
  * @version April 2020
  */
 public class StudentCollectionSkeleton extends Object {
 
    private static final boolean debugOn = false;
+   /** methods that do not change the collection and can run in parallel */
+   private static final Set<String> readOnly = new HashSet<String>(
+      Arrays.asList("get", "getNameById", "getNames", "getByCourse", "countByCourse"));
+   /** reads of a batch that are run one after the other anyway */
+   private static final int parallelThreshold = 4;
    StudentCollection studLib;
 
    public StudentCollectionSkeleton (StudentCollection studLib){
@@ -30,57 +50,120 @@ public class StudentCollectionSkeleton extends Object {
          System.out.println("debug: "+message);
    }
 
+   /**
+    * Executes a call or a batch of calls
+    * @param request a JSON-RPC request object or an array of them
+    * @return the response object or array, an empty string if there is
+    *         nothing to answer (notifications only)
+    */
    public String callMethod(String request){
-      JSONObject result = new JSONObject();
+      Object parsed;
       try{
-         JSONObject theCall = new JSONObject(request);
-         debug("Request is: "+theCall.toString());
-         String method = theCall.getString("method");
-         int id = theCall.getInt("id");
-         JSONArray params = null;
-         if(!theCall.isNull("params")){
-            params = theCall.getJSONArray("params");
+         parsed = new JSONTokener(request).nextValue();
+      }catch(JSONException ex){
+         return error(JSONObject.NULL, -32700, "Parse error").toString();
+      }
+      if (parsed instanceof JSONArray) {
+         return callBatch((JSONArray)parsed);
+      }
+      if (!(parsed instanceof JSONObject)) {
+         return error(JSONObject.NULL, -32600, "Invalid Request").toString();
+      }
+      JSONObject result = call((JSONObject)parsed);
+      return result == null ? "" : result.toString();
+   }
+
+   /**
+    * Runs the calls of a batch, reads in parallel between the writes
+    * @return the array of responses in the order of the calls, notifications
+    *         left out; an empty string if every call was a notification
+    */
+   private String callBatch(JSONArray batch){
+      if (batch.length() == 0) {
+         return error(JSONObject.NULL, -32600, "Invalid Request: empty batch").toString();
+      }
+      JSONObject[] responses = new JSONObject[batch.length()];
+      int readsFrom = 0;
+      for (int i = 0; i < batch.length(); i++) {
+         JSONObject theCall = batch.optJSONObject(i);
+         if (theCall != null && readOnly.contains(theCall.optString("method"))) {
+            continue;
+         }
+         // a write (or an invalid entry): finish the reads before it first
+         runReads(batch, responses, readsFrom, i);
+         responses[i] = theCall == null ? error(JSONObject.NULL, -32600, "Invalid Request")
+            : call(theCall);
+         readsFrom = i + 1;
+      }
+      runReads(batch, responses, readsFrom, batch.length());
+
+      JSONArray result = new JSONArray();
+      for (JSONObject response : responses) {
+         if (response != null) {
+            result.put(response);
          }
-         result.put("id",id);
-         result.put("jsonrpc","2.0");
-         if(method.equals("add")){
-            JSONObject studJson = params.getJSONObject(0);
-            Student studToAdd = new Student(studJson);
-            debug("adding stud: "+studToAdd.toJsonString());
-            studLib.add(studToAdd);
-            result.put("result",true);
-         }else if(method.equals("remove")){
-            String studName = params.getString(0);
-            debug("removing student named "+studName);
-            studLib.remove(studName);
-            result.put("result",true);
-         }else if(method.equals("getNameById")){
-            int studNum = params.getInt(0);
-            debug("getNameById for student number "+studNum);
-            String name = studLib.getNameById(studNum);
-            result.put("result",name);
-         }else if(method.equals("get")){
-            String studName = params.getString(0);
-            Student stud = studLib.get(studName);
-            JSONObject studJson = stud.toJson();
-            debug("get request found: "+studJson.toString());
-            result.put("result",studJson);
-         }else if(method.equals("getNames")){
-            String[] names = studLib.getNames();
-            JSONArray resArr = new JSONArray();
-            for (int i=0; i<names.length; i++){
-               resArr.put(names[i]);
+      }
+      return result.length() == 0 ? "" : result.toString();
+   }
+
+   private void runReads(JSONArray batch, JSONObject[] responses, int from, int to){
+      IntStream reads = IntStream.range(from, to);
+      if (to - from >= parallelThreshold) {
+         reads = reads.parallel();
+      }
+      reads.forEach(i -> responses[i] = call(batch.getJSONObject(i)));
+   }
+
+   /**
+    * Executes a single call through the handler of its method
+    * @return the response, null for a notification
+    */
+   private JSONObject call(JSONObject theCall){
+      boolean notification = !theCall.has("id");
+      Object id = notification ? JSONObject.NULL : theCall.get("id");
+      if (debugOn) {
+         // the request text is not built unless it is printed
+         debug("Request is: "+theCall.toString());
+      }
+      Object method = theCall.opt("method");
+      Object params = theCall.opt("params");
+      JSONObject result;
+      if (!(method instanceof String)
+          || (params != null && params != JSONObject.NULL && !(params instanceof JSONArray))) {
+         // named parameters (an object) are not supported either
+         result = error(id, -32600, "Invalid Request");
+      } else {
+         MethodRegistry.Handler handler = MethodRegistry.get((String)method);
+         if (handler == null) {
+            debug("Unable to match method: "+method);
+            result = error(id, -32601, "Method not found: "+method);
+         } else {
+            try{
+               result = new JSONObject();
+               result.put("id",id);
+               result.put("jsonrpc","2.0");
+               Object value = handler.invoke(studLib,
+                  params instanceof JSONArray ? (JSONArray)params : null);
+               result.put("result",value == null ? JSONObject.NULL : value);
+            }catch(MethodRegistry.InvalidParamsException ex){
+               result = error(id, -32602, "Invalid params: "+ex.getMessage());
+            }catch(Throwable ex){
+               System.out.println("exception in callMethod: "+ex.getMessage());
+               result = error(id, -32603, "Internal error");
             }
-            debug("getNames request found: "+resArr.toString());
-            result.put("result",resArr);
-         }else{
-            debug("Unable to match method: "+method+". Returning 0.");
-            result.put("result",0.0);
          }
-      }catch(Exception ex){
-         System.out.println("exception in callMethod: "+ex.getMessage());
       }
-      return result.toString();
+      return notification ? null : result;
    }
-}
 
+   private static JSONObject error(Object id, int code, String message){
+      JSONObject error = new JSONObject();
+      error.put("code",code);
+      error.put("message",message);
+      JSONObject result = new JSONObject();
+      result.put("id",id);
+      result.put("jsonrpc","2.0");
+      result.put("error",error);
+      return result;
+   }
+}
@@ -3,76 +3,241 @@ package server;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import org.json.JSONObject;
 
 /**
  * A class for TCP client-server connections with a threaded server that
  * implements JsonRPC method calls for a collection of Students.
  *
+ * In framed mode (the default) every request and response is one line of
+ * JSON (see Framing) and a connection stays open for any number of calls.
+ * The calls of a connection run on a shared pool of workers, so a client
+ * may send several calls without waiting; each response is sent as soon
+ * as it is ready and carries the id of its request, which is how the
+ * client matches them up. Responses are written by a thread of the
+ * connection, never by a worker, so a client that reads slowly holds up
+ * only its own connection. At most MAX_IN_FLIGHT calls of a connection
+ * are running or waiting to be written, further requests are read once
+ * one of them has been answered.
+ *
+ * In oneshot mode a connection carries a single unframed request and its
+ * response, as in the original example.
+ *
  * Ser321 Foundations of Distributed Software Systems
  * @author Tim Lindquist Tim.Lindquist@asu.edu
  *         Software Engineering, CIDSE, IAFSE, ASU Poly
  * @version April 2020
  */
 public class StudentCollectionTCPJsonRPCServer extends Thread {
+   private static final boolean debugOn = false;
+   /** calls of one connection that may run at the same time */
+   public static final int MAX_IN_FLIGHT = 32;
+   /** put in the response queue after the last response of a connection */
+   private static final String END_OF_RESPONSES = new String("end");
+
    private Socket conn;
    private int id;
    private StudentCollectionSkeleton skeleton;
+   private boolean framed;
+   private ExecutorService workers;
 
+   /**
+    * Serves one unframed call on the connection (oneshot mode)
+    */
    public StudentCollectionTCPJsonRPCServer (Socket sock, int id,
                                              StudentCollection stdCol) {
+      this(sock, id, stdCol, false, null);
+   }
+
+   /**
+    * @param framed true for newline framed, persistent connections
+    * @param workers runs the calls of framed connections
+    */
+   public StudentCollectionTCPJsonRPCServer (Socket sock, int id,
+                                             StudentCollection stdCol,
+                                             boolean framed,
+                                             ExecutorService workers) {
       this.conn = sock;
       this.id = id;
+      this.framed = framed;
+      this.workers = workers;
       skeleton = new StudentCollectionSkeleton(stdCol);
    }
 
+   private void debug(String message) {
+      if (debugOn)
+         System.out.println("debug: "+message);
+   }
+
    public void run() {
       // setup connection
       try {
-         OutputStream outSock = conn.getOutputStream();
-         InputStream inSock = conn.getInputStream();
-         byte clientInput[] = new byte[1024]; // up to 1024 bytes in a message.
-         
-         // receive request
-         int numr = inSock.read(clientInput,0,1024);
-         if (numr != -1) {
-            //System.out.println("read "+numr+" bytes");
-            String request = new String(clientInput,0,numr);
-            System.out.println("request is: "+request);
-
-            // prep and send response
-            String response = skeleton.callMethod(request);
-            byte clientOut[] = response.getBytes();
-	         outSock.write(clientOut,0,clientOut.length);
-            System.out.println("response is: "+response);
+         if (framed) {
+            serveFramed();
+         } else {
+            serveOneShot();
          }
-         inSock.close();
-         outSock.close();
-         conn.close();
       } catch (IOException e) {
          System.out.println("I/O exception occurred for the connection:\n"+e.getMessage());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } finally {
+         try {
+            conn.close();
+         } catch (IOException e) {
+            // nothing left to do with it
+         }
       }
    }
-    
+
+   /**
+    * One request, read up to the end of its JSON text, and one response
+    */
+   private void serveOneShot() throws IOException {
+      OutputStream outSock = conn.getOutputStream();
+      InputStream inSock = new BufferedInputStream(conn.getInputStream());
+      String request;
+      try {
+         request = Framing.readJsonText(inSock, Framing.MAX_MESSAGE_BYTES);
+      } catch (Framing.MessageTooLargeException e) {
+         outSock.write(tooLarge(e).getBytes("UTF-8"));
+         return;
+      }
+      if (request != null) {
+         debug("request is: "+request);
+
+         // prep and send response
+         String response = skeleton.callMethod(request);
+         byte clientOut[] = response.getBytes("UTF-8");
+         outSock.write(clientOut,0,clientOut.length);
+         debug("response is: "+response);
+      }
+   }
+
+   /**
+    * Reads requests until the client closes the connection, every call runs
+    * on a worker and queues its response for the writer of the connection
+    */
+   private void serveFramed() throws IOException, InterruptedException {
+      InputStream inSock = new BufferedInputStream(conn.getInputStream());
+      OutputStream outSock = new BufferedOutputStream(conn.getOutputStream());
+      // a permit is given back once the response of the call is written
+      Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+      BlockingQueue<String> responses = new LinkedBlockingQueue<String>();
+      Thread writer = new Thread(() -> writeResponses(outSock, responses, inFlight),
+                                 "student-writer-"+id);
+      writer.start();
+      String last = null;
+      try {
+         try {
+            String request;
+            while ((request = Framing.readFrame(inSock, Framing.MAX_MESSAGE_BYTES)) != null) {
+               if (request.trim().isEmpty()) {
+                  continue;
+               }
+               inFlight.acquire();
+               final String call = request;
+               workers.execute(() -> {
+                  boolean queued = false;
+                  try {
+                     debug("request is: "+call);
+                     String response = skeleton.callMethod(call);
+                     // notifications are not answered
+                     if (!response.isEmpty()) {
+                        responses.add(response);
+                        queued = true;
+                     }
+                     debug("response is: "+response);
+                  } finally {
+                     if (!queued) {
+                        inFlight.release();
+                     }
+                  }
+               });
+            }
+         } catch (Framing.MessageTooLargeException e) {
+            // the rest of the message is still unread, the connection is lost
+            last = tooLarge(e);
+         }
+         // let the calls still running answer before the socket is closed
+         inFlight.acquire(MAX_IN_FLIGHT);
+         if (last != null) {
+            responses.add(last);
+         }
+      } finally {
+         responses.add(END_OF_RESPONSES);
+      }
+      writer.join();
+   }
+
+   /**
+    * Writes the responses of a connection in the order they are queued,
+    * until END_OF_RESPONSES. After a failed write the remaining responses
+    * are dropped, their calls still count as answered.
+    */
+   private static void writeResponses(OutputStream outSock, BlockingQueue<String> responses,
+                                      Semaphore inFlight) {
+      boolean failed = false;
+      try {
+         String response;
+         while ((response = responses.take()) != END_OF_RESPONSES) {
+            try {
+               if (!failed) {
+                  Framing.writeFrame(outSock, response);
+               }
+            } catch (IOException e) {
+               // the client is gone, the reader notices as well
+               failed = true;
+            } finally {
+               inFlight.release();
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private static String tooLarge(Framing.MessageTooLargeException e) {
+      JSONObject error = new JSONObject();
+      error.put("code", -32600);
+      error.put("message", "Invalid Request: " + e.getMessage());
+      JSONObject response = new JSONObject();
+      response.put("jsonrpc", "2.0");
+      response.put("id", JSONObject.NULL);
+      response.put("error", error);
+      return response.toString();
+   }
+
    public static void main (String args[]) {
       Socket sock;
       StudentCollection studCol = new StudentCollectionImpl();
       int id=0;
       try {
-         if (args.length != 1) {
-            System.out.println("Expected Arguments: <port(int)>");
+         if (args.length < 1 || args.length > 2) {
+            System.out.println("Expected Arguments: <port(int)> [framed|oneshot]");
             System.exit(0);
          }
          int portNo = Integer.parseInt(args[0]);
          if (portNo <= 1024) portNo=8888;
+         boolean framed = args.length < 2 || !args[1].equalsIgnoreCase("oneshot");
+         ExecutorService workers = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors() * 2);
          ServerSocket serv = new ServerSocket(portNo);
          // accept client requests. For each request create a new thread to handle
-         while (true) { 
-            System.out.println("Student server waiting for connects on port "
-                               +portNo);
+         while (true) {
+            System.out.println("Student server waiting for "
+                               +(framed ? "framed" : "oneshot")
+                               +" connects on port "+portNo);
             sock = serv.accept();
             System.out.println("Student server connected to client: "+id);
             StudentCollectionTCPJsonRPCServer myServerThread =
-               new StudentCollectionTCPJsonRPCServer(sock,id++,studCol);
+               new StudentCollectionTCPJsonRPCServer(sock,id++,studCol,framed,workers);
             myServerThread.start();
          }
       } catch(Exception e) {e.printStackTrace();}
@@ -0,0 +1,181 @@
+package server;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Purpose: index of students by studentid, an open addressing hash table
+ * on primitive int keys (no boxing, one probe in the common case).
+ *
+ * Student ids are not required to be unique, so a key maps to all the
+ * students that have it, usually just one. Changes must come from one
+ * thread at a time (the collection's writers are synchronized). Lookups
+ * take no lock: they read optimistically and only if a change overlapped
+ * them do they wait for it and read again.
+ *
+ * Ser321 Foundations of Distributed Software Systems
+ */
+class StudentIdIndex {
+
+   /** keys and values of the same capacity, replaced together when growing */
+   private static final class Table {
+      final int[] keys;
+      final Student[][] values;
+
+      Table(int capacity) {
+         keys = new int[capacity];
+         values = new Student[capacity][];
+      }
+   }
+
+   private final StampedLock lock = new StampedLock();
+   private volatile Table table = new Table(16);
+   private int size;
+
+   /**
+    * @return a student with this id, null if there is none
+    */
+   Student first(int id) {
+      Student[] found = lookup(id);
+      return found == null ? null : found[0];
+   }
+
+   private Student[] lookup(int id) {
+      long stamp = lock.tryOptimisticRead();
+      if (stamp != 0) {
+         Student[] found = find(table, id);
+         if (lock.validate(stamp)) {
+            return found;
+         }
+      }
+      stamp = lock.readLock();
+      try {
+         return find(table, id);
+      } finally {
+         lock.unlockRead(stamp);
+      }
+   }
+
+   void add(Student stud) {
+      long stamp = lock.writeLock();
+      try {
+         Table t = table;
+         int slot = slot(t, stud.studentid);
+         Student[] found = t.values[slot];
+         if (found == null) {
+            t.keys[slot] = stud.studentid;
+            t.values[slot] = new Student[]{stud};
+            if (++size * 2 > t.keys.length) {
+               grow();
+            }
+         } else {
+            Student[] more = Arrays.copyOf(found, found.length + 1);
+            more[found.length] = stud;
+            t.values[slot] = more;
+         }
+      } finally {
+         lock.unlockWrite(stamp);
+      }
+   }
+
+   void remove(Student stud) {
+      long stamp = lock.writeLock();
+      try {
+         Table t = table;
+         int slot = slot(t, stud.studentid);
+         Student[] found = t.values[slot];
+         if (found == null) {
+            return;
+         }
+         int at = -1;
+         for (int i = 0; i < found.length; i++) {
+            if (found[i] == stud) {
+               at = i;
+            }
+         }
+         if (at < 0) {
+            return;
+         }
+         if (found.length > 1) {
+            Student[] fewer = new Student[found.length - 1];
+            System.arraycopy(found, 0, fewer, 0, at);
+            System.arraycopy(found, at + 1, fewer, at, found.length - at - 1);
+            t.values[slot] = fewer;
+            return;
+         }
+         deleteSlot(t, slot);
+      } finally {
+         lock.unlockWrite(stamp);
+      }
+   }
+
+   /**
+    * Lookup that may race with a change: the probe ends at an empty slot,
+    * and at most half the slots (plus one while deleting) are in use
+    */
+   private static Student[] find(Table t, int id) {
+      int mask = t.keys.length - 1;
+      int slot = mix(id) & mask;
+      Student[] found;
+      while ((found = t.values[slot]) != null) {
+         if (t.keys[slot] == id) {
+            return found;
+         }
+         slot = (slot + 1) & mask;
+      }
+      return null;
+   }
+
+   /**
+    * @return the slot of the key, or the empty slot where it belongs
+    */
+   private static int slot(Table t, int id) {
+      int mask = t.keys.length - 1;
+      int slot = mix(id) & mask;
+      while (t.values[slot] != null && t.keys[slot] != id) {
+         slot = (slot + 1) & mask;
+      }
+      return slot;
+   }
+
+   /**
+    * Removes a slot and moves later entries of the probe sequence back, so
+    * no tombstones are needed (linear probing deletion)
+    */
+   private void deleteSlot(Table t, int slot) {
+      int mask = t.keys.length - 1;
+      t.values[slot] = null;
+      size--;
+      int next = (slot + 1) & mask;
+      while (t.values[next] != null) {
+         int home = mix(t.keys[next]) & mask;
+         // move the entry if its home is not between the hole and its slot
+         if (((next - home) & mask) >= ((next - slot) & mask)) {
+            t.keys[slot] = t.keys[next];
+            t.values[slot] = t.values[next];
+            t.values[next] = null;
+            slot = next;
+         }
+         next = (next + 1) & mask;
+      }
+   }
+
+   private void grow() {
+      Table old = table;
+      Table bigger = new Table(old.keys.length * 2);
+      for (int i = 0; i < old.keys.length; i++) {
+         if (old.values[i] != null) {
+            int slot = slot(bigger, old.keys[i]);
+            bigger.keys[slot] = old.keys[i];
+            bigger.values[slot] = old.values[i];
+         }
+      }
+      table = bigger;
+   }
+
+   private static int mix(int id) {
+      // ids are often sequential, spread them over the table
+      int h = id * 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }
+}
@@ -0,0 +1,502 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Purpose: reads students.json (an object of students by name) straight
+ * into Students, without building JSONObjects first.
+ *
+ * The file is read into one buffer and parsed byte by byte, so besides its
+ * bytes the heap only holds the Students. It is not mapped: on Windows a
+ * mapped file cannot be replaced until the mapping is garbage collected,
+ * which would hold up the snapshots that are renamed over students.json.
+ * Larger files are split into ranges of whole entries that are parsed in
+ * parallel on the common fork-join pool; the split points are found by a
+ * quick pass over the bytes that only follows strings and nesting.
+ * Courses go straight to their codes (CourseCodes).
+ *
+ * Only what students.json holds is understood: the value of each entry is
+ * a student object with name, studentid and takes, other fields are
+ * skipped. As in Student(JSONObject) a missing name is "unknown" and a
+ * missing studentid 0. A file this strict parse refuses, such as one with
+ * a trailing comma or unquoted names that org.json lets through, is read
+ * again with JSONObject, so whatever the former loader took is still taken.
+ * Files of 2 GB and more do not fit in one buffer and are refused.
+ *
+ * Ser321 Foundations of Distributed Software Systems
+ */
+class StudentJsonReader {
+
+   /** files from this size on are parsed in parallel, -Drpc.parallelLoadBytes */
+   static final long PARALLEL_BYTES = Long.getLong("rpc.parallelLoadBytes", 4L * 1024 * 1024);
+
+   private final ByteBuffer buf;
+   /** for bulk reads of strings */
+   private final ByteBuffer view;
+   private int pos;
+   private final int end;
+   /** course codes of the student being read */
+   private int[] takes = new int[8];
+   /** and their names, used only if one got no code */
+   private String[] takeNames = new String[8];
+   private int taken;
+   private boolean uncoded;
+   private byte[] chars = new byte[64];
+
+   private StudentJsonReader(ByteBuffer buf, int from, int to) {
+      this.buf = buf;
+      this.view = buf.duplicate();
+      this.pos = from;
+      this.end = to;
+   }
+
+   /**
+    * Reads the students of the file into the map, by name; an entry that
+    * comes later replaces one of the same name
+    */
+   static void read(File file, Map<String,Student> into) throws IOException {
+      read(file, into, file.length() >= PARALLEL_BYTES
+           ? Runtime.getRuntime().availableProcessors() : 1);
+   }
+
+   /**
+    * @param parallelism number of ranges the file is split into, at most
+    */
+   static void read(File file, Map<String,Student> into, int parallelism) throws IOException {
+      ByteBuffer buf;
+      try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+         if (ch.size() > Integer.MAX_VALUE - 8) {
+            throw new IOException(file + " is larger than 2 GB");
+         }
+         buf = ByteBuffer.allocate((int) ch.size());
+         while (buf.hasRemaining() && ch.read(buf) >= 0) {
+            // until full, or the end if the file got shorter meanwhile
+         }
+         buf.flip();
+      }
+      Map<String,Student> read = new HashMap<String,Student>();
+      try {
+         readStrict(buf, read, parallelism);
+      } catch (IOException strict) {
+         read.clear();
+         try {
+            readLenient(buf, read);
+         } catch (JSONException e) {
+            strict.addSuppressed(e);
+            throw strict;
+         }
+      }
+      into.putAll(read);
+   }
+
+   /**
+    * Reads the buffer as the former loader did, with JSONObject
+    */
+   private static void readLenient(ByteBuffer buf, Map<String,Student> into) {
+      JSONObject all = new JSONObject(new JSONTokener(new InputStreamReader(
+         new ByteArrayInputStream(buf.array(), 0, buf.limit()), StandardCharsets.UTF_8)));
+      for (String key : all.keySet()) {
+         Student stud = new Student(all.getJSONObject(key));
+         into.put(stud.name, stud);
+      }
+   }
+
+   private static void readStrict(ByteBuffer buf, Map<String,Student> into, int parallelism)
+         throws IOException {
+      int size = buf.limit();
+      StudentJsonReader outline = new StudentJsonReader(buf, 0, size);
+      outline.skipWhitespace();
+      outline.expect('{');
+      int first = outline.pos;
+      int close = outline.lastBrace();
+      int[] splits = parallelism > 1 ? outline.splits(first, close, parallelism) : new int[0];
+
+      int[] starts = new int[splits.length + 1];
+      int[] ends = new int[splits.length + 1];
+      starts[0] = first;
+      for (int i = 0; i < splits.length; i++) {
+         ends[i] = splits[i];
+         // the range after a split starts behind its comma
+         starts[i + 1] = splits[i] + 1;
+      }
+      ends[splits.length] = close;
+
+      List<List<Student>> ranges = new ArrayList<List<Student>>();
+      for (int i = 0; i < starts.length; i++) {
+         ranges.add(null);
+      }
+      IntStream indexes = IntStream.range(0, starts.length);
+      if (starts.length > 1) {
+         indexes = indexes.parallel();
+      }
+      try {
+         indexes.forEach(i -> ranges.set(i,
+            new StudentJsonReader(buf, starts[i], ends[i]).entries(i == 0)));
+      } catch (UncheckedIOException e) {
+         throw e.getCause();
+      }
+      for (List<Student> range : ranges) {
+         for (Student stud : range) {
+            into.put(stud.name, stud);
+         }
+      }
+   }
+
+   /**
+    * @return position of the closing brace of the top level object
+    */
+   private int lastBrace() throws IOException {
+      int at = end - 1;
+      while (at >= pos && isWhitespace(buf.get(at))) {
+         at--;
+      }
+      if (at < pos || buf.get(at) != '}') {
+         throw error("the file does not end with }");
+      }
+      return at;
+   }
+
+   /**
+    * Finds up to parts - 1 commas between entries of the top level object,
+    * each the first one after an equal share of the bytes
+    */
+   private int[] splits(int from, int to, int parts) {
+      int[] found = new int[parts - 1];
+      int count = 0;
+      long share = (to - from) / parts;
+      long next = from + share;
+      int depth = 0;
+      boolean inString = false;
+      for (int at = from; at < to && count < found.length; at++) {
+         byte b = buf.get(at);
+         if (inString) {
+            if (b == '\\') {
+               at++;
+            } else if (b == '"') {
+               inString = false;
+            }
+         } else if (b == '"') {
+            inString = true;
+         } else if (b == '{' || b == '[') {
+            depth++;
+         } else if (b == '}' || b == ']') {
+            depth--;
+         } else if (b == ',' && depth == 0 && at >= next) {
+            found[count++] = at;
+            next = at + share;
+         }
+      }
+      return count == found.length ? found : Arrays.copyOf(found, count);
+   }
+
+   /**
+    * Parses the entries "name":{...} separated by commas up to the end
+    * @param mayBeEmpty the first range of an empty object has no entries
+    */
+   private List<Student> entries(boolean mayBeEmpty) {
+      List<Student> studs = new ArrayList<Student>();
+      try {
+         skipWhitespace();
+         if (mayBeEmpty && pos == end) {
+            return studs;
+         }
+         while (true) {
+            skipWhitespace();
+            // the name is taken from the student
+            skipString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            studs.add(student());
+            skipWhitespace();
+            if (pos == end) {
+               return studs;
+            }
+            expect(',');
+         }
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   private Student student() throws IOException {
+      expect('{');
+      String name = "unknown";
+      int id = 0;
+      taken = 0;
+      uncoded = false;
+      skipWhitespace();
+      if (peek() == '}') {
+         pos++;
+         return new Student(name, id, new int[0]);
+      }
+      while (true) {
+         skipWhitespace();
+         String field = string();
+         skipWhitespace();
+         expect(':');
+         skipWhitespace();
+         if (field.equals("name") && peek() == '"') {
+            name = string();
+         } else if (field.equals("studentid") && isNumberStart(peek())) {
+            id = integer();
+         } else if (field.equals("studentid") && peek() == '"') {
+            // optInt takes a number in a string as well
+            String number = string();
+            try {
+               id = (int) Double.parseDouble(number);
+            } catch (NumberFormatException e) {
+               id = 0;
+            }
+         } else if (field.equals("takes") && peek() == '[') {
+            courses();
+         } else {
+            skipValue();
+         }
+         skipWhitespace();
+         byte b = next();
+         if (b == '}') {
+            return uncoded ? new Student(name, id, Arrays.copyOf(takeNames, taken))
+               : new Student(name, id, Arrays.copyOf(takes, taken));
+         }
+         if (b != ',') {
+            throw error("expected , or }");
+         }
+      }
+   }
+
+   private void courses() throws IOException {
+      expect('[');
+      skipWhitespace();
+      if (peek() == ']') {
+         pos++;
+         return;
+      }
+      while (true) {
+         skipWhitespace();
+         if (taken == takes.length) {
+            takes = Arrays.copyOf(takes, taken * 2);
+            takeNames = Arrays.copyOf(takeNames, taken * 2);
+         }
+         String course = string();
+         takeNames[taken] = course;
+         takes[taken] = CourseCodes.code(course);
+         uncoded |= takes[taken] == CourseCodes.NONE;
+         taken++;
+         skipWhitespace();
+         byte b = next();
+         if (b == ']') {
+            return;
+         }
+         if (b != ',') {
+            throw error("expected , or ]");
+         }
+      }
+   }
+
+   /**
+    * A number as optInt reads it: the integer part, a fraction is cut off
+    */
+   private int integer() throws IOException {
+      int start = pos;
+      boolean negative = peek() == '-';
+      if (negative) {
+         pos++;
+      }
+      long value = 0;
+      while (pos < end && buf.get(pos) >= '0' && buf.get(pos) <= '9') {
+         value = value * 10 + (buf.get(pos++) - '0');
+         if (value > Integer.MAX_VALUE + 1L) {
+            throw error("studentid out of range");
+         }
+      }
+      if (pos == start + (negative ? 1 : 0)) {
+         throw error("expected a number");
+      }
+      // fraction and exponent, as in 7.0
+      while (pos < end && isNumberPart(buf.get(pos))) {
+         pos++;
+      }
+      return (int) (negative ? -value : value);
+   }
+
+   private String string() throws IOException {
+      expect('"');
+      int start = pos;
+      while (pos < end) {
+         byte b = buf.get(pos);
+         if (b == '"') {
+            String s = decode(start, pos);
+            pos++;
+            return s;
+         }
+         if (b == '\\') {
+            return escaped(start);
+         }
+         pos++;
+      }
+      throw error("unterminated string");
+   }
+
+   private void skipString() throws IOException {
+      expect('"');
+      while (pos < end) {
+         byte b = buf.get(pos++);
+         if (b == '"') {
+            return;
+         }
+         if (b == '\\') {
+            pos++;
+         }
+      }
+      throw error("unterminated string");
+   }
+
+   private String decode(int from, int to) {
+      int length = to - from;
+      if (chars.length < length) {
+         chars = new byte[Math.max(length, chars.length * 2)];
+      }
+      view.position(from);
+      view.get(chars, 0, length);
+      return new String(chars, 0, length, StandardCharsets.UTF_8);
+   }
+
+   /**
+    * Slow path of string for a string with escapes
+    */
+   private String escaped(int start) throws IOException {
+      StringBuilder sb = new StringBuilder(decode(start, pos));
+      int runStart = pos;
+      while (pos < end) {
+         byte b = buf.get(pos);
+         if (b == '"') {
+            sb.append(decode(runStart, pos));
+            pos++;
+            return sb.toString();
+         }
+         if (b != '\\') {
+            pos++;
+            continue;
+         }
+         sb.append(decode(runStart, pos));
+         pos++;
+         byte e = next();
+         switch (e) {
+            case 'b': sb.append('\b'); break;
+            case 'f': sb.append('\f'); break;
+            case 'n': sb.append('\n'); break;
+            case 'r': sb.append('\r'); break;
+            case 't': sb.append('\t'); break;
+            case 'u':
+               if (pos + 4 > end) {
+                  throw error("bad unicode escape");
+               }
+               try {
+                  sb.append((char) Integer.parseInt(decode(pos, pos + 4), 16));
+               } catch (NumberFormatException ex) {
+                  throw error("bad unicode escape");
+               }
+               pos += 4;
+               break;
+            default: sb.append((char) e);
+         }
+         runStart = pos;
+      }
+      throw error("unterminated string");
+   }
+
+   /**
+    * Skips any JSON value, for fields a student does not have
+    */
+   private void skipValue() throws IOException {
+      byte b = peek();
+      if (b == '"') {
+         string();
+         return;
+      }
+      if (b != '{' && b != '[') {
+         // number, true, false or null
+         while (pos < end && !isWhitespace(buf.get(pos)) && buf.get(pos) != ','
+                && buf.get(pos) != '}' && buf.get(pos) != ']') {
+            pos++;
+         }
+         return;
+      }
+      int depth = 0;
+      while (pos < end) {
+         b = buf.get(pos);
+         if (b == '"') {
+            string();
+            continue;
+         }
+         pos++;
+         if (b == '{' || b == '[') {
+            depth++;
+         } else if ((b == '}' || b == ']') && --depth == 0) {
+            return;
+         }
+      }
+      throw error("unterminated value");
+   }
+
+   private void skipWhitespace() {
+      while (pos < end && isWhitespace(buf.get(pos))) {
+         pos++;
+      }
+   }
+
+   private byte peek() throws IOException {
+      if (pos >= end) {
+         throw error("unexpected end");
+      }
+      return buf.get(pos);
+   }
+
+   private byte next() throws IOException {
+      byte b = peek();
+      pos++;
+      return b;
+   }
+
+   private void expect(char c) throws IOException {
+      if (next() != c) {
+         pos--;
+         throw error("expected " + c);
+      }
+   }
+
+   private IOException error(String message) {
+      return new IOException("students file, byte " + pos + ": " + message);
+   }
+
+   private static boolean isWhitespace(byte b) {
+      return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+   }
+
+   private static boolean isNumberStart(byte b) {
+      return b == '-' || (b >= '0' && b <= '9');
+   }
+
+   private static boolean isNumberPart(byte b) {
+      return (b >= '0' && b <= '9') || b == '.' || b == 'e' || b == 'E' || b == '+' || b == '-';
+   }
+}
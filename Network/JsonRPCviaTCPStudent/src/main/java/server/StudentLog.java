@@ -0,0 +1,494 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.json.JSONObject;
+
+/**
+ * Purpose: write-ahead log and snapshots that keep the student collection
+ * on disk.
+ *
+ * Every add and remove is appended to the current log segment
+ * (students.log.NNNNNN, one JSON record per line) before it is answered.
+ * Records are buffered and written by whichever caller waits for its
+ * record first; it forces all records buffered so far to disk with one
+ * fsync, so concurrent writers share the cost (group commit).
+ *
+ * A snapshot is students.json itself. It is written to a temporary file,
+ * forced to disk and renamed over students.json, so the file is always
+ * either the old or the new snapshot. Before a snapshot the log moves on
+ * to a new segment; once the snapshot is in place the segments before
+ * that one are deleted (compaction). The snapshot is taken while writers
+ * go on and may already contain some of their changes; replaying the
+ * records of the newer segments on top of it still gives the right
+ * collection because every record sets a student to a final value.
+ *
+ * Recovery loads students.json and replays the segments that are left in
+ * order. A record cut short by a crash can only be the last line of a
+ * segment (the log continues in a new segment after a restart) and is
+ * ignored.
+ *
+ * If writing the log fails, the records that were not on disk yet are
+ * lost: sync fails for them and status reports them LOST. The segment is
+ * cut back to what had been forced and the next append, roll or recover
+ * continues in a new segment, so the log on disk holds exactly the
+ * records that were reported written. A new segment always comes after
+ * the highest one on disk, a segment is never appended to once closed.
+ *
+ * The state of a record is kept in its Ticket, which is dropped with the
+ * caller, so the log holds on to the records not on disk only.
+ *
+ * Ser321 Foundations of Distributed Software Systems
+ */
+class StudentLog {
+
+   private static final String SEGMENT_PREFIX = ".log.";
+
+   /** status of a record: not on disk yet, on disk, lost with a failed write */
+   static final int PENDING = 0;
+   static final int WRITTEN = 1;
+   static final int LOST = 2;
+
+   /** handed out by append for a record, its status is guarded by the log */
+   static final class Ticket {
+      private int status = PENDING;
+   }
+
+   private final File snapshot;
+   private final File dir;
+   private final String base;
+
+   /** guards the files: a snapshot does not replace them while they are read */
+   private final Object files = new Object();
+
+   // group commit state, guarded by this
+   private FileChannel channel;
+   private long segment;
+   private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+   /** tickets of the records not on disk, in the order of the records */
+   private List<Ticket> unwritten = new ArrayList<Ticket>();
+   /** bytes of the current segment that are on disk */
+   private long durableSize;
+   private boolean flushing;
+   private IOException failure;
+   private int segmentRecords;
+
+   /**
+    * @param snapshot the snapshot file, the log segments are next to it
+    */
+   StudentLog(File snapshot) {
+      this.snapshot = snapshot.getAbsoluteFile();
+      this.dir = this.snapshot.getParentFile();
+      String name = snapshot.getName();
+      this.base = name.endsWith(".json") ? name.substring(0, name.length() - 5) : name;
+   }
+
+   static JSONObject addRecord(Student stud) {
+      JSONObject record = new JSONObject();
+      record.put("op", "add");
+      record.put("student", stud.toJson());
+      return record;
+   }
+
+   static JSONObject removeRecord(String name) {
+      JSONObject record = new JSONObject();
+      record.put("op", "remove");
+      record.put("name", name);
+      return record;
+   }
+
+   /**
+    * Applies the records of the segments to the students and opens a new
+    * segment for the records that follow, also if a segment cannot be
+    * read. The students must have been loaded from the snapshot (under
+    * lockFiles) before.
+    * @return number of records replayed
+    */
+   int recover(Map<String,Student> students) throws IOException {
+      int replayed = 0;
+      synchronized (this) {
+         closeSegment();
+      }
+      try {
+         for (long seq : segments()) {
+            File segmentFile = segmentFile(seq);
+            if (segmentFile.length() == 0) {
+               // a run without changes
+               Files.deleteIfExists(segmentFile.toPath());
+               continue;
+            }
+            replayed += replay(segmentFile, students);
+         }
+      } finally {
+         synchronized (this) {
+            openSegment(nextSegment());
+         }
+      }
+      return replayed;
+   }
+
+   /**
+    * @return the file the snapshot is written to
+    */
+   File snapshotFile() {
+      return snapshot;
+   }
+
+   /**
+    * Runs the action while no snapshot can replace students.json or delete
+    * segments, reset reads the snapshot and the segments within it
+    */
+   <T> T lockFiles(Callable<T> action) throws Exception {
+      synchronized (files) {
+         return action.call();
+      }
+   }
+
+   private int replay(File segmentFile, Map<String,Student> students) throws IOException {
+      List<String> lines = new ArrayList<String>();
+      try (BufferedReader in = new BufferedReader(new InputStreamReader(
+            new FileInputStream(segmentFile), StandardCharsets.UTF_8))) {
+         String line;
+         while ((line = in.readLine()) != null) {
+            lines.add(line);
+         }
+      }
+      int replayed = 0;
+      for (int i = 0; i < lines.size(); i++) {
+         JSONObject record;
+         try {
+            record = new JSONObject(lines.get(i));
+         } catch (Exception ex) {
+            if (i == lines.size() - 1) {
+               // cut short by a crash while it was written, never answered
+               break;
+            }
+            throw new IOException(segmentFile.getName() + " line " + (i + 1) + " is corrupt");
+         }
+         if (record.getString("op").equals("add")) {
+            Student stud = new Student(record.getJSONObject("student"));
+            students.put(stud.name, stud);
+         } else {
+            students.remove(record.getString("name"));
+         }
+         replayed++;
+      }
+      return replayed;
+   }
+
+   /**
+    * Buffers a record, the caller holds the collection's lock so records
+    * are in the order of the changes
+    * @return ticket to wait for with sync
+    */
+   synchronized Ticket append(JSONObject record) throws IOException {
+      awaitFlush();
+      if (failure != null) {
+         discardFailed();
+         openSegment(nextSegment());
+      }
+      if (channel == null) {
+         throw new IOException("the log is not open");
+      }
+      byte[] line = (record.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+      pending.write(line, 0, line.length);
+      segmentRecords++;
+      Ticket ticket = new Ticket();
+      unwritten.add(ticket);
+      return ticket;
+   }
+
+   /**
+    * @return records in the current segment
+    */
+   synchronized int segmentRecords() {
+      return segmentRecords;
+   }
+
+   /**
+    * @return PENDING, WRITTEN or LOST
+    */
+   synchronized int status(Ticket ticket) {
+      return ticket.status;
+   }
+
+   /**
+    * Waits until the record with the ticket is on disk. If no other caller
+    * is writing, this one writes and forces everything buffered so far.
+    */
+   void sync(Ticket ticket) throws IOException {
+      byte[] batch;
+      List<Ticket> tickets;
+      FileChannel out;
+      synchronized (this) {
+         while (true) {
+            if (ticket.status == LOST) {
+               throw new IOException("the record was lost with a failed write of the log");
+            }
+            if (ticket.status == WRITTEN) {
+               return;
+            }
+            if (failure != null) {
+               throw failure;
+            }
+            if (!flushing) {
+               break;
+            }
+            try {
+               wait();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new InterruptedIOException("interrupted waiting for the log");
+            }
+         }
+         flushing = true;
+         batch = pending.toByteArray();
+         pending.reset();
+         tickets = unwritten;
+         unwritten = new ArrayList<Ticket>();
+         out = channel;
+      }
+      try {
+         write(out, batch);
+         synchronized (this) {
+            written(tickets);
+            durableSize += batch.length;
+         }
+      } catch (IOException e) {
+         synchronized (this) {
+            // still not on disk, in front of those appended meanwhile
+            unwritten.addAll(0, tickets);
+            failure = e;
+         }
+         throw e;
+      } finally {
+         synchronized (this) {
+            flushing = false;
+            notifyAll();
+         }
+      }
+   }
+
+   private static void written(List<Ticket> tickets) {
+      for (Ticket ticket : tickets) {
+         ticket.status = WRITTEN;
+      }
+   }
+
+   private static void write(FileChannel out, byte[] batch) throws IOException {
+      ByteBuffer buf = ByteBuffer.wrap(batch);
+      while (buf.hasRemaining()) {
+         out.write(buf);
+      }
+      out.force(false);
+   }
+
+   /**
+    * Flushes the current segment and continues the log in a new one. The
+    * caller holds the collection's lock, so no record is appended meanwhile.
+    * @return the new segment, a snapshot taken now makes the older ones obsolete
+    */
+   synchronized long roll() throws IOException {
+      closeSegment();
+      openSegment(nextSegment());
+      return segment;
+   }
+
+   /** caller holds this */
+   private void awaitFlush() throws IOException {
+      while (flushing) {
+         try {
+            wait();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for the log");
+         }
+      }
+   }
+
+   /** caller holds this */
+   private void closeSegment() throws IOException {
+      awaitFlush();
+      if (failure != null) {
+         discardFailed();
+         return;
+      }
+      if (channel != null) {
+         try {
+            write(channel, pending.toByteArray());
+         } catch (IOException e) {
+            // the buffered records are lost, their callers learn it from sync
+            failure = e;
+            discardFailed();
+            return;
+         }
+         pending.reset();
+         written(unwritten);
+         unwritten.clear();
+         channel.close();
+         channel = null;
+      }
+   }
+
+   /**
+    * Drops the records that were not on disk when writing failed and cuts
+    * the segment back to the records that were, so they are not replayed
+    * either. If the segment cannot be cut, the failure stays and the log
+    * cannot be written until the server is restarted. Caller holds this,
+    * no write is in progress.
+    */
+   private void discardFailed() throws IOException {
+      if (channel != null) {
+         try {
+            channel.close();
+         } catch (IOException e) {
+            // the channel is given up anyway
+         }
+         channel = null;
+      }
+      try (FileChannel cut = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.WRITE)) {
+         cut.truncate(durableSize);
+         cut.force(true);
+      } catch (IOException e) {
+         IOException unrecoverable = new IOException("cannot cut back the log after a failed write: "
+                                                     + e.getMessage(), failure);
+         failure = unrecoverable;
+         throw unrecoverable;
+      }
+      for (Ticket ticket : unwritten) {
+         ticket.status = LOST;
+      }
+      unwritten.clear();
+      pending.reset();
+      failure = null;
+   }
+
+   /**
+    * @return the segment after the current one and after all on disk, caller holds this
+    */
+   private long nextSegment() {
+      List<Long> onDisk = segments();
+      long highest = onDisk.isEmpty() ? 0 : onDisk.get(onDisk.size() - 1);
+      return Math.max(segment, highest) + 1;
+   }
+
+   /** caller holds this */
+   private void openSegment(long seq) throws IOException {
+      channel = FileChannel.open(segmentFile(seq).toPath(), StandardOpenOption.CREATE_NEW,
+                                 StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      segment = seq;
+      segmentRecords = 0;
+      durableSize = 0;
+      syncDir();
+   }
+
+   /**
+    * Writes the students as the new students.json and deletes the segments
+    * before the given one
+    * @param students may change while they are written, see the class comment
+    * @param firstSegment the segment the log moved to when the snapshot began
+    */
+   void snapshot(Collection<Student> students, long firstSegment) throws IOException {
+      File tmp = new File(dir, snapshot.getName() + ".tmp");
+      try (FileOutputStream fos = new FileOutputStream(tmp)) {
+         Writer out = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8), 1 << 16);
+         // the layout of students.json: one student per line
+         out.write("{\n");
+         boolean first = true;
+         for (Student stud : students) {
+            if (!first) {
+               out.write(",\n");
+            }
+            first = false;
+            out.write("  ");
+            out.write(JSONObject.quote(stud.name));
+            out.write(":");
+            out.write(stud.toJsonString());
+         }
+         out.write("\n}\n");
+         out.flush();
+         fos.getFD().sync();
+      }
+      synchronized (files) {
+         try {
+            Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+         } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+         }
+         syncDir();
+         for (long seq : segments()) {
+            if (seq < firstSegment) {
+               Files.deleteIfExists(segmentFile(seq).toPath());
+            }
+         }
+      }
+   }
+
+   void close() throws IOException {
+      synchronized (this) {
+         closeSegment();
+      }
+   }
+
+   private File segmentFile(long seq) {
+      return new File(dir, base + SEGMENT_PREFIX + String.format("%06d", seq));
+   }
+
+   /**
+    * @return the numbers of the segments on disk, ascending
+    */
+   private List<Long> segments() {
+      List<Long> found = new ArrayList<Long>();
+      String[] names = dir.list();
+      if (names != null) {
+         String prefix = base + SEGMENT_PREFIX;
+         for (String name : names) {
+            if (name.startsWith(prefix)) {
+               try {
+                  found.add(Long.parseLong(name.substring(prefix.length())));
+               } catch (NumberFormatException e) {
+                  // not a segment
+               }
+            }
+         }
+      }
+      Collections.sort(found);
+      return found;
+   }
+
+   /**
+    * Forces the directory, so a created or renamed file survives a crash.
+    * Not every platform can open a directory, there it is left to the OS.
+    */
+   private void syncDir() {
+      try (FileChannel d = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+         d.force(true);
+      } catch (IOException e) {
+         // best effort
+      }
+   }
+}
@@ -0,0 +1,166 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.junit.Test;
+
+/**
+ * StudentJsonReader against org.json: random collections, with escapes,
+ * non-ASCII names, negative ids, missing studentids and fields students.json
+ * does not use, written compact and indented, must give the same students as
+ * Student(JSONObject) for every split into 1 to 17 ranges.
+ *
+ * Ser321 Foundations of Distributed Software Systems
+ */
+public class StudentJsonReaderTest {
+
+   private static final String[] NAMES = {"Ann \"Q\" O'Neil", "back\\slash", "tab\tnew\nline",
+      "\u00fcn\u00ef \u20ac", "emoji \ud83d\ude00", "brace{,}[]:", "slash/"};
+   private static final int[] PARALLELISM = {1, 2, 3, 8, 17};
+   /** not strict JSON, but read by JSONObject */
+   private static final String[] LENIENT = {
+      "{\"a\":{\"name\":\"a\",\"studentid\":1,\"takes\":[\"x\"]},}",
+      "{\"a\":{\"name\":\"a\",\"studentid\":1,\"takes\":[\"x\",\"y\"],},\n"
+         + " \"b\":{\"name\":\"b\",\"studentid\":2,\"takes\":[]},\n}",
+      "{a:{name:'a',studentid:1,takes:['x']},b:{name:b,studentid:'2',takes:[y]}}",
+      "{\"a\":{\"name\":\"a\";\"studentid\":1;\"takes\":[\"x\"]};"
+         + "\"b\":{\"name\":\"b\",\"takes\":[]}}",
+      "{\"a\":{\"name\":\"a\",\"studentid\":1,\"takes\":[\"x\"]}} trailing"};
+
+   @Test
+   public void sameStudentsAsJsonObject() throws IOException {
+      Random random = new Random(3);
+      for (int round = 0; round < 30; round++) {
+         JSONObject students = randomStudents(random, random.nextInt(3000));
+         String text = round % 3 == 0 ? students.toString()
+            : students.toString(round % 3 == 1 ? 2 : 1);
+         File file = write(text);
+         try {
+            Map<String,String> expected = readWithJsonObject(file);
+            for (int parallelism : PARALLELISM) {
+               Map<String,Student> read = new HashMap<String,Student>();
+               StudentJsonReader.read(file, read, parallelism);
+               assertEquals("round " + round + ", " + parallelism + " ranges",
+                            expected, asText(read));
+            }
+         } finally {
+            file.delete();
+         }
+      }
+   }
+
+   @Test
+   public void emptyObject() throws IOException {
+      File file = write(" { } ");
+      try {
+         Map<String,Student> read = new HashMap<String,Student>();
+         StudentJsonReader.read(file, read, 4);
+         assertTrue(read.isEmpty());
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test
+   public void takesWhatJsonObjectTakes() throws IOException {
+      for (String text : LENIENT) {
+         File file = write(text);
+         try {
+            Map<String,String> expected = readWithJsonObject(file);
+            for (int parallelism : PARALLELISM) {
+               Map<String,Student> read = new HashMap<String,Student>();
+               StudentJsonReader.read(file, read, parallelism);
+               assertEquals(text + ", " + parallelism + " ranges", expected, asText(read));
+            }
+         } finally {
+            file.delete();
+         }
+      }
+   }
+
+   @Test
+   public void malformedEntryIsRefused() throws IOException {
+      File file = write("{\"a\":{\"name\":\"a\",\"studentid\":1,\"takes\":[\"x\"]},"
+                        + "\"b\":{\"name\":\"b\" \"x\"}}");
+      try {
+         StudentJsonReader.read(file, new HashMap<String,Student>(), 1);
+         fail("read a malformed file");
+      } catch (IOException expected) {
+         // refused
+      } finally {
+         file.delete();
+      }
+   }
+
+   private static JSONObject randomStudents(Random random, int count) {
+      JSONObject students = new JSONObject();
+      for (int i = 0; i < count; i++) {
+         String name = (random.nextInt(10) == 0 ? NAMES[random.nextInt(NAMES.length)] : "s") + i;
+         JSONObject stud = new JSONObject();
+         stud.put("name", name);
+         if (random.nextInt(15) != 0) {
+            stud.put("studentid", random.nextInt(5) == 0 ? -random.nextInt(1000)
+                     : random.nextInt(100000));
+         }
+         JSONArray takes = new JSONArray();
+         for (int c = random.nextInt(4); c > 0; c--) {
+            takes.put("Ser" + random.nextInt(20));
+         }
+         stud.put("takes", takes);
+         if (random.nextInt(8) == 0) {
+            stud.put("extra", new JSONObject("{\"x\":[1,{\"y\":\"}\"}],\"z\":null}"));
+         }
+         students.put(name, stud);
+      }
+      return students;
+   }
+
+   private static File write(String text) throws IOException {
+      File file = File.createTempFile("students", ".json");
+      try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+         out.write(text);
+      }
+      return file;
+   }
+
+   /**
+    * The loader StudentCollectionImpl used before StudentJsonReader
+    */
+   private static Map<String,String> readWithJsonObject(File file) throws IOException {
+      Map<String,Student> students = new HashMap<String,Student>();
+      try (InputStreamReader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+         JSONObject all = new JSONObject(new JSONTokener(in));
+         for (String key : all.keySet()) {
+            Student stud = new Student(all.getJSONObject(key));
+            students.put(stud.name, stud);
+         }
+      }
+      return asText(students);
+   }
+
+   private static Map<String,String> asText(Map<String,Student> students) {
+      Map<String,String> text = new TreeMap<String,String>();
+      for (Student stud : students.values()) {
+         text.put(stud.name, stud.toJsonString());
+      }
+      return text;
+   }
+}
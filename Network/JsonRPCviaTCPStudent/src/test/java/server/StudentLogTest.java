@@ -0,0 +1,207 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * StudentLog and the recovery of StudentCollectionImpl: the log is
+ * replayed, a record torn by a crash is ignored, a corrupt segment stops
+ * the recovery without touching the files, a failed write loses only its
+ * records and a collection that could not be recovered writes no snapshot.
+ *
+ * Ser321 Foundations of Distributed Software Systems
+ */
+public class StudentLogTest {
+
+   @Test
+   public void replaysTheLog() throws Exception {
+      File dir = Files.createTempDirectory("studentlog").toFile();
+      try {
+         StudentLog log = new StudentLog(new File(dir, "students.json"));
+         log.recover(new HashMap<String,Student>());
+         log.append(StudentLog.addRecord(student("a", 1)));
+         log.append(StudentLog.addRecord(student("b", 2)));
+         log.append(StudentLog.addRecord(student("a", 3)));
+         StudentLog.Ticket last = log.append(StudentLog.removeRecord("b"));
+         log.sync(last);
+         assertEquals(StudentLog.WRITTEN, log.status(last));
+         log.close();
+
+         Map<String,Student> students = new HashMap<String,Student>();
+         assertEquals(4, new StudentLog(new File(dir, "students.json")).recover(students));
+         assertEquals(names("a"), students.keySet());
+         assertEquals(3, students.get("a").studentid);
+      } finally {
+         delete(dir);
+      }
+   }
+
+   @Test
+   public void tornLastRecordIsIgnored() throws Exception {
+      File dir = Files.createTempDirectory("studentlog").toFile();
+      try {
+         write(new File(dir, "students.log.000001"),
+               StudentLog.addRecord(student("a", 1)) + "\n{\"op\":\"add\",\"stud");
+         Map<String,Student> students = new HashMap<String,Student>();
+         StudentLog log = new StudentLog(new File(dir, "students.json"));
+         assertEquals(1, log.recover(students));
+         assertEquals(names("a"), students.keySet());
+
+         // the torn segment is not appended to
+         log.sync(log.append(StudentLog.addRecord(student("b", 2))));
+         log.close();
+         assertTrue(new File(dir, "students.log.000002").length() > 0);
+         students.clear();
+         assertEquals(2, new StudentLog(new File(dir, "students.json")).recover(students));
+         assertEquals(names("a", "b"), students.keySet());
+      } finally {
+         delete(dir);
+      }
+   }
+
+   @Test
+   public void corruptMiddleSegmentStopsRecovery() throws Exception {
+      File dir = Files.createTempDirectory("studentlog").toFile();
+      try {
+         write(new File(dir, "students.log.000001"), StudentLog.addRecord(student("a", 1)) + "\n");
+         File corrupt = new File(dir, "students.log.000002");
+         String corruptText = "{\"op\":\"add\",\n" + StudentLog.addRecord(student("b", 2)) + "\n";
+         write(corrupt, corruptText);
+         write(new File(dir, "students.log.000003"), StudentLog.addRecord(student("c", 3)) + "\n");
+         StudentLog log = new StudentLog(new File(dir, "students.json"));
+         try {
+            log.recover(new HashMap<String,Student>());
+            fail("recovered from a corrupt segment");
+         } catch (IOException expected) {
+            // refused
+         }
+
+         // the log is still written, after the segments on disk
+         StudentLog.Ticket ticket = log.append(StudentLog.addRecord(student("d", 4)));
+         log.sync(ticket);
+         log.close();
+         assertEquals(StudentLog.WRITTEN, log.status(ticket));
+         assertTrue(new File(dir, "students.log.000004").length() > 0);
+         assertEquals(corruptText.length(), (int) corrupt.length());
+
+         assertTrue(corrupt.delete());
+         Map<String,Student> students = new HashMap<String,Student>();
+         new StudentLog(new File(dir, "students.json")).recover(students);
+         assertEquals(names("a", "c", "d"), students.keySet());
+      } finally {
+         delete(dir);
+      }
+   }
+
+   @Test
+   public void failedWriteLosesOnlyItsRecords() throws Exception {
+      File dir = Files.createTempDirectory("studentlog").toFile();
+      try {
+         StudentLog log = new StudentLog(new File(dir, "students.json"));
+         log.recover(new HashMap<String,Student>());
+         StudentLog.Ticket a = log.append(StudentLog.addRecord(student("a", 1)));
+         log.sync(a);
+
+         // the disk goes away under the log
+         channel(log).close();
+         StudentLog.Ticket b = log.append(StudentLog.addRecord(student("b", 2)));
+         try {
+            log.sync(b);
+            fail("wrote to a closed channel");
+         } catch (IOException expected) {
+            // lost
+         }
+         StudentLog.Ticket c = log.append(StudentLog.addRecord(student("c", 3)));
+         log.sync(c);
+         assertEquals(StudentLog.WRITTEN, log.status(a));
+         assertEquals(StudentLog.LOST, log.status(b));
+         assertEquals(StudentLog.WRITTEN, log.status(c));
+         log.close();
+
+         Map<String,Student> students = new HashMap<String,Student>();
+         new StudentLog(new File(dir, "students.json")).recover(students);
+         assertEquals(names("a", "c"), students.keySet());
+      } finally {
+         delete(dir);
+      }
+   }
+
+   @Test
+   public void failedResetWritesNoSnapshot() throws Exception {
+      File dir = Files.createTempDirectory("studentlog").toFile();
+      try {
+         File json = new File(dir, "students.json");
+         String snapshot = "{\"a\":" + student("a", 1).toJsonString() + "}";
+         write(json, snapshot);
+         File corrupt = new File(dir, "students.log.000001");
+         write(corrupt, "not json\n" + StudentLog.addRecord(student("b", 2)) + "\n");
+
+         StudentCollectionImpl students = new StudentCollectionImpl(new StudentLog(json));
+         assertEquals(0, students.getNames().length);
+         assertTrue(students.add(student("x", 9)));
+         assertFalse(students.saveToJsonFile());
+         assertFalse(students.resetFromJsonFile());
+         assertFalse(students.saveToJsonFile());
+         assertEquals(snapshot, new String(Files.readAllBytes(json.toPath()), StandardCharsets.UTF_8));
+         assertTrue(corrupt.exists());
+
+         assertTrue(corrupt.delete());
+         assertTrue(students.resetFromJsonFile());
+         assertEquals(names("a", "x"), new TreeSet<String>(Arrays.asList(students.getNames())));
+         assertTrue(students.saveToJsonFile());
+         Map<String,Student> saved = new HashMap<String,Student>();
+         StudentJsonReader.read(json, saved);
+         assertEquals(names("a", "x"), saved.keySet());
+      } finally {
+         delete(dir);
+      }
+   }
+
+   private static Student student(String name, int id) {
+      return new Student(name, id, new String[]{"Ser321"});
+   }
+
+   private static TreeSet<String> names(String... names) {
+      return new TreeSet<String>(Arrays.asList(names));
+   }
+
+   private static FileChannel channel(StudentLog log) throws ReflectiveOperationException {
+      Field field = StudentLog.class.getDeclaredField("channel");
+      field.setAccessible(true);
+      return (FileChannel) field.get(log);
+   }
+
+   private static void write(File file, String text) throws IOException {
+      try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+         out.write(text);
+      }
+   }
+
+   private static void delete(File dir) {
+      File[] files = dir.listFiles();
+      if (files != null) {
+         for (File file : files) {
+            file.delete();
+         }
+      }
+      dir.delete();
+   }
+}
@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Load test for SimpleWebServer.
+ *
+ * Keeps the given number of clients busy for a while: every client connects,
+ * sends a GET, reads the answer until the server closes the connection and
+ * starts over right away. All clients run on one selector thread, so the
+ * test itself needs no thread per client. Reports throughput, latency
+ * percentiles, 503 answers, errors and the peak resident memory (VmRSS) and
+ * thread count of the server process.
+ *
+ * Start the server in the mode to test, then for example:
+ *   java LoadTest localhost 9099 $(pgrep -f SimpleWebServer) 20 1000 10000 50000
+ *
+ * 50k clients need a file descriptor limit above that (ulimit -n) and enough
+ * local ports (net.ipv4.ip_local_port_range) on the client machine.
+ */
+public class LoadTest {
+
+    /** latencies are counted in buckets of 100 microseconds, up to a minute */
+    private static final int BUCKET_MICROS = 100;
+    private static final int BUCKETS = 600_000;
+
+    public static void main(String args[]) throws Exception {
+        if (args.length < 5) {
+            System.out.println("Expected arguments: <host> <port(int)> <serverPid(int)> <seconds(int)> <clients(int)>...");
+            System.exit(1);
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        long pid = Long.parseLong(args[2]);
+        int seconds = Integer.parseInt(args[3]);
+
+        System.out.printf("%8s %10s %9s %9s %9s %8s %8s %9s %8s%n",
+                "clients", "req/s", "p50 ms", "p99 ms", "max ms", "503s", "errors", "RSS MB", "threads");
+        for (int i = 4; i < args.length; i++) {
+            LoadTest test = new LoadTest(new InetSocketAddress(host, port), pid, Integer.parseInt(args[i]));
+            test.run(seconds);
+            test.report();
+            // let the server settle before the next round
+            Thread.sleep(2000);
+        }
+    }
+
+    private final InetSocketAddress address;
+    private final long pid;
+    private final int clients;
+    private final byte[] request;
+
+    private final int[] latency = new int[BUCKETS];
+    private long completed;
+    private long rejected;
+    private long errors;
+    private long elapsedNanos;
+    private volatile long peakRssKb;
+    private volatile long peakThreads;
+    /** clients whose connect failed right away, tried again on the next round */
+    private final ArrayDeque<Client> retry = new ArrayDeque<>();
+
+    LoadTest(InetSocketAddress address, long pid, int clients) {
+        this.address = address;
+        this.pid = pid;
+        this.clients = clients;
+        this.request = ("GET /index.html HTTP/1.1\r\nHost: " + address.getHostString()
+                + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * One client, reused for every connection it makes
+     */
+    private class Client {
+        SocketChannel channel;
+        ByteBuffer out;
+        final ByteBuffer in = ByteBuffer.allocate(4096);
+        byte[] firstBytes = new byte[12];
+        int firstCount;
+        long start;
+    }
+
+    void run(int seconds) throws IOException {
+        Thread sampler = startSampler();
+        Selector selector = Selector.open();
+        long begin = System.nanoTime();
+        long end = begin + seconds * 1_000_000_000L;
+
+        for (int i = 0; i < clients; i++) {
+            connect(selector, new Client());
+        }
+
+        while (System.nanoTime() < end) {
+            selector.select(100);
+            for (int i = retry.size(); i > 0; i--) {
+                connect(selector, retry.poll());
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Client client = (Client) key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        client.channel.finishConnect();
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    } else if (key.isWritable()) {
+                        client.channel.write(client.out);
+                        if (!client.out.hasRemaining()) {
+                            key.interestOps(SelectionKey.OP_READ);
+                        }
+                    } else if (key.isReadable()) {
+                        if (read(client)) {
+                            key.cancel();
+                            client.channel.close();
+                            connect(selector, client);
+                        }
+                    }
+                } catch (IOException e) {
+                    // refused, reset or timed out: count it and try again
+                    errors++;
+                    key.cancel();
+                    client.channel.close();
+                    connect(selector, client);
+                }
+            }
+        }
+        elapsedNanos = System.nanoTime() - begin;
+
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+        sampler.interrupt();
+    }
+
+    private void connect(Selector selector, Client client) {
+        client.out = ByteBuffer.wrap(request);
+        client.in.clear();
+        client.firstCount = 0;
+        client.start = System.nanoTime();
+        try {
+            client.channel = SocketChannel.open();
+            client.channel.configureBlocking(false);
+            if (client.channel.connect(address)) {
+                client.channel.register(selector, SelectionKey.OP_WRITE, client);
+            } else {
+                client.channel.register(selector, SelectionKey.OP_CONNECT, client);
+            }
+        } catch (IOException e) {
+            // e.g. out of file descriptors or local ports
+            errors++;
+            if (client.channel != null) {
+                try {
+                    client.channel.close();
+                } catch (IOException ex) {
+                    // not open anyway
+                }
+            }
+            retry.add(client);
+        }
+    }
+
+    /**
+     * @return true once the server closed the connection
+     */
+    private boolean read(Client client) throws IOException {
+        client.in.clear();
+        int n = client.channel.read(client.in);
+        if (n > 0 && client.firstCount < client.firstBytes.length) {
+            int copy = Math.min(n, client.firstBytes.length - client.firstCount);
+            System.arraycopy(client.in.array(), 0, client.firstBytes, client.firstCount, copy);
+            client.firstCount += copy;
+        }
+        if (n != -1) {
+            return false;
+        }
+        String status = new String(client.firstBytes, 0, client.firstCount, StandardCharsets.ISO_8859_1);
+        if (status.startsWith("HTTP/1.1 503")) {
+            rejected++;
+        } else if (client.firstCount == 0) {
+            errors++;
+        } else {
+            completed++;
+            long micros = (System.nanoTime() - client.start) / 1000;
+            latency[(int) Math.min(BUCKETS - 1, micros / BUCKET_MICROS)]++;
+        }
+        return true;
+    }
+
+    /**
+     * Reads VmRSS and Threads of the server from /proc every 100 ms
+     */
+    private Thread startSampler() {
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    List<String> lines = Files.readAllLines(Paths.get("/proc/" + pid + "/status"));
+                    for (String line : lines) {
+                        if (line.startsWith("VmRSS:")) {
+                            peakRssKb = Math.max(peakRssKb, Long.parseLong(line.replaceAll("\\D", "")));
+                        } else if (line.startsWith("Threads:")) {
+                            peakThreads = Math.max(peakThreads, Long.parseLong(line.replaceAll("\\D", "")));
+                        }
+                    }
+                    Thread.sleep(100);
+                } catch (IOException e) {
+                    // the server died (or runs elsewhere), nothing to sample
+                    return;
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "rss-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+        return sampler;
+    }
+
+    private double percentile(double p) {
+        long rank = (long) Math.ceil(completed * p);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += latency[i];
+            if (seen >= rank && seen > 0) {
+                return (i + 1) * BUCKET_MICROS / 1000.0;
+            }
+        }
+        return 0;
+    }
+
+    void report() {
+        double secs = elapsedNanos / 1e9;
+        System.out.printf("%8d %10.0f %9.2f %9.2f %9.2f %8d %8d %9.1f %8d%n",
+                clients, completed / secs, percentile(0.50), percentile(0.99), percentile(1.0),
+                rejected, errors, peakRssKb / 1024.0, peakThreads);
+    }
+}
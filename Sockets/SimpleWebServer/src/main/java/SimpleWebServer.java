@@ -1,30 +1,95 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import funHttpServer.AccessLog;
 
 public class SimpleWebServer {
 
+    /**
+     * Answer for connections the bounded pool has no room for
+     */
+    private static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\n"
+            + "Retry-After: 1\r\n"
+            + "Content-Length: 0\r\n"
+            + "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * How a ClientHandler gets its thread:
+     * thread  - a new platform thread per connection (no limit)
+     * pool    - a fixed pool of platform threads with a bounded queue,
+     *           connections that do not fit are answered with 503
+     * virtual - a virtual thread per connection (Java 21+)
+     */
+    enum Mode { THREAD, POOL, VIRTUAL }
+
+    /**
+     * One line per request, written to logs/access.log by a background
+     * thread instead of printing on the request threads (see AccessLog, which
+     * is shared with the WebServer example)
+     */
+    static final AccessLog ACCESS_LOG = AccessLog.fromSystemProperties("logs/access.log");
+
     // 
     public static void main(String args[]) {
         int port = 9099; // default port
-        if (args.length != 1) {
+        Mode mode = Mode.THREAD;
+        int poolSize = Runtime.getRuntime().availableProcessors() * 8;
+        int queueLimit = 1000;
+        if (args.length < 1 || args.length > 4) {
 
-            System.out.println("Expected arguments: <port(int)>");
+            System.out.println("Expected arguments: <port(int)> [thread|pool|virtual] [poolSize(int)] [queueLimit(int)]");
             System.exit(1);
         }
         System.out.println("running");
 try {
             port = Integer.parseInt(args[0]);
+            if (args.length > 2) {
+                poolSize = Integer.parseInt(args[2]);
+            }
+            if (args.length > 3) {
+                queueLimit = Integer.parseInt(args[3]);
+            }
         } catch (NumberFormatException nfe) {
-            System.out.println("[Port] must be integer");
+            System.out.println("[Port], [poolSize] and [queueLimit] must be integers");
             System.exit(2);
         }
+        if (args.length > 1) {
+            try {
+                mode = Mode.valueOf(args[1].toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.out.println("[mode] must be thread, pool or virtual");
+                System.exit(2);
+            }
+        }
 
-        SimpleWebServer server = new SimpleWebServer(port);
+        SimpleWebServer server = new SimpleWebServer(port, mode, poolSize, queueLimit);
 
     }
 
+    /** runs the ClientHandlers, null to start a plain thread per connection */
+    private final ExecutorService executor;
+
     public SimpleWebServer(int port) {
+        this(port, Mode.THREAD, 0, 0);
+    }
+
+    /**
+     * @param port to listen on
+     * @param mode how connections get their thread
+     * @param poolSize threads of the pool (POOL only)
+     * @param queueLimit connections that may wait for a pool thread (POOL only)
+     */
+    public SimpleWebServer(int port, Mode mode, int poolSize, int queueLimit) {
+        executor = createExecutor(mode, poolSize, queueLimit);
+        System.out.println("Mode: " + mode.name().toLowerCase()
+                + (mode == Mode.POOL ? " (" + poolSize + " threads, queue " + queueLimit + ")" : ""));
 
         ServerSocket server = null;
         Socket sock = null;
@@ -37,14 +102,16 @@ try {
             //***   Write the bytes to the socket's output stream
             //***   close streams and socket appropriately
 
-            server = new ServerSocket(port);
+            // a long accept queue, so a burst of connections is not refused
+            // before the executor gets to decide about them
+            server = new ServerSocket(port, 4096);
 
         } catch (IOException ex) {
             ex.printStackTrace();
         }
 
+        System.out.println("Ready...");
         while (server.isBound() && !server.isClosed()) {
-            System.out.println("Ready...");
             try {
                 sock = server.accept();
                 createClientThread(sock);
@@ -57,13 +124,58 @@ try {
     /**
      * Take the newly accepted socket and make it a thread by passing it to
      * inner class ClientHandler which implements Runnable; subsequently start
-     * the thread up so it can be processed.
+     * the thread up (or hand it to the executor) so it can be processed.
      *
      * @param sock
      */
     private void createClientThread(Socket sock) {
-        Thread thread = new Thread(new ClientHandler(sock));
-        thread.start();
+        if (executor == null) {
+            Thread thread = new Thread(new ClientHandler(sock));
+            thread.start();
+            return;
+        }
+        try {
+            executor.execute(new ClientHandler(sock));
+        } catch (RejectedExecutionException e) {
+            // pool and queue are full, tell the client to come back later
+            ACCESS_LOG.log((String) null, 503, 0, 0);
+            try {
+                sock.getOutputStream().write(SERVICE_UNAVAILABLE);
+            } catch (IOException ex) {
+                // client is gone already
+            } finally {
+                try {
+                    sock.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the executor for the mode, null for a plain thread per connection
+     */
+    private static ExecutorService createExecutor(Mode mode, int poolSize, int queueLimit) {
+        switch (mode) {
+            case POOL:
+                // AbortPolicy: execute throws once the queue is full
+                return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(queueLimit), new ThreadPoolExecutor.AbortPolicy());
+            case VIRTUAL:
+                try {
+                    // looked up at runtime so the server still compiles on older JDKs
+                    return (ExecutorService) java.util.concurrent.Executors.class
+                            .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    System.out.println("Virtual threads need Java 21 or newer, running "
+                            + System.getProperty("java.version"));
+                    System.exit(2);
+                    throw new IllegalStateException("not reached", e);
+                }
+            default:
+                return null;
+        }
     }
 }
 
@@ -102,6 +214,9 @@ class ClientHandler implements Runnable {
 
         byte[] response = null;
         BufferedReader in = null;
+        String line = null;
+        int status = 400;
+        long start = System.nanoTime();
 
         try {
 
@@ -114,8 +229,7 @@ class ClientHandler implements Runnable {
             //    example GET format: GET /index.html HTTP/1.1
 
             String filename = null;
-            String line = in.readLine();
-            System.out.println("Received: " + line);
+            line = in.readLine();
             if (line != null && !line.trim().equals("")) {
                 StringTokenizer st = new StringTokenizer(line);
                 if (st.nextToken().equals("GET") && st.hasMoreTokens()) {
@@ -125,7 +239,6 @@ class ClientHandler implements Runnable {
                     }
                 }
             }
-            System.out.println("FINISHED REQUEST, STARTING RESPONSE\n");
 
             // Generate an appropriate response to the user
             if (filename == null) {
@@ -134,18 +247,21 @@ class ClientHandler implements Runnable {
             } else {
                 File file = new File(filename);
                 if (!file.exists()) {
+                    status = 404;
                     response = ("<html>File not found: "
                             + filename + "</html>").getBytes();
                 } else {
+                    status = 200;
                     response = readFileInBytes(file);
                 }
             }
         } catch (IOException e) {
             e.printStackTrace();
+            status = 500;
             response = ("<html>ERROR: "
                     + e.getMessage() + "</html").getBytes();
         }
-        System.out.println("RESPONSE GENERATED!");
+        SimpleWebServer.ACCESS_LOG.log(line, status, response.length, System.nanoTime() - start);
         return response;
     }
 
@@ -169,7 +285,6 @@ class ClientHandler implements Runnable {
 
     @Override
     public void run() {
-        System.out.println("Starting thread");
         try {
             out.write(createResponse(in));
         } catch (IOException ex) {
@@ -182,7 +297,5 @@ class ClientHandler implements Runnable {
                 ex.printStackTrace();
             }
         }
-
-        System.out.println("Ending thread");
     }
 }
@@ -0,0 +1,312 @@
+package funHttpServer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log that keeps request threads off the console and the disk.
+ *
+ * Request threads copy their record (request line, status, bytes, time)
+ * into a slot of a preallocated ring buffer; claiming a slot is a single
+ * compare-and-set, nothing is allocated or locked. One background thread
+ * takes the records in order, formats them and writes them in batches to
+ * a file that is rotated once it reaches maxFileBytes (access.log,
+ * access.log.1, ... access.log.N).
+ *
+ * When the ring is full the policy decides: DROP (default) throws the record
+ * away and counts it, BLOCK waits for a free slot so nothing is lost.
+ * Dropped records are counted (dropped()) and noted in the log file.
+ *
+ * The writer thread parks once it has caught up; the request that publishes
+ * the next record wakes it, so an idle server has no thread waking up.
+ *
+ * Shared by funHttpServer, httpServer and SimpleWebServer (whose build
+ * compiles this file along), so it uses nothing else of the package.
+ */
+public class AccessLog {
+  /** longest request line kept, longer ones are cut */
+  public static final int MAX_LINE = 256;
+
+  public enum Policy { DROP, BLOCK }
+
+  /**
+   * One preallocated record
+   */
+  private static class Slot {
+    final byte[] line = new byte[MAX_LINE];
+    int lineLength;
+    long time;
+    int status;
+    long bytes;
+    long nanos;
+  }
+
+  private final Slot[] slots;
+  private final int mask;
+  private final Policy policy;
+  /** next sequence number a producer may claim */
+  private final AtomicLong claimed = new AtomicLong();
+  /** sequence + 1 of the record in each slot once it is complete */
+  private final AtomicLongArray published;
+  /** next sequence number the writer thread reads; slots before it are free */
+  private volatile long consumed;
+  private final LongAdder dropped = new LongAdder();
+  private final Thread writer;
+  /** set by the writer before it parks, producers then wake it */
+  private volatile boolean parked;
+
+  private final File file;
+  private final long maxFileBytes;
+  private final int keepFiles;
+  private OutputStream out;
+  private long fileBytes;
+
+  /**
+   * Log configured with system properties: access.log (file name),
+   * access.log.policy (drop or block), access.log.capacity (records),
+   * access.log.maxBytes and access.log.keep (rotated files)
+   * @param defaultFile file name when access.log is not set
+   */
+  public static AccessLog fromSystemProperties(String defaultFile) {
+    return new AccessLog(new File(System.getProperty("access.log", defaultFile)),
+        Integer.getInteger("access.log.capacity", 8192),
+        Long.getLong("access.log.maxBytes", 10L * 1024 * 1024),
+        Integer.getInteger("access.log.keep", 5),
+        Policy.valueOf(System.getProperty("access.log.policy", "drop").toUpperCase()));
+  }
+
+  /**
+   * @param file log file, parent directories are created
+   * @param capacity records the ring holds, rounded up to a power of two
+   * @param maxFileBytes size at which the file is rotated
+   * @param keepFiles rotated files to keep
+   * @param policy what to do when the ring is full
+   */
+  public AccessLog(File file, int capacity, long maxFileBytes, int keepFiles, Policy policy) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.slots = new Slot[size];
+    for (int i = 0; i < size; i++) {
+      slots[i] = new Slot();
+    }
+    this.mask = size - 1;
+    this.published = new AtomicLongArray(size);
+    this.policy = policy;
+    this.file = file;
+    this.maxFileBytes = maxFileBytes;
+    this.keepFiles = keepFiles;
+
+    writer = new Thread(this::drain, "access-log-writer");
+    writer.setDaemon(true);
+    writer.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "access-log-flush"));
+  }
+
+  /**
+   * Logs a request whose request line is in a byte array
+   * @param line bytes of the request line, e.g. GET /index.html HTTP/1.1
+   * @param status status code
+   * @param bytes response size, -1 if not known
+   * @param nanos time it took
+   * @return false if the record was dropped
+   */
+  public boolean log(byte[] line, int offset, int length, int status, long bytes, long nanos) {
+    long seq = claim();
+    if (seq < 0) {
+      return false;
+    }
+    Slot slot = slots[(int) (seq & mask)];
+    int n = Math.min(length, MAX_LINE);
+    System.arraycopy(line, offset, slot.line, 0, n);
+    slot.lineLength = n;
+    publish(seq, slot, status, bytes, nanos);
+    return true;
+  }
+
+  /**
+   * Logs a request whose request line is a String
+   * @see #log(byte[], int, int, int, long, long)
+   */
+  public boolean log(String line, int status, long bytes, long nanos) {
+    long seq = claim();
+    if (seq < 0) {
+      return false;
+    }
+    Slot slot = slots[(int) (seq & mask)];
+    int n = line == null ? 0 : Math.min(line.length(), MAX_LINE);
+    for (int i = 0; i < n; i++) {
+      char c = line.charAt(i);
+      slot.line[i] = (byte) (c < 256 ? c : '?');
+    }
+    slot.lineLength = n;
+    publish(seq, slot, status, bytes, nanos);
+    return true;
+  }
+
+  /**
+   * @return records thrown away because the ring was full
+   */
+  public long dropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * @return sequence number of the claimed slot, -1 if the record is dropped
+   */
+  private long claim() {
+    while (true) {
+      long seq = claimed.get();
+      if (seq - consumed >= slots.length) {
+        if (policy == Policy.DROP) {
+          dropped.increment();
+          return -1;
+        }
+        // BLOCK: the writer frees slots quickly, wait a little
+        LockSupport.parkNanos(50_000);
+        continue;
+      }
+      if (claimed.compareAndSet(seq, seq + 1)) {
+        return seq;
+      }
+    }
+  }
+
+  private void publish(long seq, Slot slot, int status, long bytes, long nanos) {
+    slot.time = System.currentTimeMillis();
+    slot.status = status;
+    slot.bytes = bytes;
+    slot.nanos = nanos;
+    // volatile write, makes the fields above visible to the writer thread
+    published.set((int) (seq & mask), seq + 1);
+    // both volatile: either the writer sees the record before it parks or we see it parked
+    if (parked) {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  private boolean nextPublished() {
+    long seq = consumed;
+    return published.get((int) (seq & mask)) == seq + 1;
+  }
+
+  /**
+   * Writer thread: takes records in order and writes them, flushing
+   * whenever it has caught up with the producers
+   */
+  private void drain() {
+    long reportedDrops = 0;
+    while (true) {
+      int written = writeAvailable();
+      long drops = dropped.sum();
+      synchronized (this) {
+        try {
+          if (drops != reportedDrops) {
+            write(("# dropped " + (drops - reportedDrops) + " records, ring full\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+            reportedDrops = drops;
+          }
+          if (out != null && written > 0) {
+            out.flush();
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+      if (written == 0) {
+        parked = true;
+        // park may also return early, the loop just looks again
+        if (!nextPublished()) {
+          LockSupport.park(this);
+        }
+        parked = false;
+      }
+    }
+  }
+
+  /**
+   * Writes every record that is published, in order
+   * @return number of records written
+   */
+  private synchronized int writeAvailable() {
+    StringBuilder text = new StringBuilder(160);
+    int count = 0;
+    while (nextPublished()) {
+      long seq = consumed;
+      Slot slot = slots[(int) (seq & mask)];
+      text.setLength(0);
+      text.append(Instant.ofEpochMilli(slot.time)).append(" \"");
+      for (int i = 0; i < slot.lineLength; i++) {
+        text.append((char) (slot.line[i] & 0xff));
+      }
+      text.append("\" ").append(slot.status).append(' ')
+          .append(slot.bytes < 0 ? "-" : Long.toString(slot.bytes)).append(' ')
+          .append(slot.nanos / 1000).append("us\n");
+      // the slot may be reused from here on
+      consumed = seq + 1;
+      try {
+        write(text.toString().getBytes(StandardCharsets.ISO_8859_1));
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Writes what is left, used on shutdown
+   */
+  synchronized void flush() {
+    writeAvailable();
+    try {
+      if (out != null) {
+        out.flush();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void write(byte[] record) throws IOException {
+    if (out == null || fileBytes + record.length > maxFileBytes) {
+      rotate();
+    }
+    out.write(record);
+    fileBytes += record.length;
+  }
+
+  /**
+   * access.log -> access.log.1 -> ... -> access.log.keepFiles (deleted)
+   */
+  private void rotate() throws IOException {
+    if (out != null) {
+      out.close();
+      for (int i = keepFiles - 1; i >= 1; i--) {
+        File older = new File(file.getPath() + "." + i);
+        if (older.exists()) {
+          older.renameTo(new File(file.getPath() + "." + (i + 1)));
+        }
+      }
+      if (keepFiles > 0) {
+        file.renameTo(new File(file.getPath() + ".1"));
+      } else {
+        file.delete();
+      }
+    }
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (parent != null) {
+      parent.mkdirs();
+    }
+    // appends, so a restart does not truncate the current file
+    out = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+    fileBytes = file.length();
+  }
+}
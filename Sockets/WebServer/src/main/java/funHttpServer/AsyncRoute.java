@@ -0,0 +1,22 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Route that waits on something outside the server (e.g. an upstream API).
+ *
+ * The NIO front end calls handleAsync and sends the response once the future
+ * completes, so no thread is blocked in the meantime. The request is pooled:
+ * read everything needed from it before handleAsync returns.
+ */
+interface AsyncRoute extends Route {
+  CompletableFuture<HttpResponse> handleAsync(HttpRequest request, QueryParams query) throws IOException;
+
+  /**
+   * Blocking version for the single threaded front end
+   */
+  default HttpResponse handle(HttpRequest request, QueryParams query) throws IOException {
+    return handleAsync(request, query).join();
+  }
+}
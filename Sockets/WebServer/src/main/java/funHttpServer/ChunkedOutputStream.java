@@ -0,0 +1,122 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Body stream of a response whose length is not known up front.
+ *
+ * Collects what the route writes and hands it to the front end in pieces of
+ * up to CHUNK_SIZE bytes, framed with Transfer-Encoding: chunked for HTTP/1.1
+ * clients. HTTP/1.0 clients get the raw bytes and the end of the body is
+ * marked by closing the connection. flush() sends what is buffered right
+ * away, close() ends the body.
+ */
+class ChunkedOutputStream extends OutputStream {
+  /** largest piece handed to the sink */
+  static final int CHUNK_SIZE = 8192;
+
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+  /**
+   * Where the encoded pieces go, e.g. a socket
+   */
+  interface Sink {
+    /**
+     * @param data one encoded piece, the sink may keep it
+     */
+    void send(ByteBuffer data) throws IOException;
+
+    /**
+     * Called once after the last piece
+     */
+    default void finish() throws IOException {
+    }
+  }
+
+  private final Sink sink;
+  private final boolean chunked;
+  private final byte[] buf = new byte[CHUNK_SIZE];
+  private int count;
+  private boolean closed;
+
+  /**
+   * @param sink receives the encoded pieces
+   * @param chunked true to use chunked framing, false to send the raw body
+   */
+  ChunkedOutputStream(Sink sink, boolean chunked) {
+    this.sink = sink;
+    this.chunked = chunked;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    if (count == buf.length) {
+      emit();
+    }
+    buf[count++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    while (len > 0) {
+      if (count == buf.length) {
+        emit();
+      }
+      int n = Math.min(len, buf.length - count);
+      System.arraycopy(b, off, buf, count, n);
+      count += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    emit();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    emit();
+    if (chunked) {
+      sink.send(ByteBuffer.wrap(LAST_CHUNK));
+    }
+    sink.finish();
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream already closed");
+    }
+  }
+
+  /**
+   * Hands the buffered bytes to the sink as one chunk
+   */
+  private void emit() throws IOException {
+    if (count == 0) {
+      return;
+    }
+    ByteBuffer piece;
+    if (chunked) {
+      byte[] size = (Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+      piece = ByteBuffer.allocate(size.length + count + CRLF.length);
+      piece.put(size).put(buf, 0, count).put(CRLF).flip();
+    } else {
+      piece = ByteBuffer.allocate(count);
+      piece.put(buf, 0, count).flip();
+    }
+    count = 0;
+    sink.send(piece);
+  }
+}
@@ -0,0 +1,219 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * gzip/deflate for responses, negotiated with Accept-Encoding.
+ *
+ * Only text like content types (see compressible) of at least MIN_SIZE bytes
+ * are compressed; images are compressed already and small bodies do not get
+ * smaller. Partial content (Range) is never compressed.
+ *
+ * Static files are not compressed per request: the gzip variant of a file is
+ * written once to PRECOMPRESSED_DIR (on the first hit, or up front by
+ * running this class) and then sent with transferTo like the file itself.
+ * Variants are kept outside www/ so they are not listed or watched.
+ */
+class Compression {
+  /** bodies below this are sent as they are */
+  static final int MIN_SIZE = 1024;
+  /** where the .gz variants of static files are kept */
+  static final File PRECOMPRESSED_DIR = new File(System.getProperty("precompressed.dir", "build/precompressed"));
+
+  static final String GZIP = "gzip";
+  static final String DEFLATE = "deflate";
+
+  /**
+   * Precompresses www/ and the html files in images/, e.g. at build time
+   */
+  public static void main(String[] args) throws IOException {
+    String[] roots = args.length > 0 ? args : new String[] {"www", "images"};
+    for (String root : roots) {
+      File[] files = new File(root).listFiles();
+      if (files == null) {
+        continue;
+      }
+      for (File file : files) {
+        if (file.isFile() && compressible(StaticFiles.contentType(file.getName()))) {
+          File gz = precompressed(file);
+          System.out.println(file + " -> " + gz + " (" + file.length() + " -> " + gz.length() + " bytes)");
+        }
+      }
+    }
+  }
+
+  /**
+   * Picks the encoding from Accept-Encoding, gzip before deflate
+   * @return GZIP, DEFLATE or null for no compression
+   */
+  static String negotiate(HttpRequest request) {
+    String accept = request == null ? null : request.header("accept-encoding");
+    if (accept == null) {
+      return null;
+    }
+    float gzip = -1;
+    float deflate = -1;
+    float any = 0;
+    for (String part : accept.split(",")) {
+      String[] fields = part.trim().split(";");
+      String coding = fields[0].trim().toLowerCase();
+      float q = 1;
+      for (int i = 1; i < fields.length; i++) {
+        String param = fields[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            q = Float.parseFloat(param.substring(2));
+          } catch (NumberFormatException e) {
+            q = 0;
+          }
+        }
+      }
+      if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+        gzip = q;
+      } else if (coding.equals(DEFLATE)) {
+        deflate = q;
+      } else if (coding.equals("*")) {
+        any = q;
+      }
+    }
+    // codings that are not listed get the q of "*", if there is one
+    if (gzip < 0) {
+      gzip = any;
+    }
+    if (deflate < 0) {
+      deflate = any;
+    }
+    if (gzip > 0 && gzip >= deflate) {
+      return GZIP;
+    }
+    return deflate > 0 ? DEFLATE : null;
+  }
+
+  /**
+   * Content types worth compressing
+   */
+  static boolean compressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    return contentType.startsWith("text/") || contentType.startsWith("application/json")
+        || contentType.startsWith("application/javascript") || contentType.startsWith("image/svg+xml");
+  }
+
+  /**
+   * Compresses a finished response if the client and the content allow it
+   * @param encoding result of negotiate for the request
+   * @param range true if the request asked for a byte range
+   * @return response or a compressed copy of it
+   */
+  static HttpResponse apply(HttpResponse response, String encoding, boolean range) throws IOException {
+    if (!response.status.startsWith("200") || response.headers.containsKey("Content-Encoding")
+        || !compressible(response.headers.get("Content-Type"))) {
+      return response;
+    }
+    if (response.stream == null && response.contentLength() < MIN_SIZE) {
+      return response;
+    }
+    // the answer depends on Accept-Encoding, shared caches have to know
+    response.header("Vary", "Accept-Encoding");
+    if (encoding == null || range) {
+      return response;
+    }
+
+    HttpResponse compressed;
+    if (response.stream != null) {
+      HttpResponse.StreamBody body = response.stream;
+      compressed = HttpResponse.ofStream(response.status, response.headers.get("Content-Type"), out -> {
+        DeflaterOutputStream zipped = open(out, encoding);
+        body.writeTo(zipped);
+        zipped.finish();
+      });
+    } else if (response.file != null) {
+      if (!encoding.equals(GZIP) || response.fileOffset != 0
+          || response.fileLength != response.file.length()) {
+        // only whole files have a gzip variant
+        return response;
+      }
+      File gz = precompressed(response.file);
+      compressed = HttpResponse.ofFile(response.status, gz, 0, gz.length());
+    } else {
+      compressed = new HttpResponse(response.status, compress(response.body, encoding));
+    }
+    compressed.headers.putAll(response.headers);
+    compressed.metrics = response.metrics;
+    compressed.headers.remove("Accept-Ranges");
+    compressed.header("Content-Encoding", encoding);
+    String etag = response.headers.get("ETag");
+    if (etag != null) {
+      compressed.header("ETag", variantEtag(etag, encoding));
+    }
+    return compressed;
+  }
+
+  /**
+   * The compressed variant has other bytes, so it needs its own ETag
+   */
+  static String variantEtag(String etag, String encoding) {
+    return etag.endsWith("\"") ? etag.substring(0, etag.length() - 1) + "-" + encoding + "\"" : etag;
+  }
+
+  /**
+   * @return etag without the suffix added by variantEtag
+   */
+  static String identityEtag(String etag) {
+    for (String encoding : new String[] {GZIP, DEFLATE}) {
+      String suffix = "-" + encoding + "\"";
+      if (etag.endsWith(suffix)) {
+        return etag.substring(0, etag.length() - suffix.length()) + "\"";
+      }
+    }
+    return etag;
+  }
+
+  static byte[] compress(byte[] body, String encoding) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 3 + 64);
+    DeflaterOutputStream zipped = open(bytes, encoding);
+    zipped.write(body);
+    zipped.close();
+    return bytes.toByteArray();
+  }
+
+  private static DeflaterOutputStream open(OutputStream out, String encoding) throws IOException {
+    // "deflate" in HTTP is the zlib format, which is what DeflaterOutputStream writes
+    return encoding.equals(GZIP) ? new GZIPOutputStream(out, 8192) : new DeflaterOutputStream(out);
+  }
+
+  /**
+   * Returns the gzip variant of a file, writing it first if it is missing or
+   * older than the file. The variant gets the modification time of the file
+   * so a changed file is noticed.
+   */
+  static File precompressed(File file) throws IOException {
+    File base = new File("").getAbsoluteFile();
+    String relative = base.toPath().relativize(file.getAbsoluteFile().toPath()).toString();
+    File gz = new File(PRECOMPRESSED_DIR, relative + ".gz");
+    if (gz.isFile() && gz.lastModified() == file.lastModified()) {
+      return gz;
+    }
+    gz.getParentFile().mkdirs();
+    // written to a temp file and renamed, so a concurrent hit never sees half a file
+    File tmp = File.createTempFile(gz.getName(), ".tmp", gz.getParentFile());
+    try (InputStream in = new FileInputStream(file);
+         GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), 8192)) {
+      in.transferTo(out);
+    }
+    tmp.setLastModified(file.lastModified());
+    Files.move(tmp.toPath(), gz.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return gz;
+  }
+}
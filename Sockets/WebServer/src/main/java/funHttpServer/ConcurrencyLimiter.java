@@ -0,0 +1,173 @@
+package funHttpServer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caps the number of requests in flight, so an overloaded server answers
+ * 503 right away instead of letting requests queue up until clients give up.
+ *
+ * The limit is either fixed (the default) or adapted with AIMD on the
+ * observed latency. Releases only add to atomics; every WINDOW samples the
+ * thread that completes the window adapts the limit once. The baseline is
+ * a moving average of the mean latency of the windows, so it follows a
+ * lasting change slowly. If more than half of a window took over TOLERANCE
+ * times the baseline (requests are queueing somewhere) the limit shrinks by
+ * BACKOFF, else it grows by one per limit requests while the limit is used.
+ * One slow request, or a few, change nothing. A request counts from the
+ * moment it is admitted, so time spent waiting for a worker is part of its
+ * latency.
+ */
+class ConcurrencyLimiter {
+  /** latency above baseline * TOLERANCE (plus SLACK_NANOS) counts as slow */
+  static final double TOLERANCE = 2.0;
+  static final long SLACK_NANOS = 1_000_000;
+  /** factor the limit is cut by on congestion */
+  static final double BACKOFF = 0.9;
+  /** samples the limit is adapted after, a power of two */
+  static final int WINDOW = 256;
+  /** weight of a window's mean latency in the baseline */
+  static final double BASELINE_WEIGHT = 1.0 / 16;
+
+  final String name;
+  private final boolean adaptive;
+  private final int minLimit;
+  private final int maxLimit;
+  private final AtomicInteger inflight = new AtomicInteger();
+  private final LongAdder rejected = new LongAdder();
+  private volatile double limit;
+
+  // the current window, reset by whoever adapts the limit
+  private final AtomicInteger samples = new AtomicInteger();
+  private final AtomicInteger slowSamples = new AtomicInteger();
+  private final AtomicLong windowSum = new AtomicLong();
+  private final AtomicInteger windowPeak = new AtomicInteger();
+  private final AtomicBoolean adapting = new AtomicBoolean();
+  /** nanoseconds, 0 until the first window is complete */
+  private volatile double baseline;
+
+  private ConcurrencyLimiter(String name, boolean adaptive, int initial, int minLimit, int maxLimit) {
+    this.name = name;
+    this.adaptive = adaptive;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.limit = initial;
+  }
+
+  static ConcurrencyLimiter fixed(String name, int limit) {
+    return new ConcurrencyLimiter(name, false, limit, limit, limit);
+  }
+
+  static ConcurrencyLimiter aimd(String name, int initial, int minLimit, int maxLimit) {
+    return new ConcurrencyLimiter(name, true, initial, minLimit, maxLimit);
+  }
+
+  /**
+   * @param property system property with "aimd" or a fixed limit of 1 or more
+   * @param otherwise setting if the property is not set
+   * @throws IllegalArgumentException naming the property if its value is neither
+   */
+  static ConcurrencyLimiter fromSystemProperty(String name, String property, String otherwise) {
+    String setting = System.getProperty(property, otherwise).trim();
+    if (setting.equalsIgnoreCase("aimd")) {
+      return aimd(name, 32, 8, 1024);
+    }
+    int limit;
+    try {
+      limit = Integer.parseInt(setting);
+    } catch (NumberFormatException e) {
+      limit = 0;
+    }
+    if (limit < 1) {
+      throw new IllegalArgumentException("-D" + property + " must be aimd or a number of 1 or more, not \""
+          + setting + "\"");
+    }
+    return fixed(name, limit);
+  }
+
+  /**
+   * Takes a slot, every successful call needs a release
+   * @return false if the limit is reached, the request has to be refused
+   */
+  boolean tryAcquire() {
+    while (true) {
+      int current = inflight.get();
+      if (current >= (int) limit) {
+        rejected.increment();
+        return false;
+      }
+      if (inflight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Gives the slot back
+   * @param latencyNanos time since the request was admitted
+   */
+  void release(long latencyNanos) {
+    int before = inflight.getAndDecrement();
+    if (adaptive) {
+      sample(latencyNanos, before);
+    }
+  }
+
+  private void sample(long latency, int inflightBefore) {
+    double base = baseline;
+    if (base > 0 && latency > base * TOLERANCE + SLACK_NANOS) {
+      slowSamples.incrementAndGet();
+    }
+    windowSum.addAndGet(latency);
+    int peak;
+    while (inflightBefore > (peak = windowPeak.get()) && !windowPeak.compareAndSet(peak, inflightBefore)) {
+      // lost against another sample, look again
+    }
+    // the counter may wrap, with a power of two every WINDOW-th sample still ends a window
+    if ((samples.incrementAndGet() & (WINDOW - 1)) == 0 && adapting.compareAndSet(false, true)) {
+      try {
+        adapt();
+      } finally {
+        adapting.set(false);
+      }
+    }
+  }
+
+  /**
+   * Once per window, by one thread at a time. Samples that come in while
+   * the window is reset may count for the next window, that is all.
+   */
+  private void adapt() {
+    int slow = slowSamples.getAndSet(0);
+    double mean = (double) windowSum.getAndSet(0) / WINDOW;
+    int peak = windowPeak.getAndSet(0);
+    double base = baseline;
+    if (base == 0) {
+      // the first window only measures
+      baseline = Math.max(1, mean);
+      return;
+    }
+    baseline = base + (mean - base) * BASELINE_WEIGHT;
+    double current = limit;
+    if (slow * 2 > WINDOW) {
+      limit = Math.max(minLimit, current * BACKOFF);
+    } else if (peak * 2 >= current) {
+      // only grow while the limit is actually used
+      limit = Math.min(maxLimit, current + WINDOW / current);
+    }
+  }
+
+  int limit() {
+    return (int) limit;
+  }
+
+  int inflight() {
+    return inflight.get();
+  }
+
+  long rejected() {
+    return rejected.sum();
+  }
+}
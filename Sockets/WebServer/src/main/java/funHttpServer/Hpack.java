@@ -0,0 +1,440 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK, the header compression of HTTP/2 (RFC 7541).
+ *
+ * Header fields are sent as indexes into a static table of common fields
+ * and a dynamic table of fields sent earlier on the same connection, or as
+ * literals, optionally Huffman coded. Decoder and Encoder each keep their
+ * own dynamic table, one per direction of a connection.
+ */
+class Hpack {
+  /** size of the dynamic tables unless the peer asks for a smaller one */
+  static final int DEFAULT_TABLE_SIZE = 4096;
+
+  /**
+   * A header block the decoder cannot make sense of, a connection error
+   */
+  static class CompressionException extends IOException {
+    CompressionException(String message) {
+      super(message);
+    }
+  }
+
+  private static final String[][] STATIC_TABLE = {
+      {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+      {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+      {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+      {":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+      {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+      {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+      {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+      {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+      {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+      {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+      {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+      {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+      {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+      {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+      {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+      {"www-authenticate", ""}
+  };
+
+  /** static index of "name\0value" and of the first entry with "name" */
+  private static final Map<String, Integer> STATIC_INDEX = new HashMap<>();
+
+  static {
+    for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+      STATIC_INDEX.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+      STATIC_INDEX.put(STATIC_TABLE[i][0], i + 1);
+    }
+  }
+
+  /** Huffman code of every byte value and of EOS (256), RFC 7541 Appendix B */
+  private static final int[] HUFFMAN_CODES = {
+      0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+      0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+      0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+      0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+      0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+      0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+      0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+      0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+      0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+      0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+      0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+      0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+      0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+      0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+      0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+      0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+      0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+      0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+      0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+      0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+      0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+      0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+      0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+      0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+      0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+      0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+      0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+      0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+      0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+      0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+      0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+      0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+      0x3fffffff
+  };
+
+  private static final byte[] HUFFMAN_LENGTHS = {
+      13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+      28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+      6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+      5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+      13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+      7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+      15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+      6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+      20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+      24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+      22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+      21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+      26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+      19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+      20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+      26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+      30
+  };
+
+  /**
+   * Decoding tree: node 0 is the root, children of node n are
+   * TREE[2n] (bit 0) and TREE[2n + 1] (bit 1); a negative entry is a leaf
+   * holding -(symbol + 1).
+   */
+  private static final int[] TREE = new int[2 * 257];
+
+  static {
+    int nodes = 1;
+    for (int symbol = 0; symbol <= 256; symbol++) {
+      int node = 0;
+      for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+        int slot = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+        if (bit == 0) {
+          TREE[slot] = -(symbol + 1);
+        } else {
+          if (TREE[slot] == 0) {
+            TREE[slot] = nodes++;
+          }
+          node = TREE[slot];
+        }
+      }
+    }
+  }
+
+  /**
+   * Dynamic table, newest entry first (index 62)
+   */
+  private static class Table {
+    private final ArrayList<String[]> entries = new ArrayList<>();
+    private int size;
+    private int maxSize = DEFAULT_TABLE_SIZE;
+
+    String[] get(int index) throws CompressionException {
+      if (index >= 1 && index <= STATIC_TABLE.length) {
+        return STATIC_TABLE[index - 1];
+      }
+      int dynamic = index - STATIC_TABLE.length - 1;
+      if (dynamic < 0 || dynamic >= entries.size()) {
+        throw new CompressionException("Header index " + index + " out of range");
+      }
+      return entries.get(entries.size() - 1 - dynamic);
+    }
+
+    void add(String name, String value) {
+      int entrySize = name.length() + value.length() + 32;
+      evict(maxSize - entrySize);
+      if (entrySize <= maxSize) {
+        entries.add(new String[] {name, value});
+        size += entrySize;
+      }
+    }
+
+    void resize(int newSize) {
+      maxSize = newSize;
+      evict(newSize);
+    }
+
+    private void evict(int limit) {
+      while (size > Math.max(0, limit) && !entries.isEmpty()) {
+        String[] oldest = entries.remove(0);
+        size -= oldest[0].length() + oldest[1].length() + 32;
+      }
+    }
+
+    /**
+     * @return index of the exact field, minus the index of a field with the
+     *     same name, or 0
+     */
+    int find(String name, String value) {
+      Integer exact = STATIC_INDEX.get(name + '\0' + value);
+      if (exact != null) {
+        return exact;
+      }
+      int nameOnly = 0;
+      for (int i = entries.size() - 1; i >= 0; i--) {
+        String[] entry = entries.get(i);
+        if (entry[0].equals(name)) {
+          int index = STATIC_TABLE.length + entries.size() - i;
+          if (entry[1].equals(value)) {
+            return index;
+          }
+          if (nameOnly == 0) {
+            nameOnly = index;
+          }
+        }
+      }
+      Integer staticName = STATIC_INDEX.get(name);
+      if (staticName != null) {
+        return -staticName;
+      }
+      return -nameOnly;
+    }
+  }
+
+  /**
+   * Turns header blocks of the peer into name/value pairs
+   */
+  static class Decoder {
+    private final Table table = new Table();
+    /** largest table the peer may ask for, what we announced in SETTINGS */
+    private final int limit;
+
+    Decoder(int limit) {
+      this.limit = limit;
+      table.resize(limit);
+    }
+
+    /**
+     * @return names and values of the block, alternating
+     */
+    List<String> decode(byte[] block, int offset, int length) throws CompressionException {
+      List<String> fields = new ArrayList<>();
+      int[] pos = {offset};
+      int end = offset + length;
+      boolean fieldSeen = false;
+      while (pos[0] < end) {
+        int b = block[pos[0]] & 0xff;
+        if ((b & 0x80) != 0) {
+          // indexed field
+          String[] entry = table.get(readInt(block, pos, end, 7));
+          fields.add(entry[0]);
+          fields.add(entry[1]);
+          fieldSeen = true;
+        } else if ((b & 0xe0) == 0x20) {
+          // dynamic table size update, only allowed before the first field
+          int size = readInt(block, pos, end, 5);
+          if (fieldSeen || size > limit) {
+            throw new CompressionException("Illegal table size update " + size);
+          }
+          table.resize(size);
+        } else {
+          // literal: with incremental indexing (01), without (0000) or never indexed (0001)
+          boolean indexing = (b & 0xc0) == 0x40;
+          int nameIndex = readInt(block, pos, end, indexing ? 6 : 4);
+          String name = nameIndex == 0 ? readString(block, pos, end) : table.get(nameIndex)[0];
+          String value = readString(block, pos, end);
+          if (indexing) {
+            table.add(name, value);
+          }
+          fields.add(name);
+          fields.add(value);
+          fieldSeen = true;
+        }
+      }
+      return fields;
+    }
+  }
+
+  /**
+   * Turns our response headers into header blocks
+   */
+  static class Encoder {
+    private final Table table = new Table();
+    /** size the peer allows (SETTINGS_HEADER_TABLE_SIZE) */
+    private int allowed = DEFAULT_TABLE_SIZE;
+    private boolean sizeChanged;
+
+    /**
+     * The peer changed SETTINGS_HEADER_TABLE_SIZE, announced in the next block
+     */
+    void setMaxTableSize(int size) {
+      allowed = Math.min(size, DEFAULT_TABLE_SIZE);
+      sizeChanged = true;
+    }
+
+    /**
+     * Starts a header block
+     */
+    ByteArrayOutputStream begin() {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+      if (sizeChanged) {
+        table.resize(allowed);
+        writeInt(out, 0x20, 5, allowed);
+        sizeChanged = false;
+      }
+      return out;
+    }
+
+    /**
+     * Adds a field to a block
+     * @param name lower case name
+     * @param index false for values that change with every response (ETag,
+     *     Content-Length), they would only push useful entries out
+     */
+    void field(ByteArrayOutputStream out, String name, String value, boolean index) {
+      int found = table.find(name, value);
+      if (found > 0) {
+        writeInt(out, 0x80, 7, found);
+        return;
+      }
+      if (index) {
+        writeInt(out, 0x40, 6, -found);
+        table.add(name, value);
+      } else {
+        writeInt(out, 0x00, 4, -found);
+      }
+      if (found == 0) {
+        writeString(out, name);
+      }
+      writeString(out, value);
+    }
+  }
+
+  static int readInt(byte[] block, int[] pos, int end, int prefixBits) throws CompressionException {
+    int max = (1 << prefixBits) - 1;
+    int value = block[pos[0]++] & max;
+    if (value < max) {
+      return value;
+    }
+    int shift = 0;
+    while (true) {
+      if (pos[0] >= end) {
+        throw new CompressionException("Integer runs past the header block");
+      }
+      int b = block[pos[0]++] & 0xff;
+      value += (b & 0x7f) << shift;
+      if (value < 0 || shift > 21) {
+        throw new CompressionException("Integer too large");
+      }
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+      shift += 7;
+    }
+  }
+
+  static String readString(byte[] block, int[] pos, int end) throws CompressionException {
+    if (pos[0] >= end) {
+      throw new CompressionException("String runs past the header block");
+    }
+    boolean huffman = (block[pos[0]] & 0x80) != 0;
+    int length = readInt(block, pos, end, 7);
+    if (length > end - pos[0]) {
+      throw new CompressionException("String runs past the header block");
+    }
+    int start = pos[0];
+    pos[0] += length;
+    if (!huffman) {
+      return new String(block, start, length, StandardCharsets.ISO_8859_1);
+    }
+    StringBuilder text = new StringBuilder(length * 8 / 5);
+    int node = 0;
+    int pendingBits = 0;
+    boolean allOnes = true;
+    for (int i = start; i < start + length; i++) {
+      for (int bit = 7; bit >= 0; bit--) {
+        int one = (block[i] >>> bit) & 1;
+        int next = TREE[2 * node + one];
+        pendingBits++;
+        allOnes &= one == 1;
+        if (next < 0) {
+          int symbol = -next - 1;
+          if (symbol == 256) {
+            throw new CompressionException("EOS inside a Huffman string");
+          }
+          text.append((char) symbol);
+          node = 0;
+          pendingBits = 0;
+          allOnes = true;
+        } else if (next == 0) {
+          throw new CompressionException("Invalid Huffman code");
+        } else {
+          node = next;
+        }
+      }
+    }
+    // padding is the start of EOS: at most 7 bits, all ones
+    if (pendingBits > 7 || !allOnes) {
+      throw new CompressionException("Invalid Huffman padding");
+    }
+    return text.toString();
+  }
+
+  static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+    int max = (1 << prefixBits) - 1;
+    if (value < max) {
+      out.write(flags | value);
+      return;
+    }
+    out.write(flags | max);
+    value -= max;
+    while (value >= 0x80) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /**
+   * Writes a string literal, Huffman coded when that is shorter
+   */
+  static void writeString(ByteArrayOutputStream out, String s) {
+    long bits = 0;
+    for (int i = 0; i < s.length(); i++) {
+      bits += HUFFMAN_LENGTHS[s.charAt(i) & 0xff];
+    }
+    int huffmanLength = (int) ((bits + 7) / 8);
+    if (huffmanLength >= s.length()) {
+      writeInt(out, 0x00, 7, s.length());
+      for (int i = 0; i < s.length(); i++) {
+        out.write(s.charAt(i));
+      }
+      return;
+    }
+    writeInt(out, 0x80, 7, huffmanLength);
+    long buffer = 0;
+    int count = 0;
+    for (int i = 0; i < s.length(); i++) {
+      int symbol = s.charAt(i) & 0xff;
+      buffer = (buffer << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+      count += HUFFMAN_LENGTHS[symbol];
+      while (count >= 8) {
+        count -= 8;
+        out.write((int) (buffer >>> count));
+      }
+    }
+    if (count > 0) {
+      // pad with the most significant bits of EOS, all ones
+      out.write((int) ((buffer << (8 - count)) | (0xff >>> count)));
+    }
+  }
+}
@@ -0,0 +1,801 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Server side of one HTTP/2 connection over cleartext (h2c, RFC 9113).
+ *
+ * The client either starts with the connection preface right away (prior
+ * knowledge) or asks for "Upgrade: h2c" on an HTTP/1.1 request, which then
+ * becomes stream 1. Every stream carries one request; its header block is
+ * decoded with HPACK and rewritten into an HttpRequest, so the routes of
+ * WebServer run unchanged and in parallel on the worker pool. Responses go
+ * out as HEADERS and DATA frames in whatever order they finish.
+ *
+ * DATA is only sent while both the stream and the connection window of the
+ * client allow it. The front end pulls frames with nextOutput when the
+ * socket can take them, so file bodies are read in pieces of at most
+ * WRITE_BATCH bytes instead of being loaded at once.
+ *
+ * Only used by the reactor thread of NioServer.
+ */
+class Http2Connection {
+  static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+  static final int FRAME_HEADER = 9;
+  /** largest frame we accept, the protocol default */
+  static final int MAX_FRAME_SIZE = 16384;
+  static final int MAX_CONCURRENT_STREAMS = 100;
+  static final int DEFAULT_WINDOW = 65535;
+  /** DATA bytes prepared per nextOutput call */
+  static final int WRITE_BATCH = 64 * 1024;
+
+  static final int DATA = 0x0;
+  static final int HEADERS = 0x1;
+  static final int PRIORITY = 0x2;
+  static final int RST_STREAM = 0x3;
+  static final int SETTINGS = 0x4;
+  static final int PUSH_PROMISE = 0x5;
+  static final int PING = 0x6;
+  static final int GOAWAY = 0x7;
+  static final int WINDOW_UPDATE = 0x8;
+  static final int CONTINUATION = 0x9;
+
+  static final int END_STREAM = 0x1;
+  static final int ACK = 0x1;
+  static final int END_HEADERS = 0x4;
+  static final int PADDED = 0x8;
+  static final int PRIORITY_FLAG = 0x20;
+
+  static final int NO_ERROR = 0x0;
+  static final int PROTOCOL_ERROR = 0x1;
+  static final int INTERNAL_ERROR = 0x2;
+  static final int FLOW_CONTROL_ERROR = 0x3;
+  static final int STREAM_CLOSED = 0x5;
+  static final int FRAME_SIZE_ERROR = 0x6;
+  static final int REFUSED_STREAM = 0x7;
+  static final int COMPRESSION_ERROR = 0x9;
+
+  /** headers that only mean something for one HTTP/1.1 connection */
+  private static final List<String> CONNECTION_HEADERS =
+      List.of("connection", "keep-alive", "transfer-encoding", "upgrade", "proxy-connection");
+  /** values that differ on every response, not worth a dynamic table entry */
+  private static final List<String> NOT_INDEXED = List.of("content-length", "etag", "last-modified", "date");
+
+  /**
+   * Runs the requests of the connection, implemented by the front end
+   */
+  interface Transport {
+    /**
+     * Builds the response for a stream; it has to be passed to respond on
+     * the reactor thread. The transport releases the request.
+     */
+    void dispatch(HttpRequest request, int streamId);
+  }
+
+  /**
+   * One request and its response
+   */
+  private static class Stream {
+    final int id;
+    long sendWindow;
+    HttpResponse response;
+    long responded;
+    long sent;
+    // body still to send: an array or a region of a file
+    byte[] body;
+    int bodyPosition;
+    FileChannel file;
+    long filePosition;
+    long remaining;
+
+    Stream(int id, long sendWindow) {
+      this.id = id;
+      this.sendWindow = sendWindow;
+    }
+
+    void close() {
+      if (file != null) {
+        try {
+          file.close();
+        } catch (IOException e) {
+          // done with it anyway
+        }
+        file = null;
+      }
+    }
+  }
+
+  private final Transport transport;
+  private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+  private final Hpack.Encoder encoder = new Hpack.Encoder();
+  private final Map<Integer, Stream> streams = new HashMap<>();
+  /** frames other than DATA, sent first */
+  private final ArrayDeque<ByteBuffer> control = new ArrayDeque<>();
+  /** streams with body bytes left, served round robin */
+  private final ArrayDeque<Stream> sending = new ArrayDeque<>();
+
+  private boolean prefaceReceived;
+  private int lastStreamId;
+  private long connectionWindow = DEFAULT_WINDOW;
+  private int initialWindow = DEFAULT_WINDOW;
+  private int peerMaxFrameSize = MAX_FRAME_SIZE;
+  /** header block being collected from HEADERS and CONTINUATION frames */
+  private ByteArrayOutputStream headerBlock;
+  private int headerStream;
+  /** no new streams: GOAWAY was sent or received */
+  private boolean goingAway;
+  /** a connection error was sent, close once the frames are out */
+  private boolean failed;
+
+  Http2Connection(Transport transport) {
+    this.transport = transport;
+    // our SETTINGS are the first frame of the server
+    ByteBuffer settings = frame(SETTINGS, 0, 0, 12);
+    settings.putShort((short) 0x3).putInt(MAX_CONCURRENT_STREAMS);
+    settings.putShort((short) 0x4).putInt(DEFAULT_WINDOW);
+    control.add(settings.flip());
+  }
+
+  /**
+   * Connection for a client that sent "Upgrade: h2c", its request is stream 1
+   * @param settings value of the HTTP2-Settings header
+   */
+  static Http2Connection upgrade(Transport transport, String settings) throws IOException {
+    Http2Connection connection = new Http2Connection(transport);
+    byte[] payload;
+    try {
+      payload = Base64.getUrlDecoder().decode(settings.trim());
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Malformed HTTP2-Settings");
+    }
+    if (!connection.applySettings(ByteBuffer.wrap(payload), payload.length)) {
+      throw new IOException("Illegal HTTP2-Settings");
+    }
+    connection.lastStreamId = 1;
+    connection.streams.put(1, new Stream(1, connection.initialWindow));
+    return connection;
+  }
+
+  /**
+   * @return true if data starts with the connection preface, as far as it goes
+   */
+  static boolean startsWithPreface(ByteBuffer data) {
+    int n = Math.min(data.position(), PREFACE.length);
+    for (int i = 0; i < n; i++) {
+      if (data.get(i) != PREFACE[i]) {
+        return false;
+      }
+    }
+    return n > 0;
+  }
+
+  /**
+   * Handles the complete frames in the buffer and keeps the rest
+   * @param in buffer being filled, big enough for one frame
+   */
+  void receive(ByteBuffer in) {
+    in.flip();
+    try {
+      if (!prefaceReceived) {
+        if (in.remaining() < PREFACE.length) {
+          return;
+        }
+        for (byte b : PREFACE) {
+          if (in.get() != b) {
+            connectionError(PROTOCOL_ERROR);
+            return;
+          }
+        }
+        prefaceReceived = true;
+      }
+      while (!failed && in.remaining() >= FRAME_HEADER) {
+        int length = (in.get(in.position()) & 0xff) << 16 | (in.get(in.position() + 1) & 0xff) << 8
+            | (in.get(in.position() + 2) & 0xff);
+        if (length > MAX_FRAME_SIZE) {
+          connectionError(FRAME_SIZE_ERROR);
+          return;
+        }
+        if (in.remaining() < FRAME_HEADER + length) {
+          return;
+        }
+        in.position(in.position() + 3);
+        int type = in.get() & 0xff;
+        int flags = in.get() & 0xff;
+        int streamId = in.getInt() & 0x7fffffff;
+        int end = in.position() + length;
+        ByteBuffer payload = in.slice().limit(length);
+        in.position(end);
+        onFrame(type, flags, streamId, payload, length);
+      }
+    } finally {
+      in.compact();
+    }
+  }
+
+  private void onFrame(int type, int flags, int streamId, ByteBuffer payload, int length) {
+    if (headerBlock != null && (type != CONTINUATION || streamId != headerStream)) {
+      // a header block has to be finished before anything else is sent
+      connectionError(PROTOCOL_ERROR);
+      return;
+    }
+    switch (type) {
+      case DATA:
+        onData(flags, streamId, length);
+        break;
+      case HEADERS:
+        onHeaders(flags, streamId, payload, length);
+        break;
+      case CONTINUATION:
+        if (headerBlock == null) {
+          connectionError(PROTOCOL_ERROR);
+          return;
+        }
+        appendHeaderBlock(payload, length, flags);
+        break;
+      case PRIORITY:
+        if (length != 5) {
+          resetStream(streamId, FRAME_SIZE_ERROR);
+        }
+        break;
+      case RST_STREAM:
+        if (streamId == 0 || length != 4) {
+          connectionError(streamId == 0 ? PROTOCOL_ERROR : FRAME_SIZE_ERROR);
+          return;
+        }
+        closeStream(streams.get(streamId));
+        break;
+      case SETTINGS:
+        onSettings(flags, streamId, payload, length);
+        break;
+      case PUSH_PROMISE:
+        // clients do not push
+        connectionError(PROTOCOL_ERROR);
+        break;
+      case PING:
+        if (streamId != 0 || length != 8) {
+          connectionError(streamId != 0 ? PROTOCOL_ERROR : FRAME_SIZE_ERROR);
+          return;
+        }
+        if ((flags & ACK) == 0) {
+          ByteBuffer pong = frame(PING, ACK, 0, 8);
+          pong.putLong(payload.getLong());
+          control.add(pong.flip());
+        }
+        break;
+      case GOAWAY:
+        // finish what we have, start nothing new
+        goingAway = true;
+        break;
+      case WINDOW_UPDATE:
+        onWindowUpdate(streamId, payload, length);
+        break;
+      default:
+        // unknown frame types are ignored
+    }
+  }
+
+  private void onData(int flags, int streamId, int length) {
+    if (streamId == 0) {
+      connectionError(PROTOCOL_ERROR);
+      return;
+    }
+    // request bodies are not used by any route; give the window back
+    if (length > 0) {
+      windowUpdate(0, length);
+      if ((flags & END_STREAM) == 0 && streams.containsKey(streamId)) {
+        windowUpdate(streamId, length);
+      }
+    }
+  }
+
+  private void onHeaders(int flags, int streamId, ByteBuffer payload, int length) {
+    if (streamId == 0 || (streamId & 1) == 0) {
+      connectionError(PROTOCOL_ERROR);
+      return;
+    }
+    if (length < ((flags & PADDED) != 0 ? 1 : 0) + ((flags & PRIORITY_FLAG) != 0 ? 5 : 0)) {
+      connectionError(FRAME_SIZE_ERROR);
+      return;
+    }
+    int padding = 0;
+    if ((flags & PADDED) != 0) {
+      padding = payload.get() & 0xff;
+      length--;
+    }
+    if ((flags & PRIORITY_FLAG) != 0) {
+      payload.position(payload.position() + 5);
+      length -= 5;
+    }
+    if (padding > length) {
+      connectionError(PROTOCOL_ERROR);
+      return;
+    }
+    headerBlock = new ByteArrayOutputStream(Math.max(64, length));
+    headerStream = streamId;
+    appendHeaderBlock(payload.limit(payload.position() + length - padding), length - padding, flags);
+  }
+
+  private void appendHeaderBlock(ByteBuffer payload, int length, int flags) {
+    byte[] bytes = new byte[length];
+    payload.get(bytes);
+    headerBlock.write(bytes, 0, length);
+    if (headerBlock.size() > HttpRequest.MAX_HEADER_BYTES * 4) {
+      connectionError(PROTOCOL_ERROR);
+      return;
+    }
+    if ((flags & END_HEADERS) != 0) {
+      byte[] block = headerBlock.toByteArray();
+      headerBlock = null;
+      onHeaderBlock(headerStream, block);
+    }
+  }
+
+  /**
+   * A complete request header arrived, turn it into an HttpRequest
+   */
+  private void onHeaderBlock(int streamId, byte[] block) {
+    long parseStart = System.nanoTime();
+    List<String> fields;
+    try {
+      // always decoded, even for refused streams, or the tables drift apart
+      fields = decoder.decode(block, 0, block.length);
+    } catch (Hpack.CompressionException e) {
+      connectionError(COMPRESSION_ERROR);
+      return;
+    }
+    if (streamId <= lastStreamId) {
+      // trailers of a request we are already working on, or a closed stream
+      if (!streams.containsKey(streamId)) {
+        connectionError(STREAM_CLOSED);
+      }
+      return;
+    }
+    lastStreamId = streamId;
+    if (goingAway || streams.size() >= MAX_CONCURRENT_STREAMS) {
+      resetStream(streamId, REFUSED_STREAM);
+      return;
+    }
+
+    HttpRequest request = HttpRequest.acquire();
+    int length = toHttp1(fields, request.data);
+    if (length < 0) {
+      request.release();
+      resetStream(streamId, PROTOCOL_ERROR);
+      return;
+    }
+    streams.put(streamId, new Stream(streamId, initialWindow));
+    if (length == 0) {
+      request.release();
+      respond(streamId, HttpResponse.of("431 Request Header Fields Too Large", "text/html; charset=utf-8",
+          "<html>Request header too large</html>"));
+      return;
+    }
+    try {
+      RequestParser.parseHead(request, length);
+    } catch (RequestParser.BadRequest e) {
+      request.release();
+      respond(streamId, HttpResponse.of(e.status, "text/html; charset=utf-8",
+          "<html>" + e.getMessage() + "</html>"));
+      return;
+    }
+    // HPACK decoding and the conversion count as parsing, as reading the header does for HTTP/1
+    request.parseNanos = System.nanoTime() - parseStart;
+    transport.dispatch(request, streamId);
+  }
+
+  /**
+   * Writes the request as an HTTP/1 style header, the form RequestParser reads
+   * @return length of the header, 0 if it does not fit, -1 if it is malformed
+   */
+  private static int toHttp1(List<String> fields, byte[] into) {
+    String method = null;
+    String path = null;
+    String authority = null;
+    boolean regularSeen = false;
+    StringBuilder headers = new StringBuilder(256);
+    for (int i = 0; i < fields.size(); i += 2) {
+      String name = fields.get(i);
+      String value = fields.get(i + 1);
+      if (!valid(name, true) || !valid(value, false)) {
+        return -1;
+      }
+      if (name.startsWith(":")) {
+        if (regularSeen) {
+          return -1;
+        }
+        switch (name) {
+          case ":method":
+            method = value;
+            break;
+          case ":path":
+            path = value;
+            break;
+          case ":authority":
+            authority = value;
+            break;
+          case ":scheme":
+            break;
+          default:
+            return -1;
+        }
+        continue;
+      }
+      regularSeen = true;
+      if (CONNECTION_HEADERS.contains(name) || (name.equals("te") && !value.equals("trailers"))) {
+        return -1;
+      }
+      if (name.equals("host") && authority != null) {
+        continue;
+      }
+      headers.append(name).append(": ").append(value).append("\r\n");
+    }
+    if (method == null || path == null || path.isEmpty()) {
+      return -1;
+    }
+    StringBuilder head = new StringBuilder(headers.length() + 64);
+    head.append(method).append(' ').append(path).append(" HTTP/2.0\r\n");
+    if (authority != null) {
+      head.append("host: ").append(authority).append("\r\n");
+    }
+    head.append(headers).append("\r\n");
+    if (head.length() > into.length) {
+      return 0;
+    }
+    for (int i = 0; i < head.length(); i++) {
+      into[i] = (byte) head.charAt(i);
+    }
+    return head.length();
+  }
+
+  /**
+   * Field names are lower case tokens, no field may contain CR, LF or NUL
+   */
+  private static boolean valid(String s, boolean name) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\r' || c == '\n' || c == 0 || (name && (c == ' ' || (c >= 'A' && c <= 'Z')))) {
+        return false;
+      }
+    }
+    return !name || !s.isEmpty();
+  }
+
+  private void onSettings(int flags, int streamId, ByteBuffer payload, int length) {
+    if (streamId != 0) {
+      connectionError(PROTOCOL_ERROR);
+      return;
+    }
+    if ((flags & ACK) != 0) {
+      if (length != 0) {
+        connectionError(FRAME_SIZE_ERROR);
+      }
+      return;
+    }
+    if (length % 6 != 0) {
+      connectionError(FRAME_SIZE_ERROR);
+      return;
+    }
+    if (!applySettings(payload, length)) {
+      return;
+    }
+    control.add(frame(SETTINGS, ACK, 0, 0).flip());
+  }
+
+  /**
+   * @return false if a value is illegal, the connection is failed then
+   */
+  private boolean applySettings(ByteBuffer payload, int length) {
+    for (int i = 0; i + 6 <= length; i += 6) {
+      int id = payload.getShort() & 0xffff;
+      long value = payload.getInt() & 0xffffffffL;
+      switch (id) {
+        case 0x1:
+          encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+          break;
+        case 0x2:
+          if (value > 1) {
+            connectionError(PROTOCOL_ERROR);
+            return false;
+          }
+          break;
+        case 0x4:
+          if (value > Integer.MAX_VALUE) {
+            connectionError(FLOW_CONTROL_ERROR);
+            return false;
+          }
+          // the change applies to the windows of all open streams
+          long delta = value - initialWindow;
+          for (Stream stream : streams.values()) {
+            stream.sendWindow += delta;
+            if (stream.sendWindow > Integer.MAX_VALUE) {
+              connectionError(FLOW_CONTROL_ERROR);
+              return false;
+            }
+          }
+          initialWindow = (int) value;
+          break;
+        case 0x5:
+          if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+            connectionError(PROTOCOL_ERROR);
+            return false;
+          }
+          peerMaxFrameSize = (int) value;
+          break;
+        default:
+          // MAX_CONCURRENT_STREAMS and MAX_HEADER_LIST_SIZE do not matter
+          // to a server that never pushes, unknown settings are ignored
+      }
+    }
+    return true;
+  }
+
+  private void onWindowUpdate(int streamId, ByteBuffer payload, int length) {
+    if (length != 4) {
+      connectionError(FRAME_SIZE_ERROR);
+      return;
+    }
+    int increment = payload.getInt() & 0x7fffffff;
+    if (streamId == 0) {
+      if (increment == 0) {
+        connectionError(PROTOCOL_ERROR);
+        return;
+      }
+      connectionWindow += increment;
+      if (connectionWindow > Integer.MAX_VALUE) {
+        connectionError(FLOW_CONTROL_ERROR);
+      }
+      return;
+    }
+    Stream stream = streams.get(streamId);
+    if (stream == null) {
+      return;
+    }
+    if (increment == 0) {
+      resetStream(streamId, PROTOCOL_ERROR);
+      return;
+    }
+    stream.sendWindow += increment;
+    if (stream.sendWindow > Integer.MAX_VALUE) {
+      resetStream(streamId, FLOW_CONTROL_ERROR);
+    }
+  }
+
+  /**
+   * Sends the response of a stream; ignored if the client reset the stream
+   * in the meantime. Stream bodies have to be buffered by the caller.
+   */
+  void respond(int streamId, HttpResponse response) {
+    Stream stream = streams.get(streamId);
+    if (stream == null || failed) {
+      return;
+    }
+    stream.response = response;
+    stream.responded = System.nanoTime();
+    boolean hasBody = !response.bodyless() && response.contentLength() > 0;
+
+    ByteArrayOutputStream block = encoder.begin();
+    int code = Metrics.statusCode(response.status);
+    encoder.field(block, ":status", Integer.toString(code < 0 ? 500 : code), true);
+    for (Map.Entry<String, String> h : response.headers.entrySet()) {
+      String name = h.getKey().toLowerCase();
+      if (!CONNECTION_HEADERS.contains(name)) {
+        encoder.field(block, name, h.getValue(), !NOT_INDEXED.contains(name));
+      }
+    }
+    if (!response.bodyless()) {
+      encoder.field(block, "content-length", Long.toString(response.contentLength()), false);
+    }
+    sendHeaders(streamId, block.toByteArray(), !hasBody);
+
+    if (!hasBody) {
+      finish(stream);
+      return;
+    }
+    stream.remaining = response.contentLength();
+    if (response.file != null) {
+      stream.filePosition = response.fileOffset;
+      try {
+        stream.file = FileChannel.open(response.file.toPath(), StandardOpenOption.READ);
+      } catch (IOException e) {
+        resetStream(streamId, INTERNAL_ERROR);
+        return;
+      }
+    } else {
+      stream.body = response.body;
+    }
+    sending.add(stream);
+  }
+
+  /**
+   * HEADERS, followed by CONTINUATION frames if the block is larger than a frame
+   */
+  private void sendHeaders(int streamId, byte[] block, boolean endStream) {
+    int offset = 0;
+    boolean first = true;
+    do {
+      int n = Math.min(peerMaxFrameSize, block.length - offset);
+      boolean last = offset + n == block.length;
+      int flags = (last ? END_HEADERS : 0) | (first && endStream ? END_STREAM : 0);
+      ByteBuffer frame = frame(first ? HEADERS : CONTINUATION, flags, streamId, n);
+      frame.put(block, offset, n);
+      control.add(frame.flip());
+      offset += n;
+      first = false;
+    } while (offset < block.length);
+  }
+
+  /**
+   * @return true if there are frames that may be sent now
+   */
+  boolean hasOutput() {
+    if (!control.isEmpty()) {
+      return true;
+    }
+    if (connectionWindow > 0) {
+      for (Stream stream : sending) {
+        if (stream.sendWindow > 0) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the frames that may be sent now, control frames first, then
+   *     DATA of the waiting streams in turn as far as the windows allow;
+   *     null if there are none
+   */
+  ByteBuffer[] nextOutput() {
+    List<ByteBuffer> out = new ArrayList<>(control);
+    control.clear();
+    int batched = 0;
+    int skipped = 0;
+    while (!sending.isEmpty() && connectionWindow > 0 && batched < WRITE_BATCH && skipped < sending.size()) {
+      Stream stream = sending.poll();
+      long allowed = Math.min(Math.min(stream.sendWindow, connectionWindow),
+          Math.min(peerMaxFrameSize, WRITE_BATCH - batched));
+      int n = (int) Math.min(allowed, stream.remaining);
+      if (n <= 0) {
+        // stream window used up, wait for its WINDOW_UPDATE
+        sending.add(stream);
+        skipped++;
+        continue;
+      }
+      skipped = 0;
+      boolean last = n == stream.remaining;
+      ByteBuffer frame = frame(DATA, last ? END_STREAM : 0, stream.id, n);
+      try {
+        readBody(stream, frame, n);
+      } catch (IOException e) {
+        // the head is out already, all we can do is reset the stream
+        e.printStackTrace();
+        resetStream(stream.id, INTERNAL_ERROR);
+        continue;
+      }
+      out.add(frame.flip());
+      stream.remaining -= n;
+      stream.sendWindow -= n;
+      connectionWindow -= n;
+      stream.sent += n;
+      batched += n;
+      if (last) {
+        finish(stream);
+      } else {
+        sending.add(stream);
+      }
+    }
+    // a reset found while reading a body is sent with the next batch
+    out.addAll(control);
+    control.clear();
+    return out.isEmpty() ? null : out.toArray(new ByteBuffer[0]);
+  }
+
+  private static void readBody(Stream stream, ByteBuffer frame, int n) throws IOException {
+    if (stream.file == null) {
+      frame.put(stream.body, stream.bodyPosition, n);
+      stream.bodyPosition += n;
+      return;
+    }
+    int end = frame.position() + n;
+    frame.limit(end);
+    while (frame.hasRemaining()) {
+      int read = stream.file.read(frame, stream.filePosition);
+      if (read < 0) {
+        throw new IOException("File " + stream.response.file + " shrank while being sent");
+      }
+      stream.filePosition += read;
+    }
+  }
+
+  /**
+   * @return true once the connection can be closed: it failed or the client
+   *     sent GOAWAY, and everything is sent
+   */
+  boolean finished() {
+    return control.isEmpty() && (failed || (goingAway && streams.isEmpty()));
+  }
+
+  /**
+   * @return true if no stream is open and nothing waits to be sent
+   */
+  boolean idle() {
+    return streams.isEmpty() && control.isEmpty();
+  }
+
+  /**
+   * Connection is closed, give back what the streams hold
+   */
+  void close() {
+    for (Stream stream : streams.values()) {
+      stream.close();
+    }
+    streams.clear();
+    sending.clear();
+  }
+
+  private void finish(Stream stream) {
+    if (stream.response != null && stream.response.metrics != null) {
+      stream.response.metrics.written(stream.sent, System.nanoTime() - stream.responded);
+    }
+    closeStream(stream);
+  }
+
+  private void closeStream(Stream stream) {
+    if (stream == null) {
+      return;
+    }
+    stream.close();
+    streams.remove(stream.id);
+    sending.remove(stream);
+  }
+
+  private void resetStream(int streamId, int errorCode) {
+    closeStream(streams.get(streamId));
+    ByteBuffer rst = frame(RST_STREAM, 0, streamId, 4);
+    rst.putInt(errorCode);
+    control.add(rst.flip());
+  }
+
+  private void windowUpdate(int streamId, int increment) {
+    ByteBuffer update = frame(WINDOW_UPDATE, 0, streamId, 4);
+    update.putInt(increment);
+    control.add(update.flip());
+  }
+
+  /**
+   * Sends GOAWAY and stops working on the connection
+   */
+  private void connectionError(int errorCode) {
+    if (failed) {
+      return;
+    }
+    ByteBuffer goAway = frame(GOAWAY, 0, 0, 8);
+    goAway.putInt(lastStreamId).putInt(errorCode);
+    control.add(goAway.flip());
+    failed = true;
+    goingAway = true;
+    close();
+  }
+
+  /**
+   * @return buffer with the frame header written, room for length bytes of payload
+   */
+  private static ByteBuffer frame(int type, int flags, int streamId, int length) {
+    ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + length);
+    frame.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+    frame.put((byte) type).put((byte) flags).putInt(streamId);
+    return frame;
+  }
+}
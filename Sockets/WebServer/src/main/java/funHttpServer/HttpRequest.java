@@ -0,0 +1,267 @@
+package funHttpServer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * The header of one HTTP request, as filled in by RequestParser.
+ *
+ * The request keeps the raw header bytes in its own buffer and only stores
+ * where method, path, query and each header name and value start and end.
+ * Strings are created when somebody asks for them, header lookups compare
+ * bytes. Requests are pooled (acquire/release), so parsing a request does
+ * not allocate once the pool is warm.
+ */
+public class HttpRequest {
+  /** largest request header we accept */
+  public static final int MAX_HEADER_BYTES = 8192;
+  /** most header fields we accept */
+  public static final int MAX_HEADERS = 64;
+
+  private static final ArrayBlockingQueue<HttpRequest> POOL = new ArrayBlockingQueue<>(1024);
+
+  final ByteBuffer buffer = ByteBuffer.allocate(MAX_HEADER_BYTES);
+  /** backing array of buffer, the header starts at index 0 */
+  final byte[] data = buffer.array();
+  /** number of header bytes in data */
+  int length;
+
+  int methodEnd;
+  int targetStart;
+  int targetEnd;
+  /** index after the '?' or -1 if the target has no query */
+  int queryStart = -1;
+  int versionStart;
+  int versionEnd;
+
+  int headerCount;
+  final int[] nameStart = new int[MAX_HEADERS];
+  final int[] nameEnd = new int[MAX_HEADERS];
+  final int[] valueStart = new int[MAX_HEADERS];
+  final int[] valueEnd = new int[MAX_HEADERS];
+
+  final QueryParams query = new QueryParams(this);
+
+  /** time the front end spent parsing the header, for Metrics */
+  long parseNanos;
+
+  private String method;
+  private String target;
+
+  /**
+   * @return a cleared request from the pool or a new one
+   */
+  public static HttpRequest acquire() {
+    HttpRequest request = POOL.poll();
+    return request != null ? request : new HttpRequest();
+  }
+
+  /**
+   * Gives the request back to the pool; it must not be used afterwards
+   */
+  public void release() {
+    reset();
+    POOL.offer(this);
+  }
+
+  void reset() {
+    length = 0;
+    queryStart = -1;
+    headerCount = 0;
+    parseNanos = 0;
+    method = null;
+    target = null;
+    query.reset();
+  }
+
+  public String method() {
+    if (method == null) {
+      method = string(0, methodEnd);
+    }
+    return method;
+  }
+
+  /**
+   * @return path and query as sent, e.g. /multiply?num1=3
+   */
+  public String target() {
+    if (target == null) {
+      target = string(targetStart, targetEnd);
+    }
+    return target;
+  }
+
+  public String version() {
+    return string(versionStart, versionEnd);
+  }
+
+  /**
+   * @return true for a GET request, without creating a String
+   */
+  public boolean isGet() {
+    return methodEnd == 3 && data[0] == 'G' && data[1] == 'E' && data[2] == 'T';
+  }
+
+  /**
+   * @return true for HTTP/1.0 clients, which do not understand chunked bodies
+   */
+  public boolean isHttp10() {
+    return equalsIgnoreCase(versionStart, versionEnd, "HTTP/1.0");
+  }
+
+  /**
+   * @return index after the end of the path (the '?' or the end of the target)
+   */
+  int pathEnd() {
+    return queryStart < 0 ? targetEnd : queryStart - 1;
+  }
+
+  public QueryParams query() {
+    return query;
+  }
+
+  public int headerCount() {
+    return headerCount;
+  }
+
+  public String headerName(int i) {
+    return string(nameStart[i], nameEnd[i]);
+  }
+
+  public String headerValue(int i) {
+    return string(valueStart[i], valueEnd[i]);
+  }
+
+  /**
+   * @param name header name, any case
+   * @return value of the first header with that name or null
+   */
+  public String header(String name) {
+    int i = indexOf(name);
+    return i < 0 ? null : headerValue(i);
+  }
+
+  public boolean hasHeader(String name) {
+    return indexOf(name) >= 0;
+  }
+
+  private int indexOf(String name) {
+    for (int i = 0; i < headerCount; i++) {
+      if (equalsIgnoreCase(nameStart[i], nameEnd[i], name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Writes the request line to the access log, call it before the request
+   * is released
+   * @see AccessLog#log(byte[], int, int, int, long, long)
+   */
+  public boolean logTo(AccessLog log, int status, long bytes, long nanos) {
+    return log.log(data, 0, versionEnd, status, bytes, nanos);
+  }
+
+  /**
+   * HTTP/1.1 connections are persistent unless the client says close,
+   * HTTP/1.0 connections only if the client asks for keep-alive. Connection
+   * is a list of tokens ("close, TE"), over all its header lines.
+   */
+  public boolean keepAlive() {
+    if (equalsIgnoreCase(versionStart, versionEnd, "HTTP/1.1")) {
+      return !hasToken("connection", "close");
+    }
+    return hasToken("connection", "keep-alive");
+  }
+
+  /**
+   * @return whether a header with this name has the token in its comma
+   *         separated list, case-insensitive
+   */
+  boolean hasToken(String name, String token) {
+    for (int i = 0; i < headerCount; i++) {
+      if (!equalsIgnoreCase(nameStart[i], nameEnd[i], name)) {
+        continue;
+      }
+      int start = valueStart[i];
+      while (start <= valueEnd[i]) {
+        int end = start;
+        while (end < valueEnd[i] && data[end] != ',') {
+          end++;
+        }
+        int from = start;
+        int to = end;
+        while (from < to && (data[from] == ' ' || data[from] == '\t')) {
+          from++;
+        }
+        while (to > from && (data[to - 1] == ' ' || data[to - 1] == '\t')) {
+          to--;
+        }
+        if (equalsIgnoreCase(from, to, token)) {
+          return true;
+        }
+        start = end + 1;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Length of the request body. Content-Length must be digits only; when
+   * it appears more than once, every value must be the same.
+   * @return the length, 0 if there is no Content-Length, -1 if it is
+   *         invalid, too large for a long or given with different values
+   */
+  public long contentLength() {
+    long length = 0;
+    boolean seen = false;
+    for (int i = 0; i < headerCount; i++) {
+      if (!equalsIgnoreCase(nameStart[i], nameEnd[i], "content-length")) {
+        continue;
+      }
+      if (valueStart[i] == valueEnd[i]) {
+        return -1;
+      }
+      long value = 0;
+      for (int p = valueStart[i]; p < valueEnd[i]; p++) {
+        int digit = data[p] - '0';
+        if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+          return -1;
+        }
+        value = value * 10 + digit;
+      }
+      if (seen && value != length) {
+        return -1;
+      }
+      length = value;
+      seen = true;
+    }
+    return length;
+  }
+
+  /**
+   * ASCII case-insensitive compare of data[start, end) with s
+   */
+  boolean equalsIgnoreCase(int start, int end, String s) {
+    if (end - start != s.length()) {
+      return false;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      int a = data[start + i];
+      int b = s.charAt(i);
+      if (a != b) {
+        int lower = a | 0x20;
+        if (lower != (b | 0x20) || lower < 'a' || lower > 'z') {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  String string(int start, int end) {
+    return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+  }
+}
@@ -0,0 +1,284 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A response split into status, header fields and body so the server can
+ * add the framing headers (Content-Length, Connection) before sending it.
+ *
+ * The body is either a byte array, a region of a file or a stream. File
+ * bodies are never read into memory by the servers, they go to the socket
+ * with FileChannel.transferTo (sendfile on Linux). Stream bodies are
+ * written by the route while they are sent, with Transfer-Encoding: chunked,
+ * so the client gets the first bytes before the last ones are produced.
+ */
+class HttpResponse {
+  private static final byte[] NO_BODY = new byte[0];
+
+  /**
+   * Body that is produced while it is sent, see ofStream
+   */
+  interface StreamBody {
+    /**
+     * Writes the whole body; out is flushed and closed by the caller
+     */
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /** status code and reason, e.g. "200 OK" */
+  final String status;
+  final Map<String, String> headers = new LinkedHashMap<>();
+  final byte[] body;
+
+  /** when set the body is fileLength bytes of this file starting at fileOffset */
+  File file;
+  long fileOffset;
+  long fileLength;
+
+  /** when set the body is whatever this writes */
+  StreamBody stream;
+
+  /** route the response belongs to, the front end records the write phase there */
+  Metrics.RouteMetrics metrics;
+
+  HttpResponse(String status, byte[] body) {
+    this.status = status;
+    this.body = body;
+  }
+
+  /**
+   * Response with a text body
+   */
+  static HttpResponse of(String status, String contentType, String body) {
+    HttpResponse response = new HttpResponse(status, body.getBytes(StandardCharsets.UTF_8));
+    response.header("Content-Type", contentType);
+    return response;
+  }
+
+  /**
+   * Response whose body is a part of a file
+   */
+  static HttpResponse ofFile(String status, File file, long offset, long length) {
+    HttpResponse response = new HttpResponse(status, NO_BODY);
+    response.file = file;
+    response.fileOffset = offset;
+    response.fileLength = length;
+    return response;
+  }
+
+  /**
+   * Response whose body is written while it is sent, its length is not known
+   */
+  static HttpResponse ofStream(String status, String contentType, StreamBody stream) {
+    HttpResponse response = new HttpResponse(status, NO_BODY);
+    response.stream = stream;
+    response.header("Content-Type", contentType);
+    return response;
+  }
+
+  /**
+   * Response without a body, e.g. 304 Not Modified
+   */
+  static HttpResponse empty(String status) {
+    return new HttpResponse(status, NO_BODY);
+  }
+
+  HttpResponse header(String name, String value) {
+    headers.put(name, value);
+    return this;
+  }
+
+  /**
+   * @return number of body bytes, -1 for a stream body
+   */
+  long contentLength() {
+    if (stream != null) {
+      return -1;
+    }
+    return file != null ? fileLength : body.length;
+  }
+
+  /**
+   * 1xx, 204 and 304 responses never have a body
+   */
+  boolean bodyless() {
+    return status.startsWith("1") || status.startsWith("204") || status.startsWith("304");
+  }
+
+  /**
+   * Encodes status line and headers
+   * @param keepAlive whether the connection stays open after this response
+   */
+  byte[] head(boolean keepAlive) {
+    return head(keepAlive, true);
+  }
+
+  /**
+   * Encodes status line and headers
+   * @param keepAlive whether the connection stays open after this response
+   * @param chunked whether a stream body may be sent chunked (HTTP/1.1
+   *                client), otherwise the connection is closed after it
+   */
+  byte[] head(boolean keepAlive, boolean chunked) {
+    StringBuilder head = new StringBuilder(128);
+    head.append("HTTP/1.1 ").append(status).append("\r\n");
+    for (Map.Entry<String, String> h : headers.entrySet()) {
+      head.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
+    }
+    if (stream != null && !bodyless()) {
+      if (chunked) {
+        head.append("Transfer-Encoding: chunked\r\n");
+      } else {
+        // the end of the body is the end of the connection
+        keepAlive = false;
+      }
+    } else if (!bodyless()) {
+      head.append("Content-Length: ").append(contentLength()).append("\r\n");
+    }
+    head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+    head.append("\r\n");
+    return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Encodes status line, headers and body for the wire. File and stream
+   * bodies are read into the array, front ends should prefer writeTo.
+   * @param keepAlive whether the connection stays open after this response
+   * @return the byte encoded HTTP response
+   */
+  byte[] toBytes(boolean keepAlive) {
+    if (stream != null) {
+      // buffered, so it can be sent with a Content-Length
+      HttpResponse buffered;
+      try {
+        buffered = buffered();
+      } catch (IOException e) {
+        e.printStackTrace();
+        buffered = new HttpResponse(status, NO_BODY);
+        buffered.headers.putAll(headers);
+      }
+      return buffered.toBytes(keepAlive);
+    }
+    byte[] headBytes = head(keepAlive);
+    byte[] body = this.body;
+    if (file != null) {
+      try {
+        body = bodyBytes();
+      } catch (IOException e) {
+        e.printStackTrace();
+        body = new byte[(int) fileLength];
+      }
+    }
+    byte[] out = new byte[headBytes.length + body.length];
+    System.arraycopy(headBytes, 0, out, 0, headBytes.length);
+    System.arraycopy(body, 0, out, headBytes.length, body.length);
+    return out;
+  }
+
+  /**
+   * @return copy of a stream response with the body run into an array
+   */
+  HttpResponse buffered() throws IOException {
+    HttpResponse buffered = new HttpResponse(status, bodyBytes());
+    buffered.headers.putAll(headers);
+    buffered.metrics = metrics;
+    return buffered;
+  }
+
+  /**
+   * @return the body as bytes, file bodies are read from disk, stream
+   *         bodies are run into a buffer
+   */
+  byte[] bodyBytes() throws IOException {
+    if (stream != null) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      stream.writeTo(out);
+      return out.toByteArray();
+    }
+    if (file == null) {
+      return body;
+    }
+    byte[] out = new byte[(int) fileLength];
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      raf.seek(fileOffset);
+      raf.readFully(out);
+    }
+    return out;
+  }
+
+  /**
+   * Writes the response to a blocking channel, file bodies with transferTo
+   * @param keepAlive whether the connection stays open after this response
+   * @return number of bytes written
+   */
+  long writeTo(WritableByteChannel out, boolean keepAlive) throws IOException {
+    return writeTo(out, keepAlive, true);
+  }
+
+  /**
+   * Writes the response to a blocking channel, file bodies with transferTo,
+   * stream bodies chunk by chunk as the route produces them
+   * @param keepAlive whether the connection stays open after this response
+   * @param chunked whether the client understands chunked bodies (HTTP/1.1)
+   * @return number of bytes written
+   */
+  long writeTo(WritableByteChannel out, boolean keepAlive, boolean chunked) throws IOException {
+    ByteBuffer headBuf = ByteBuffer.wrap(head(keepAlive, chunked));
+    long headLength = headBuf.remaining();
+    if (stream != null) {
+      writeFully(out, headBuf);
+      long[] sent = {headLength};
+      ChunkedOutputStream body = new ChunkedOutputStream(data -> {
+        sent[0] += data.remaining();
+        writeFully(out, data);
+      }, chunked);
+      stream.writeTo(body);
+      body.close();
+      return sent[0];
+    }
+    if (file == null) {
+      // head and body in one gathering write, no copy into a single array
+      ByteBuffer bodyBuf = ByteBuffer.wrap(body);
+      if (out instanceof GatheringByteChannel) {
+        ByteBuffer[] both = {headBuf, bodyBuf};
+        while (headBuf.hasRemaining() || bodyBuf.hasRemaining()) {
+          ((GatheringByteChannel) out).write(both);
+        }
+      } else {
+        writeFully(out, headBuf);
+        writeFully(out, bodyBuf);
+      }
+      return headLength + body.length;
+    }
+    writeFully(out, headBuf);
+    try (FileChannel fc = FileChannel.open(file.toPath())) {
+      long position = fileOffset;
+      long end = fileOffset + fileLength;
+      while (position < end) {
+        long sent = fc.transferTo(position, end - position, out);
+        if (sent <= 0 && position >= fc.size()) {
+          throw new IOException("File " + file + " shrank while being sent");
+        }
+        position += sent;
+      }
+    }
+    return headLength + fileLength;
+  }
+
+  private static void writeFully(WritableByteChannel out, ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) {
+      out.write(buf);
+    }
+  }
+}
@@ -0,0 +1,287 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Request metrics of the server in Prometheus text format (see /metrics).
+ *
+ * Every route has counters for requests, status codes and bytes and a
+ * latency histogram for each phase of a request: parse (reading the header),
+ * handle (the route itself) and write (sending the response). Recording only
+ * adds to LongAdders and AtomicLongArrays, there are no locks and no maps to
+ * look anything up in; routes get their RouteMetrics when they are
+ * registered (see wrap). Gauges, and counters kept elsewhere, are read
+ * when the metrics are scraped.
+ */
+class Metrics {
+
+  /**
+   * Latency histogram with log-linear buckets, HDR style: every power of
+   * two of nanoseconds is split into SUB_BUCKETS buckets, so the relative
+   * error stays below 25% from nanoseconds up to minutes.
+   */
+  static class Histogram {
+    static final int SUB_BITS = 2;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /** values from 2^MAX_EXPONENT ns (about 18 minutes) on share the last bucket */
+    static final int MAX_EXPONENT = 40;
+    /** exported bucket bounds, powers of two from 2^10 ns (1 us) to 2^35 ns (34 s) */
+    static final int FIRST_EXPORTED = 10;
+    static final int LAST_EXPORTED = 35;
+
+    final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS);
+    final LongAdder sum = new LongAdder();
+
+    void record(long nanos) {
+      counts.incrementAndGet(index(nanos));
+      sum.add(nanos);
+    }
+
+    int index(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) Math.max(0, value);
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+      return Math.min(counts.length() - 1, (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub);
+    }
+
+    /**
+     * Writes cumulative _bucket lines, _sum and _count
+     */
+    void export(StringBuilder out, String name, String labels) {
+      long cumulative = 0;
+      int next = 0;
+      for (int exp = FIRST_EXPORTED; exp <= LAST_EXPORTED; exp++) {
+        // everything below 2^exp lives in the buckets before index(2^exp)
+        int end = index(1L << exp);
+        for (; next < end; next++) {
+          cumulative += counts.get(next);
+        }
+        out.append(name).append("_bucket{").append(labels).append(",le=\"")
+            .append(seconds(1L << exp)).append("\"} ").append(cumulative).append('\n');
+      }
+      for (; next < counts.length(); next++) {
+        cumulative += counts.get(next);
+      }
+      out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ")
+          .append(cumulative).append('\n');
+      out.append(name).append("_sum{").append(labels).append("} ").append(seconds(sum.sum())).append('\n');
+      out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+    }
+  }
+
+  /**
+   * Everything recorded for one route
+   */
+  static class RouteMetrics {
+    final String name;
+    final LongAdder requests = new LongAdder();
+    /** responses by status code */
+    final AtomicLongArray statuses = new AtomicLongArray(600);
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final Histogram parse = new Histogram();
+    final Histogram handle = new Histogram();
+    final Histogram write = new Histogram();
+
+    RouteMetrics(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Counts a request once its header has been parsed
+     */
+    void received(HttpRequest request) {
+      requests.increment();
+      bytesIn.add(request.length + Math.max(0, request.contentLength()));
+      if (request.parseNanos > 0) {
+        parse.record(request.parseNanos);
+      }
+    }
+
+    void responded(HttpResponse response, long handleNanos) {
+      handle.record(handleNanos);
+      int code = statusCode(response.status);
+      if (code >= 0 && code < statuses.length()) {
+        statuses.incrementAndGet(code);
+      }
+      response.metrics = this;
+    }
+
+    /**
+     * The route threw, WebServer answers 400 for IllegalArgumentException
+     * and 500 for anything else
+     */
+    void failed(Throwable error, long handleNanos) {
+      handle.record(handleNanos);
+      statuses.incrementAndGet(error instanceof IllegalArgumentException ? 400 : 500);
+    }
+
+    /**
+     * Called by the front ends once the response is out
+     */
+    void written(long bytes, long writeNanos) {
+      bytesOut.add(bytes);
+      write.record(writeNanos);
+    }
+  }
+
+  private final List<RouteMetrics> routes = new ArrayList<>();
+  private final List<String> gaugeNames = new ArrayList<>();
+  private final List<String> gaugeHelp = new ArrayList<>();
+  private final List<LongSupplier> gauges = new ArrayList<>();
+  private final List<String> counterNames = new ArrayList<>();
+  private final List<String> counterHelp = new ArrayList<>();
+  private final List<LongSupplier> counters = new ArrayList<>();
+
+  /** requests that did not make it to a route (bad requests, unknown paths) */
+  final RouteMetrics other = route("other");
+
+  synchronized RouteMetrics route(String name) {
+    RouteMetrics metrics = new RouteMetrics(name);
+    routes.add(metrics);
+    return metrics;
+  }
+
+  /**
+   * Registers a value that is read on every scrape, e.g. open connections
+   */
+  synchronized void gauge(String name, String help, LongSupplier value) {
+    gaugeNames.add(name);
+    gaugeHelp.add(help);
+    gauges.add(value);
+  }
+
+  /**
+   * Registers a count that only goes up, kept by its owner and read on
+   * every scrape
+   * @param name ends in _total
+   */
+  synchronized void counter(String name, String help, LongSupplier value) {
+    counterNames.add(name);
+    counterHelp.add(help);
+    counters.add(value);
+  }
+
+  /**
+   * Wraps a route so its requests, status codes and handle time are recorded
+   */
+  Route wrap(String name, Route route) {
+    RouteMetrics metrics = route(name);
+    if (route instanceof AsyncRoute) {
+      AsyncRoute async = (AsyncRoute) route;
+      return (AsyncRoute) (request, query) -> {
+        metrics.received(request);
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse> response;
+        try {
+          response = async.handleAsync(request, query);
+        } catch (IOException | RuntimeException e) {
+          metrics.failed(e, System.nanoTime() - start);
+          throw e;
+        }
+        return response.whenComplete((done, error) -> {
+          if (error != null) {
+            metrics.failed(error, System.nanoTime() - start);
+          } else {
+            metrics.responded(done, System.nanoTime() - start);
+          }
+        });
+      };
+    }
+    return (request, query) -> {
+      metrics.received(request);
+      long start = System.nanoTime();
+      HttpResponse response;
+      try {
+        response = route.handle(request, query);
+      } catch (IOException | RuntimeException e) {
+        metrics.failed(e, System.nanoTime() - start);
+        throw e;
+      }
+      metrics.responded(response, System.nanoTime() - start);
+      return response;
+    };
+  }
+
+  /**
+   * @return all metrics in the Prometheus text exposition format
+   */
+  synchronized String scrape() {
+    StringBuilder out = new StringBuilder(32 * 1024);
+    out.append("# HELP http_requests_total Requests by route\n");
+    out.append("# TYPE http_requests_total counter\n");
+    for (RouteMetrics r : routes) {
+      out.append("http_requests_total{route=\"").append(r.name).append("\"} ").append(r.requests.sum()).append('\n');
+    }
+    out.append("# HELP http_responses_total Responses by route and status code\n");
+    out.append("# TYPE http_responses_total counter\n");
+    for (RouteMetrics r : routes) {
+      for (int code = 0; code < r.statuses.length(); code++) {
+        long count = r.statuses.get(code);
+        if (count > 0) {
+          out.append("http_responses_total{route=\"").append(r.name).append("\",code=\"").append(code)
+              .append("\"} ").append(count).append('\n');
+        }
+      }
+    }
+    out.append("# HELP http_request_bytes_total Request header and body bytes by route\n");
+    out.append("# TYPE http_request_bytes_total counter\n");
+    for (RouteMetrics r : routes) {
+      out.append("http_request_bytes_total{route=\"").append(r.name).append("\"} ").append(r.bytesIn.sum()).append('\n');
+    }
+    out.append("# HELP http_response_bytes_total Response bytes written by route\n");
+    out.append("# TYPE http_response_bytes_total counter\n");
+    for (RouteMetrics r : routes) {
+      out.append("http_response_bytes_total{route=\"").append(r.name).append("\"} ").append(r.bytesOut.sum()).append('\n');
+    }
+    out.append("# HELP http_request_duration_seconds Time spent per phase (parse, handle, write) by route\n");
+    out.append("# TYPE http_request_duration_seconds histogram\n");
+    for (RouteMetrics r : routes) {
+      r.parse.export(out, "http_request_duration_seconds", "route=\"" + r.name + "\",phase=\"parse\"");
+      r.handle.export(out, "http_request_duration_seconds", "route=\"" + r.name + "\",phase=\"handle\"");
+      r.write.export(out, "http_request_duration_seconds", "route=\"" + r.name + "\",phase=\"write\"");
+    }
+    for (int i = 0; i < gauges.size(); i++) {
+      out.append("# HELP ").append(gaugeNames.get(i)).append(' ').append(gaugeHelp.get(i)).append('\n');
+      out.append("# TYPE ").append(gaugeNames.get(i)).append(" gauge\n");
+      out.append(gaugeNames.get(i)).append(' ').append(gauges.get(i).getAsLong()).append('\n');
+    }
+    for (int i = 0; i < counters.size(); i++) {
+      out.append("# HELP ").append(counterNames.get(i)).append(' ').append(counterHelp.get(i)).append('\n');
+      out.append("# TYPE ").append(counterNames.get(i)).append(" counter\n");
+      out.append(counterNames.get(i)).append(' ').append(counters.get(i).getAsLong()).append('\n');
+    }
+    return out.toString();
+  }
+
+  /**
+   * @return the code of a status like "404 Not Found", -1 if there is none
+   */
+  static int statusCode(String status) {
+    if (status.length() < 3) {
+      return -1;
+    }
+    int code = 0;
+    for (int i = 0; i < 3; i++) {
+      int digit = status.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        return -1;
+      }
+      code = code * 10 + digit;
+    }
+    return code;
+  }
+
+  private static String seconds(long nanos) {
+    return String.format(Locale.ROOT, "%.9g", nanos / 1e9).replaceAll("\\.?0+(e|$)", "$1");
+  }
+}
@@ -0,0 +1,842 @@
+/*
+Non-blocking front end for the fun web server.
+
+One reactor thread owns a Selector and does all socket I/O: it accepts
+connections, collects request bytes until the end of the header is seen and
+writes finished responses back. The actual work (createResponse, which may
+read files) is handed to a small worker pool so a slow request never stalls
+the other connections. Routes that wait on another server (/github) return
+a future instead and do not hold a worker while waiting.
+
+Workers never touch the channels directly. They put a task on the pending
+queue and wake the selector up, the reactor thread then picks the task up
+and registers interest in writing.
+
+Connections are persistent (HTTP/1.1 keep-alive). A client may pipeline
+several requests; they are worked on in parallel but the responses are
+written back in the order the requests arrived. Responses with a stream
+body are produced on a worker and sent chunk by chunk as they come. Idle connections are closed
+after IDLE_TIMEOUT_MS and every connection is closed after
+MAX_REQUESTS_PER_CONNECTION requests.
+
+Clients that speak HTTP/2 over cleartext, with prior knowledge or after
+"Upgrade: h2c", get their connection handed to an Http2Connection: its
+streams are dispatched to the same workers, but answered in the order they
+finish.
+*/
+
+package funHttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+class NioServer implements Runnable {
+  /** largest request header we are willing to buffer for one connection */
+  static final int MAX_HEADER_BYTES = HttpRequest.MAX_HEADER_BYTES;
+  /** how many connections the kernel may queue before we accept them */
+  static final int ACCEPT_BACKLOG = 4096;
+  /** keep-alive connections without traffic are closed after this */
+  static final long IDLE_TIMEOUT_MS = 15_000;
+  /** the response to this request closes the connection */
+  static final int MAX_REQUESTS_PER_CONNECTION = 1000;
+  /** stop reading from a client that has this many requests in flight */
+  static final int MAX_PIPELINED = 16;
+  /** a streaming route waits once this many bytes are queued but not yet sent */
+  static final int MAX_STREAM_BUFFERED = 64 * 1024;
+
+  private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n"
+      + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+  /** input buffers of closed connections, reused for new ones */
+  private static final ArrayBlockingQueue<ByteBuffer> BUFFERS = new ArrayBlockingQueue<>(4096);
+
+  private final int port;
+  private final WebServer handler;
+  private final ExecutorService workers;
+  private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+  private final LongAdder openConnections = new LongAdder();
+  private Selector selector;
+
+  /**
+   * @param port to listen on
+   * @param workerThreads size of the pool that runs createResponse
+   * @param handler the web server whose createResponse builds the responses
+   */
+  NioServer(int port, int workerThreads, WebServer handler) {
+    this.port = port;
+    this.handler = handler;
+    this.workers = Executors.newFixedThreadPool(workerThreads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "http-worker-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    handler.metrics.gauge("http_open_connections", "Open client connections", openConnections::sum);
+    handler.metrics.gauge("http_worker_queue_depth", "Requests waiting for a worker thread",
+        () -> ((ThreadPoolExecutor) workers).getQueue().size());
+    handler.metrics.gauge("http_worker_active", "Worker threads building a response",
+        () -> ((ThreadPoolExecutor) workers).getActiveCount());
+    handler.metrics.gauge("http_reactor_pending", "Finished responses waiting for the reactor",
+        () -> pending.size());
+  }
+
+  /**
+   * Reactor loop, runs until the selector or server channel fails
+   */
+  public void run() {
+    try (ServerSocketChannel server = ServerSocketChannel.open()) {
+      selector = Selector.open();
+      server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      server.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+      server.configureBlocking(false);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+      System.out.println("NIO server listening on port " + port);
+
+      long nextIdleCheck = System.currentTimeMillis() + 1000;
+      while (true) {
+        selector.select(1000);
+        runPending();
+
+        long now = System.currentTimeMillis();
+        if (now >= nextIdleCheck) {
+          closeIdle(now);
+          nextIdleCheck = now + 1000;
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          try {
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept(server);
+            } else if (key.isReadable()) {
+              read(key);
+            } else if (key.isWritable()) {
+              write(key);
+            }
+          } catch (IOException e) {
+            // one broken client must not take the reactor down
+            close(key);
+          }
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      workers.shutdownNow();
+    }
+  }
+
+  /**
+   * Runs the tasks the workers handed back to the reactor thread
+   */
+  private void runPending() {
+    Runnable task;
+    while ((task = pending.poll()) != null) {
+      task.run();
+    }
+  }
+
+  /**
+   * Accept every connection that is waiting, not just one per wake up
+   */
+  private void accept(ServerSocketChannel server) throws IOException {
+    SocketChannel client;
+    while ((client = server.accept()) != null) {
+      client.configureBlocking(false);
+      client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      client.register(selector, SelectionKey.OP_READ, new Connection());
+      openConnections.increment();
+    }
+  }
+
+  /**
+   * Collect request bytes and hand every complete request header to a worker.
+   * A single read may contain several pipelined requests.
+   */
+  private void read(SelectionKey key) throws IOException {
+    SocketChannel client = (SocketChannel) key.channel();
+    Connection conn = (Connection) key.attachment();
+
+    int numRead = client.read(conn.in);
+    if (numRead == -1 && conn.h2 != null) {
+      // HTTP/2 clients say goodbye with GOAWAY, nothing left to answer
+      close(key);
+      return;
+    }
+    if (numRead == -1) {
+      // client is done sending, finish what it already asked for
+      conn.closeAfterWrite = true;
+      if (conn.inflight.isEmpty() && conn.out.isEmpty()) {
+        close(key);
+      } else {
+        updateInterest(key);
+      }
+      return;
+    }
+    conn.lastActive = System.currentTimeMillis();
+    if (conn.h2 == null && conn.requests == 0 && Http2Connection.startsWithPreface(conn.in)) {
+      // HTTP/2 with prior knowledge
+      startHttp2(key, new Http2Connection((request, id) -> dispatchStream(key, request, id)));
+    }
+    if (conn.h2 != null) {
+      conn.h2.receive(conn.in);
+      updateInterest(key);
+      return;
+    }
+    parseRequests(key);
+  }
+
+  /**
+   * Switches the connection to HTTP/2, what is left in the input buffer
+   * belongs to the new protocol
+   */
+  private void startHttp2(SelectionKey key, Http2Connection h2) {
+    Connection conn = (Connection) key.attachment();
+    conn.h2 = h2;
+    // room for a whole frame
+    ByteBuffer in = ByteBuffer.allocate(Http2Connection.FRAME_HEADER + Http2Connection.MAX_FRAME_SIZE);
+    conn.in.flip();
+    in.put(conn.in);
+    conn.in.clear();
+    BUFFERS.offer(conn.in);
+    conn.in = in;
+    conn.out.add(new Http2Out(conn));
+  }
+
+  /**
+   * Answers with an error after the responses still due and closes the
+   * connection, the rest of its input is not read
+   */
+  private void refuse(SelectionKey key, String status, String message) {
+    Connection conn = (Connection) key.attachment();
+    Exchange refused = new Exchange(false, true);
+    refused.response = HttpResponse.of(status, "text/html; charset=utf-8",
+        "<html>" + message + "</html>");
+    handler.metrics.other.responded(refused.response, 0);
+    conn.inflight.add(refused);
+    conn.closeAfterWrite = true;
+    flush(key);
+  }
+
+  /**
+   * @return true for an HTTP/1.1 request asking to continue with h2c
+   */
+  private static boolean wantsHttp2(HttpRequest request) {
+    String upgrade = request.header("upgrade");
+    return upgrade != null && !request.isHttp10() && request.hasHeader("http2-settings")
+        && request.contentLength() == 0 && upgrade.toLowerCase().contains("h2c");
+  }
+
+  /**
+   * Dispatches the complete requests sitting in the input buffer
+   */
+  private void parseRequests(SelectionKey key) {
+    Connection conn = (Connection) key.attachment();
+    while (!conn.closeAfterWrite && conn.inflight.size() < MAX_PIPELINED) {
+      if (conn.skipBody > 0) {
+        // we do not use request bodies, drop them
+        int skip = (int) Math.min(conn.skipBody, conn.in.position());
+        conn.in.flip();
+        conn.in.position(skip);
+        conn.in.compact();
+        conn.skipBody -= skip;
+        if (conn.skipBody > 0) {
+          break;
+        }
+      }
+
+      HttpRequest request = HttpRequest.acquire();
+      int headerEnd;
+      long parseStart = System.nanoTime();
+      try {
+        headerEnd = RequestParser.parse(conn.in.array(), 0, conn.in.position(), request);
+      } catch (RequestParser.BadRequest e) {
+        // malformed or too large, answer and hang up
+        request.release();
+        refuse(key, e.status, e.getMessage());
+        break;
+      }
+      if (headerEnd == RequestParser.NEED_MORE) {
+        request.release();
+        break;
+      }
+      request.parseNanos = System.nanoTime() - parseStart;
+
+      conn.in.flip();
+      conn.in.position(headerEnd);
+      conn.in.compact();
+      // where the body ends decides where the next request starts: without a
+      // length we can trust, the rest of the connection cannot be parsed
+      long bodyLength = request.contentLength();
+      if (request.hasHeader("transfer-encoding")) {
+        request.release();
+        refuse(key, "501 Not Implemented", "Transfer-Encoding is not supported");
+        break;
+      }
+      if (bodyLength < 0) {
+        request.release();
+        refuse(key, "400 Bad Request", "Invalid Content-Length");
+        break;
+      }
+      conn.skipBody = bodyLength;
+
+      if (conn.requests == 0 && conn.inflight.isEmpty() && wantsHttp2(request)) {
+        Http2Connection h2 = null;
+        try {
+          h2 = Http2Connection.upgrade((r, id) -> dispatchStream(key, r, id), request.header("http2-settings"));
+        } catch (IOException e) {
+          // bad settings, answer the request with HTTP/1.1
+        }
+        if (h2 != null) {
+          conn.requests++;
+          conn.out.add(new BufferOut(SWITCHING_PROTOCOLS));
+          startHttp2(key, h2);
+          // the request that asked for the upgrade is stream 1
+          dispatchStream(key, request, 1);
+          h2.receive(conn.in);
+          updateInterest(key);
+          return;
+        }
+      }
+
+      conn.requests++;
+      boolean keepAlive = request.keepAlive() && conn.requests < MAX_REQUESTS_PER_CONNECTION;
+      if (!keepAlive) {
+        conn.closeAfterWrite = true;
+      }
+      Exchange exchange = new Exchange(keepAlive, !request.isHttp10());
+      conn.inflight.add(exchange);
+      ConcurrencyLimiter limiter = handler.limiterFor(request);
+      if (limiter != null && !limiter.tryAcquire()) {
+        // overloaded: refuse right away instead of queueing for a worker
+        HttpResponse busy = handler.overloaded(request);
+        request.release();
+        pending.add(() -> {
+          exchange.response = busy;
+          flush(key);
+        });
+        selector.wakeup();
+        continue;
+      }
+      dispatch(key, request, limiter, false, response -> {
+        exchange.response = response;
+        flush(key);
+      });
+    }
+    updateInterest(key);
+  }
+
+  /**
+   * Runs the request of an HTTP/2 stream, called by Http2Connection
+   */
+  private void dispatchStream(SelectionKey key, HttpRequest request, int streamId) {
+    Connection conn = (Connection) key.attachment();
+    ConcurrencyLimiter limiter = handler.limiterFor(request);
+    if (limiter != null && !limiter.tryAcquire()) {
+      HttpResponse busy = handler.overloaded(request);
+      request.release();
+      conn.h2.respond(streamId, busy);
+      return;
+    }
+    dispatch(key, request, limiter, true, response -> {
+      if (key.isValid()) {
+        conn.h2.respond(streamId, response);
+        updateInterest(key);
+      }
+    });
+  }
+
+  /**
+   * Builds the response on a worker thread and passes it back to the reactor.
+   * Asynchronous routes free the worker right away and complete later on
+   * whatever thread finishes their future.
+   * @param limiter slot taken for the request, given back once the response
+   *     is ready; null if the request is not limited
+   * @param buffered true to run stream bodies into an array first (HTTP/2)
+   * @param done gets the response on the reactor thread
+   */
+  private void dispatch(SelectionKey key, HttpRequest request, ConcurrencyLimiter limiter, boolean buffered,
+      Consumer<HttpResponse> done) {
+    long admitted = System.nanoTime();
+    workers.execute(() -> {
+      CompletableFuture<HttpResponse> response;
+      try {
+        response = handler.createResponseAsync(request);
+      } catch (RuntimeException e) {
+        response = CompletableFuture.failedFuture(e);
+      } finally {
+        // the response does not point into the request, it can be reused
+        request.release();
+      }
+      response.whenComplete((finished, error) -> {
+        if (limiter != null) {
+          limiter.release(System.nanoTime() - admitted);
+        }
+        HttpResponse result = finished;
+        if (error == null && buffered && result.stream != null && !result.bodyless()) {
+          try {
+            result = result.buffered();
+          } catch (IOException | RuntimeException e) {
+            error = e;
+          }
+        }
+        if (error != null) {
+          error.printStackTrace();
+          result = HttpResponse.of("500 Internal Server Error", "text/html; charset=utf-8",
+              "<html>ERROR: " + error.getMessage() + "</html>");
+        }
+        HttpResponse ready = result;
+        pending.add(() -> done.accept(ready));
+        selector.wakeup();
+      });
+    });
+  }
+
+  /**
+   * Moves finished responses to the output queue, in request order.
+   * Only called on the reactor thread.
+   */
+  private void flush(SelectionKey key) {
+    if (!key.isValid()) {
+      return;
+    }
+    Connection conn = (Connection) key.attachment();
+    while (!conn.inflight.isEmpty() && conn.inflight.peek().response != null) {
+      Exchange done = conn.inflight.poll();
+      HttpResponse response = done.response;
+      long queued = System.nanoTime();
+      if (response.stream != null && !response.bodyless()) {
+        byte[] head = response.head(done.keepAlive, done.chunked);
+        StreamOut body = startStream(key, response, done.chunked);
+        conn.out.add(new BufferOut(head));
+        conn.out.add(body);
+        conn.out.add(new Written(response, queued, () -> head.length + body.sent));
+        if (!done.chunked) {
+          // HTTP/1.0: the body ends when the connection does, later
+          // pipelined requests are not answered
+          conn.closeAfterWrite = true;
+          conn.inflight.clear();
+          break;
+        }
+      } else if (response.file == null) {
+        byte[] head = response.head(done.keepAlive);
+        byte[] body = response.bodyless() ? new byte[0] : response.body;
+        conn.out.add(new BufferOut(head, body));
+        conn.out.add(new Written(response, queued, () -> head.length + body.length));
+      } else {
+        byte[] head = response.head(done.keepAlive);
+        conn.out.add(new BufferOut(head));
+        conn.out.add(new FileOut(response));
+        conn.out.add(new Written(response, queued, () -> head.length + response.fileLength));
+      }
+    }
+    if (conn.in.position() > 0 && !conn.closeAfterWrite && conn.h2 == null) {
+      // requests pipelined beyond MAX_PIPELINED are already in the buffer
+      parseRequests(key);
+    } else {
+      updateInterest(key);
+    }
+  }
+
+  /**
+   * Runs the body of a streamed response on a worker. The worker blocks
+   * once MAX_STREAM_BUFFERED bytes wait for the socket, so a slow client
+   * keeps memory flat instead of having the whole body queued.
+   */
+  private StreamOut startStream(SelectionKey key, HttpResponse response, boolean chunked) {
+    StreamOut stream = new StreamOut(key);
+    workers.execute(() -> {
+      ChunkedOutputStream body = new ChunkedOutputStream(stream, chunked);
+      try {
+        response.stream.writeTo(body);
+        body.close();
+      } catch (IOException | RuntimeException e) {
+        if (!stream.aborted) {
+          // the head is out already, all we can do is cut the connection
+          e.printStackTrace();
+        }
+        stream.fail();
+      }
+    });
+    return stream;
+  }
+
+  /**
+   * Read while the client may send more requests, write while output is queued
+   */
+  private void updateInterest(SelectionKey key) {
+    if (!key.isValid()) {
+      return;
+    }
+    Connection conn = (Connection) key.attachment();
+    int ops = 0;
+    if (!conn.closeAfterWrite && conn.inflight.size() < MAX_PIPELINED) {
+      ops |= SelectionKey.OP_READ;
+    }
+    if (!conn.out.isEmpty() && conn.out.peek().ready()) {
+      ops |= SelectionKey.OP_WRITE;
+    }
+    key.interestOps(ops);
+  }
+
+  /**
+   * Write as much of the queued responses as the socket takes
+   */
+  private void write(SelectionKey key) throws IOException {
+    SocketChannel client = (SocketChannel) key.channel();
+    Connection conn = (Connection) key.attachment();
+
+    while (!conn.out.isEmpty() && conn.out.peek().writeTo(client)) {
+      conn.out.poll().close();
+    }
+    conn.lastActive = System.currentTimeMillis();
+
+    if (conn.out.isEmpty() && conn.inflight.isEmpty() && conn.closeAfterWrite) {
+      close(key);
+    } else {
+      updateInterest(key);
+    }
+  }
+
+  /**
+   * Closes keep-alive connections that have been quiet for too long
+   */
+  private void closeIdle(long now) {
+    for (SelectionKey key : selector.keys()) {
+      if (key.attachment() instanceof Connection) {
+        Connection conn = (Connection) key.attachment();
+        boolean idle = conn.h2 != null ? conn.h2.idle() : conn.inflight.isEmpty() && conn.out.isEmpty();
+        if (idle && now - conn.lastActive > IDLE_TIMEOUT_MS) {
+          close(key);
+        }
+      }
+    }
+  }
+
+  private void close(SelectionKey key) {
+    if (key.attachment() instanceof Connection && key.isValid()) {
+      openConnections.decrement();
+    }
+    if (key.attachment() instanceof Connection) {
+      Connection conn = (Connection) key.attachment();
+      for (Outgoing o : conn.out) {
+        o.close();
+      }
+      conn.out.clear();
+      if (conn.in != null) {
+        conn.in.clear();
+        if (conn.in.capacity() == MAX_HEADER_BYTES) {
+          BUFFERS.offer(conn.in);
+        }
+        conn.in = null;
+      }
+    }
+    key.cancel();
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      // nothing left to do with this connection
+    }
+  }
+
+  private static ByteBuffer acquireBuffer() {
+    ByteBuffer buf = BUFFERS.poll();
+    return buf != null ? buf : ByteBuffer.allocate(MAX_HEADER_BYTES);
+  }
+
+  /**
+   * Per connection state, only touched by the reactor thread
+   */
+  private static class Connection {
+    /** taken from BUFFERS, given back on close */
+    ByteBuffer in = acquireBuffer();
+    /** requests handed to workers, oldest first */
+    final ArrayDeque<Exchange> inflight = new ArrayDeque<>();
+    /** encoded responses waiting to be written */
+    final ArrayDeque<Outgoing> out = new ArrayDeque<>();
+    long lastActive = System.currentTimeMillis();
+    /** set once the connection speaks HTTP/2 */
+    Http2Connection h2;
+    int requests;
+    /** bytes of a request body still to drop */
+    long skipBody;
+    boolean closeAfterWrite;
+  }
+
+  /**
+   * One request on a connection; response is set by the reactor once the
+   * worker has finished
+   */
+  private static class Exchange {
+    final boolean keepAlive;
+    /** false for HTTP/1.0 clients */
+    final boolean chunked;
+    HttpResponse response;
+
+    Exchange(boolean keepAlive, boolean chunked) {
+      this.keepAlive = keepAlive;
+      this.chunked = chunked;
+    }
+  }
+
+  /**
+   * Part of a response waiting to be written
+   */
+  private interface Outgoing {
+    /**
+     * Writes as much as the socket accepts
+     * @return true once everything is written
+     */
+    boolean writeTo(SocketChannel channel) throws IOException;
+
+    /**
+     * @return false while there is nothing to write yet
+     */
+    default boolean ready() {
+      return true;
+    }
+
+    default void close() {
+    }
+  }
+
+  /**
+   * Head and body arrays, sent with one gathering write
+   */
+  private static class BufferOut implements Outgoing {
+    private final ByteBuffer[] bufs;
+    private final ByteBuffer last;
+
+    BufferOut(byte[]... parts) {
+      this.bufs = new ByteBuffer[parts.length];
+      for (int i = 0; i < parts.length; i++) {
+        bufs[i] = ByteBuffer.wrap(parts[i]);
+      }
+      this.last = bufs[bufs.length - 1];
+    }
+
+    public boolean writeTo(SocketChannel channel) throws IOException {
+      channel.write(bufs);
+      return !last.hasRemaining();
+    }
+  }
+
+  /**
+   * Stream body, filled by a worker through ChunkedOutputStream and
+   * drained by the reactor
+   */
+  private class StreamOut implements Outgoing, ChunkedOutputStream.Sink {
+    private final SelectionKey key;
+    private final ConcurrentLinkedQueue<ByteBuffer> chunks = new ConcurrentLinkedQueue<>();
+    private final Semaphore space = new Semaphore(MAX_STREAM_BUFFERED);
+    /** body bytes (with chunk framing) handed to the socket */
+    long sent;
+    private volatile boolean finished;
+    private volatile boolean failed;
+    /** set when the connection is gone, the producer gives up */
+    volatile boolean aborted;
+
+    StreamOut(SelectionKey key) {
+      this.key = key;
+    }
+
+    // called by the worker
+
+    public void send(ByteBuffer data) throws IOException {
+      space.acquireUninterruptibly(Math.min(data.remaining(), MAX_STREAM_BUFFERED));
+      if (aborted) {
+        throw new IOException("Connection closed");
+      }
+      chunks.add(data);
+      wakeReactor();
+    }
+
+    public void finish() {
+      finished = true;
+      wakeReactor();
+    }
+
+    void fail() {
+      failed = true;
+      wakeReactor();
+    }
+
+    private void wakeReactor() {
+      pending.add(() -> updateInterest(key));
+      selector.wakeup();
+    }
+
+    // called by the reactor
+
+    public boolean ready() {
+      return !chunks.isEmpty() || finished || failed;
+    }
+
+    public boolean writeTo(SocketChannel channel) throws IOException {
+      ByteBuffer chunk;
+      while ((chunk = chunks.peek()) != null) {
+        int size = chunk.capacity();
+        channel.write(chunk);
+        if (chunk.hasRemaining()) {
+          return false;
+        }
+        chunks.poll();
+        sent += size;
+        space.release(Math.min(size, MAX_STREAM_BUFFERED));
+      }
+      if (failed) {
+        throw new IOException("Response body failed");
+      }
+      return finished && chunks.isEmpty();
+    }
+
+    public void close() {
+      aborted = true;
+      // unblock a producer waiting for space
+      space.release(MAX_STREAM_BUFFERED);
+    }
+  }
+
+  /**
+   * Output of an HTTP/2 connection, the last entry of its queue for as long
+   * as the connection is open. Pulls frames from the Http2Connection
+   * whenever the socket can take more.
+   */
+  private static class Http2Out implements Outgoing {
+    private final Connection conn;
+    private ByteBuffer[] frames;
+    private ByteBuffer last;
+
+    Http2Out(Connection conn) {
+      this.conn = conn;
+    }
+
+    public boolean ready() {
+      return frames != null || conn.h2.hasOutput() || conn.h2.finished();
+    }
+
+    public boolean writeTo(SocketChannel channel) throws IOException {
+      while (true) {
+        if (frames == null) {
+          frames = conn.h2.nextOutput();
+          if (frames == null) {
+            if (conn.h2.finished()) {
+              conn.closeAfterWrite = true;
+              return true;
+            }
+            return false;
+          }
+          last = frames[frames.length - 1];
+        }
+        channel.write(frames);
+        if (last.hasRemaining()) {
+          return false;
+        }
+        frames = null;
+      }
+    }
+
+    public void close() {
+      conn.h2.close();
+    }
+  }
+
+  /**
+   * Marks the end of a response in the output queue, records the write
+   * phase once everything before it is out
+   */
+  private static class Written implements Outgoing {
+    private final HttpResponse response;
+    private final long queued;
+    private final LongSupplier bytes;
+
+    Written(HttpResponse response, long queued, LongSupplier bytes) {
+      this.response = response;
+      this.queued = queued;
+      this.bytes = bytes;
+    }
+
+    public boolean writeTo(SocketChannel channel) {
+      if (response.metrics != null) {
+        response.metrics.written(bytes.getAsLong(), System.nanoTime() - queued);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * File body, copied by the kernel with transferTo and never loaded on the heap
+   */
+  private static class FileOut implements Outgoing {
+    private final HttpResponse response;
+    private FileChannel file;
+    private long position;
+    private long remaining;
+
+    FileOut(HttpResponse response) {
+      this.response = response;
+      this.position = response.fileOffset;
+      this.remaining = response.fileLength;
+    }
+
+    public boolean writeTo(SocketChannel channel) throws IOException {
+      if (file == null) {
+        file = FileChannel.open(response.file.toPath(), StandardOpenOption.READ);
+      }
+      while (remaining > 0) {
+        long sent = file.transferTo(position, remaining, channel);
+        if (sent <= 0) {
+          if (position >= file.size()) {
+            throw new IOException("File " + response.file + " shrank while being sent");
+          }
+          return false; // socket buffer full, wait for the next OP_WRITE
+        }
+        position += sent;
+        remaining -= sent;
+      }
+      return true;
+    }
+
+    public void close() {
+      if (file != null) {
+        try {
+          file.close();
+        } catch (IOException e) {
+          // already done with it
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,195 @@
+package funHttpServer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Typed access to the query part of a request target.
+ *
+ * Works on the header bytes of the request it belongs to. The query is only
+ * split into name/value offsets when a parameter is asked for, and values
+ * are only percent-decoded into Strings by get(); getInt reads plain digits
+ * straight from the bytes.
+ */
+public class QueryParams {
+  /** most parameters we look at, later ones are ignored */
+  static final int MAX_PARAMS = 32;
+
+  private final HttpRequest request;
+  /** number of parameters, -1 until the query has been split */
+  private int count = -1;
+  private final int[] nameStart = new int[MAX_PARAMS];
+  private final int[] nameEnd = new int[MAX_PARAMS];
+  private final int[] valueStart = new int[MAX_PARAMS];
+  private final int[] valueEnd = new int[MAX_PARAMS];
+
+  QueryParams(HttpRequest request) {
+    this.request = request;
+  }
+
+  void reset() {
+    count = -1;
+  }
+
+  /**
+   * @return true if there is no query or it is blank
+   */
+  public boolean isEmpty() {
+    if (request.queryStart < 0) {
+      return true;
+    }
+    for (int i = request.queryStart; i < request.targetEnd; i++) {
+      if (request.data[i] != ' ' && request.data[i] != '\t') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public boolean has(String name) {
+    return indexOf(name) >= 0;
+  }
+
+  /**
+   * @return the decoded value, "" for a parameter without '=', null if missing
+   */
+  public String get(String name) {
+    int i = indexOf(name);
+    return i < 0 ? null : decode(valueStart[i], valueEnd[i]);
+  }
+
+  /**
+   * @return the value as int
+   * @throws IllegalArgumentException if the parameter is missing or not an integer
+   */
+  public int getInt(String name) {
+    int i = indexOf(name);
+    if (i < 0) {
+      throw new IllegalArgumentException("Does not contain the query argument: " + name + "\n");
+    }
+    byte[] d = request.data;
+    int start = valueStart[i];
+    int end = valueEnd[i];
+    boolean negative = start < end && d[start] == '-';
+    int pos = negative ? start + 1 : start;
+    if (pos == end || end - pos > 9) {
+      // empty, or long enough to overflow; let the slow path decide
+      return parseInt(name, decode(start, end));
+    }
+    int value = 0;
+    for (; pos < end; pos++) {
+      int digit = d[pos] - '0';
+      if (digit < 0 || digit > 9) {
+        // maybe percent-encoded digits
+        return parseInt(name, decode(start, end));
+      }
+      value = value * 10 + digit;
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * @return the value as int or defaultValue if the parameter is missing
+   * @throws IllegalArgumentException if the parameter is not an integer
+   */
+  public int getInt(String name, int defaultValue) {
+    return has(name) ? getInt(name) : defaultValue;
+  }
+
+  private static int parseInt(String name, String value) {
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Does not contain an integer for the argument: " + name + "\n");
+    }
+  }
+
+  private int indexOf(String name) {
+    split();
+    for (int i = 0; i < count; i++) {
+      if (nameMatches(i, name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private boolean nameMatches(int i, String name) {
+    byte[] d = request.data;
+    int start = nameStart[i];
+    int end = nameEnd[i];
+    for (int p = start; p < end; p++) {
+      if (d[p] == '%' || d[p] == '+') {
+        // encoded name, compare the decoded form
+        return decode(start, end).equals(name);
+      }
+    }
+    if (end - start != name.length()) {
+      return false;
+    }
+    for (int p = start; p < end; p++) {
+      if (d[p] != name.charAt(p - start)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records the offsets of each name=value pair
+   */
+  private void split() {
+    if (count >= 0) {
+      return;
+    }
+    count = 0;
+    if (request.queryStart < 0) {
+      return;
+    }
+    byte[] d = request.data;
+    int pos = request.queryStart;
+    int end = request.targetEnd;
+    while (pos < end && count < MAX_PARAMS) {
+      int pairEnd = pos;
+      int eq = -1;
+      while (pairEnd < end && d[pairEnd] != '&') {
+        if (d[pairEnd] == '=' && eq < 0) {
+          eq = pairEnd;
+        }
+        pairEnd++;
+      }
+      if (pairEnd > pos) {
+        nameStart[count] = pos;
+        nameEnd[count] = eq < 0 ? pairEnd : eq;
+        valueStart[count] = eq < 0 ? pairEnd : eq + 1;
+        valueEnd[count] = pairEnd;
+        count++;
+      }
+      pos = pairEnd + 1;
+    }
+  }
+
+  /**
+   * Percent-decodes data[start, end) as UTF-8, '+' is a space
+   * @throws IllegalArgumentException on a broken escape
+   */
+  private String decode(int start, int end) {
+    byte[] d = request.data;
+    byte[] out = new byte[end - start];
+    int n = 0;
+    for (int p = start; p < end; p++) {
+      byte b = d[p];
+      if (b == '+') {
+        out[n++] = ' ';
+      } else if (b == '%') {
+        if (p + 2 >= end || Character.digit(d[p + 1], 16) < 0 || Character.digit(d[p + 2], 16) < 0) {
+          throw new IllegalArgumentException("Illegal escape (%) in query\n");
+        }
+        out[n++] = (byte) (Character.digit(d[p + 1], 16) * 16 + Character.digit(d[p + 2], 16));
+        p += 2;
+      } else {
+        out[n++] = b;
+      }
+    }
+    return new String(out, 0, n, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,211 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Parses HTTP request headers straight from bytes into a pooled HttpRequest.
+ *
+ * Nothing is decoded into Strings while parsing, the parser only records
+ * offsets. Header size (HttpRequest.MAX_HEADER_BYTES) and number of header
+ * fields (HttpRequest.MAX_HEADERS) are limited; going over a limit or sending
+ * a malformed request line raises a BadRequest with the status to answer.
+ */
+public class RequestParser {
+  /** returned by parse when the header is not complete yet */
+  public static final int NEED_MORE = -1;
+
+  /**
+   * A request we refuse to parse
+   */
+  public static class BadRequest extends IOException {
+    /** status to answer with, e.g. "400 Bad Request" */
+    public final String status;
+
+    BadRequest(String status, String message) {
+      super(message);
+      this.status = status;
+    }
+  }
+
+  /**
+   * Parses one header from a buffer that may hold less or more than one request
+   * @param src bytes received so far
+   * @param offset where the request starts
+   * @param length number of bytes available from offset
+   * @param into request to fill, its data gets a copy of the header bytes
+   * @return number of bytes the header took, or NEED_MORE
+   * @throws BadRequest if the header is malformed or too large
+   */
+  public static int parse(byte[] src, int offset, int length, HttpRequest into) throws BadRequest {
+    int end = endOfHeader(src, offset, Math.min(length, HttpRequest.MAX_HEADER_BYTES));
+    if (end < 0) {
+      if (length >= HttpRequest.MAX_HEADER_BYTES) {
+        throw new BadRequest("431 Request Header Fields Too Large", "Request header too large");
+      }
+      return NEED_MORE;
+    }
+    System.arraycopy(src, offset, into.data, 0, end);
+    parseHead(into, end);
+    return end;
+  }
+
+  /**
+   * Reads one header from a blocking stream. Reads one byte at a time so
+   * nothing after the header is consumed; pass a buffered stream.
+   * @return false if the stream ended before a request started
+   * @throws BadRequest if the header is malformed or too large
+   */
+  public static boolean read(InputStream in, HttpRequest into) throws IOException {
+    byte[] data = into.data;
+    int n = 0;
+    int b;
+    while ((b = in.read()) != -1) {
+      if (n == data.length) {
+        throw new BadRequest("431 Request Header Fields Too Large", "Request header too large");
+      }
+      data[n++] = (byte) b;
+      if (b == '\n' && (endsWith(data, n, '\n', '\n') || endsWith(data, n, '\n', '\r', '\n'))) {
+        parseHead(into, n);
+        return true;
+      }
+    }
+    if (n == 0) {
+      return false;
+    }
+    throw new BadRequest("400 Bad Request", "Connection closed inside the request header");
+  }
+
+  /**
+   * Finds the blank line that terminates a header
+   * @return number of bytes up to and including the blank line, -1 if not there
+   */
+  public static int endOfHeader(byte[] src, int offset, int length) {
+    int limit = offset + length;
+    for (int i = offset; i < limit; i++) {
+      if (src[i] != '\n') {
+        continue;
+      }
+      if (i + 1 < limit && src[i + 1] == '\n') {
+        return i + 2 - offset;
+      }
+      if (i + 2 < limit && src[i + 1] == '\r' && src[i + 2] == '\n') {
+        return i + 3 - offset;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean endsWith(byte[] data, int n, char... tail) {
+    if (n < tail.length) {
+      return false;
+    }
+    for (int i = 0; i < tail.length; i++) {
+      if (data[n - tail.length + i] != tail[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records the offsets of the request line and header fields in into.data
+   * @param length header length including the blank line
+   */
+  static void parseHead(HttpRequest into, int length) throws BadRequest {
+    byte[] d = into.data;
+    into.reset();
+    into.length = length;
+    int pos = 0;
+
+    // request line: METHOD SP TARGET SP VERSION CRLF
+    while (pos < length && isToken(d[pos])) {
+      pos++;
+    }
+    if (pos == 0 || pos >= length || d[pos] != ' ') {
+      throw new BadRequest("400 Bad Request", "Malformed request method");
+    }
+    into.methodEnd = pos++;
+
+    into.targetStart = pos;
+    while (pos < length && d[pos] != ' ' && d[pos] != '\r' && d[pos] != '\n') {
+      if (d[pos] == '?' && into.queryStart < 0) {
+        into.queryStart = pos + 1;
+      }
+      pos++;
+    }
+    if (pos == into.targetStart || pos >= length || d[pos] != ' ') {
+      throw new BadRequest("400 Bad Request", "Malformed request target");
+    }
+    into.targetEnd = pos++;
+
+    into.versionStart = pos;
+    while (pos < length && d[pos] != '\r' && d[pos] != '\n') {
+      pos++;
+    }
+    into.versionEnd = pos;
+    if (into.versionEnd - into.versionStart != 8 || d[into.versionStart] != 'H'
+        || d[into.versionStart + 4] != '/') {
+      throw new BadRequest("400 Bad Request", "Malformed HTTP version");
+    }
+    pos = nextLine(d, pos, length);
+
+    // header fields: NAME ":" OWS VALUE OWS CRLF, until the blank line
+    while (pos < length && d[pos] != '\r' && d[pos] != '\n') {
+      if (into.headerCount == HttpRequest.MAX_HEADERS) {
+        throw new BadRequest("431 Request Header Fields Too Large", "Too many header fields");
+      }
+      int nameStart = pos;
+      while (pos < length && isToken(d[pos])) {
+        pos++;
+      }
+      if (pos == nameStart || pos >= length || d[pos] != ':') {
+        // also rejects obsolete line folding (a line starting with whitespace)
+        throw new BadRequest("400 Bad Request", "Malformed header field");
+      }
+      int i = into.headerCount++;
+      into.nameStart[i] = nameStart;
+      into.nameEnd[i] = pos++;
+
+      while (pos < length && (d[pos] == ' ' || d[pos] == '\t')) {
+        pos++;
+      }
+      into.valueStart[i] = pos;
+      while (pos < length && d[pos] != '\r' && d[pos] != '\n') {
+        pos++;
+      }
+      int valueEnd = pos;
+      while (valueEnd > into.valueStart[i] && (d[valueEnd - 1] == ' ' || d[valueEnd - 1] == '\t')) {
+        valueEnd--;
+      }
+      into.valueEnd[i] = valueEnd;
+      pos = nextLine(d, pos, length);
+    }
+  }
+
+  private static int nextLine(byte[] d, int pos, int length) {
+    if (pos < length && d[pos] == '\r') {
+      pos++;
+    }
+    if (pos < length && d[pos] == '\n') {
+      pos++;
+    }
+    return pos;
+  }
+
+  /**
+   * tchar from RFC 7230, the characters allowed in methods and header names
+   */
+  private static boolean isToken(byte b) {
+    if (b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9') {
+      return true;
+    }
+    switch (b) {
+      case '!': case '#': case '$': case '%': case '&': case '\'': case '*':
+      case '+': case '-': case '.': case '^': case '_': case '`': case '|': case '~':
+        return true;
+      default:
+        return false;
+    }
+  }
+}
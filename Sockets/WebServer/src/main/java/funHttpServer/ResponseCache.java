@@ -0,0 +1,215 @@
+package funHttpServer;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * In-memory cache of finished responses for the hot routes ("/", random,
+ * the kitty pages).
+ *
+ * Entries hold the encoded body and the precomputed headers (Content-Type,
+ * ETag, ...) so a hit needs no filesystem call at all. The cache is bounded
+ * by the total body size and evicts the least recently used entry first.
+ * A WatchService on the watched directories drops every entry that was built
+ * from a directory as soon as something in that directory changes.
+ * Compressible bodies are gzipped once when they are cached, so gzip hits
+ * cost no compression either.
+ */
+class ResponseCache {
+
+  /**
+   * Builds the response for a route
+   */
+  interface Loader {
+    /**
+     * @param request the request when it can not be answered from the cache
+     *                (e.g. Range requests), null when filling the cache
+     */
+    HttpResponse load(HttpRequest request) throws IOException;
+  }
+
+  private static class Entry {
+    final String dir;
+    final String status;
+    final Map<String, String> headers;
+    final byte[] body;
+    /** gzip variant of body, null if it is not worth compressing */
+    final byte[] gzip;
+
+    Entry(String dir, HttpResponse response, byte[] body, byte[] gzip) {
+      this.dir = dir;
+      this.status = response.status;
+      this.headers = new LinkedHashMap<>(response.headers);
+      this.body = body;
+      this.gzip = gzip;
+    }
+
+    long size() {
+      return body.length + (gzip == null ? 0 : gzip.length);
+    }
+  }
+
+  private final long maxBytes;
+  private long usedBytes;
+  /** bumped on every invalidation so loads that raced with it are not stored */
+  private long generation;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * @param maxBytes upper bound for the sum of all cached bodies
+   * @param watchedDirs directories whose changes invalidate entries
+   */
+  ResponseCache(long maxBytes, String... watchedDirs) {
+    this.maxBytes = maxBytes;
+    startWatcher(watchedDirs);
+  }
+
+  /**
+   * Returns the cached response for key or builds and caches it
+   * @param key route the response belongs to
+   * @param dir directory the response is built from, changes there drop it
+   * @param request the current request (for If-None-Match and Range)
+   * @param loader builds the response on a miss
+   */
+  HttpResponse get(String key, String dir, HttpRequest request, Loader loader) throws IOException {
+    if (request != null && request.hasHeader("range")) {
+      // partial content is not cached, let the loader deal with it
+      return loader.load(request);
+    }
+
+    Entry entry;
+    long loadGeneration;
+    synchronized (this) {
+      entry = entries.get(key);
+      loadGeneration = generation;
+    }
+
+    if (entry == null) {
+      HttpResponse loaded = loader.load(null);
+      if (!loaded.status.startsWith("200")) {
+        return loaded;
+      }
+      byte[] body = loaded.bodyBytes();
+      if (!loaded.headers.containsKey("ETag")) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        loaded.header("ETag", "\"" + Long.toHexString(crc.getValue()) + "\"");
+      }
+      byte[] gzip = null;
+      if (body.length >= Compression.MIN_SIZE && Compression.compressible(loaded.headers.get("Content-Type"))) {
+        gzip = Compression.compress(body, Compression.GZIP);
+        loaded.header("Vary", "Accept-Encoding");
+      }
+      entry = new Entry(dir, loaded, body, gzip);
+      put(key, entry, loadGeneration);
+    }
+
+    if (StaticFiles.etagMatches(request, entry.headers.get("ETag"))) {
+      HttpResponse notModified = HttpResponse.empty("304 Not Modified");
+      notModified.header("ETag", entry.headers.get("ETag"));
+      return notModified;
+    }
+    if (entry.gzip != null && Compression.GZIP.equals(Compression.negotiate(request))) {
+      HttpResponse response = new HttpResponse(entry.status, entry.gzip);
+      response.headers.putAll(entry.headers);
+      response.header("Content-Encoding", Compression.GZIP);
+      response.header("ETag", Compression.variantEtag(entry.headers.get("ETag"), Compression.GZIP));
+      response.headers.remove("Accept-Ranges");
+      return response;
+    }
+    HttpResponse response = new HttpResponse(entry.status, entry.body);
+    response.headers.putAll(entry.headers);
+    return response;
+  }
+
+  private synchronized void put(String key, Entry entry, long loadGeneration) {
+    if (loadGeneration != generation || entry.size() > maxBytes / 2) {
+      // invalidated while loading, or too big to be worth the space
+      return;
+    }
+    Entry old = entries.put(key, entry);
+    if (old != null) {
+      usedBytes -= old.size();
+    }
+    usedBytes += entry.size();
+
+    Iterator<Entry> eldest = entries.values().iterator();
+    while (usedBytes > maxBytes && eldest.hasNext()) {
+      usedBytes -= eldest.next().size();
+      eldest.remove();
+    }
+  }
+
+  /**
+   * Drops every entry built from dir, null drops everything
+   */
+  synchronized void invalidate(String dir) {
+    generation++;
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (dir == null || entry.dir.equals(dir)) {
+        usedBytes -= entry.size();
+        it.remove();
+      }
+    }
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Watches the directories on a daemon thread and invalidates on change
+   */
+  private void startWatcher(String... dirs) {
+    WatchService watcher;
+    Map<WatchKey, String> watched = new HashMap<>();
+    try {
+      watcher = FileSystems.getDefault().newWatchService();
+      for (String dir : dirs) {
+        Path path = Paths.get(dir);
+        if (path.toFile().isDirectory()) {
+          watched.put(path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+              StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("Could not watch " + String.join(", ", dirs)
+          + ", cache will not be invalidated: " + e.getMessage());
+      return;
+    }
+
+    Thread thread = new Thread(() -> {
+      while (true) {
+        WatchKey key;
+        try {
+          key = watcher.take();
+        } catch (InterruptedException e) {
+          return;
+        }
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+          overflow |= event.kind() == StandardWatchEventKinds.OVERFLOW;
+        }
+        invalidate(overflow ? null : watched.get(key));
+        if (!key.reset()) {
+          watched.remove(key);
+        }
+      }
+    }, "response-cache-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+}
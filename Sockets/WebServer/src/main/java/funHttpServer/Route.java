@@ -0,0 +1,15 @@
+package funHttpServer;
+
+import java.io.IOException;
+
+/**
+ * Handler for one endpoint, registered on the Router
+ */
+interface Route {
+  /**
+   * @param request the parsed request
+   * @param query parameters after the '?' of the target
+   * @return the response without the framing headers
+   */
+  HttpResponse handle(HttpRequest request, QueryParams query) throws IOException;
+}
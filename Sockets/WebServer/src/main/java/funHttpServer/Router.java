@@ -0,0 +1,85 @@
+package funHttpServer;
+
+/**
+ * Maps request paths to routes with a prefix trie over the path characters.
+ *
+ * A lookup walks the path bytes of the parsed request once, up to the '?'
+ * or the end; it does not create, copy or split a string. The cost depends on the
+ * length of the path only, not on how many routes are registered. Routes
+ * match the whole path ("cat" matches /cat?kitty=1 but not /xcat?) unless
+ * they were added as prefix routes ("www/" matches /www/index.html).
+ * Letters match case-insensitively, like the old equalsIgnoreCase checks.
+ */
+class Router {
+  /** paths are ASCII; anything else can not match a route */
+  private static final int ALPHABET = 128;
+
+  private static class Node {
+    final Node[] next = new Node[ALPHABET];
+    Route exact;
+    Route prefix;
+  }
+
+  private final Node root = new Node();
+
+  /**
+   * Registers a route for exactly this path
+   * @param path without the leading '/', e.g. "multiply"
+   */
+  Router add(String path, Route route) {
+    node(path).exact = route;
+    return this;
+  }
+
+  /**
+   * Registers a route for every path starting with prefix
+   * @param prefix without the leading '/', e.g. "www/"
+   */
+  Router addPrefix(String prefix, Route route) {
+    node(prefix).prefix = route;
+    return this;
+  }
+
+  private Node node(String path) {
+    Node node = root;
+    for (int i = 0; i < path.length(); i++) {
+      int c = lower(path.charAt(i));
+      if (c >= ALPHABET) {
+        throw new IllegalArgumentException("Route paths must be ASCII: " + path);
+      }
+      if (node.next[c] == null) {
+        node.next[c] = new Node();
+      }
+      node = node.next[c];
+    }
+    return node;
+  }
+
+  /**
+   * Finds the route for a request, walking the path bytes of its header
+   * @param request a parsed request whose target starts with '/'
+   * @return the exact route, else the longest matching prefix route, else null
+   */
+  Route find(HttpRequest request) {
+    byte[] data = request.data;
+    int end = request.pathEnd();
+    Node node = root;
+    Route prefix = root.prefix;
+    // skip the leading '/'
+    for (int i = request.targetStart + 1; i < end; i++) {
+      int key = lower((char) (data[i] & 0xff));
+      node = key < ALPHABET ? node.next[key] : null;
+      if (node == null) {
+        return prefix;
+      }
+      if (node.prefix != null) {
+        prefix = node.prefix;
+      }
+    }
+    return node.exact != null ? node.exact : prefix;
+  }
+
+  private static int lower(char c) {
+    return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+  }
+}
@@ -0,0 +1,274 @@
+package funHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Static file responses for www/ and images/.
+ *
+ * The file itself is not read here; the response only points at it and the
+ * front end sends it with transferTo. Supports conditional requests
+ * (If-None-Match / If-Modified-Since answer 304) and single byte ranges
+ * (Range: bytes=a-b answers 206) so downloads can be resumed.
+ *
+ * The header helpers are public, httpServer.WebServer builds its responses
+ * with them.
+ */
+public class StaticFiles {
+
+  /**
+   * Serves a file below a document root, e.g. ("images", "Kitty1.jpg")
+   * @param request the request, used for the conditional and range headers
+   * @param root directory the file has to be in
+   * @param path path below root as it appeared in the URL (may have a query)
+   */
+  static HttpResponse serve(HttpRequest request, String root, String path) {
+    int query = path.indexOf('?');
+    if (query >= 0) {
+      path = path.substring(0, query);
+    }
+    String decoded = decodePath(path);
+    if (decoded == null) {
+      return notFound(path);
+    }
+    path = decoded;
+
+    // resolve and normalize, anything that ends up outside the root is refused
+    Path base = Paths.get(root).toAbsolutePath().normalize();
+    Path resolved = base.resolve(path).normalize();
+    if (!resolved.startsWith(base)) {
+      return notFound(path);
+    }
+    return serve(request, resolved.toFile());
+  }
+
+  /**
+   * Percent-decodes a path as UTF-8; '+' stays a plus in paths
+   * @return the path, null if it is malformed or contains NUL
+   */
+  public static String decodePath(String path) {
+    if (path.indexOf('%') < 0) {
+      return path;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(path.length());
+    for (int i = 0; i < path.length(); i++) {
+      char c = path.charAt(i);
+      if (c != '%') {
+        byte[] b = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+        bytes.write(b, 0, b.length);
+        continue;
+      }
+      if (i + 2 >= path.length()) {
+        return null;
+      }
+      int hi = Character.digit(path.charAt(i + 1), 16);
+      int lo = Character.digit(path.charAt(i + 2), 16);
+      if (hi < 0 || lo < 0 || (hi == 0 && lo == 0)) {
+        return null;
+      }
+      bytes.write(hi << 4 | lo);
+      i += 2;
+    }
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Serves one file
+   * @param request the request, used for the conditional and range headers
+   * @param file file to send
+   */
+  static HttpResponse serve(HttpRequest request, File file) {
+    if (!file.isFile()) {
+      return notFound(file.getPath());
+    }
+
+    long length = file.length();
+    long modified = file.lastModified();
+    String etag = etag(length, modified);
+    String lastModified = httpDate(modified);
+
+    if (notModified(request, etag, modified)) {
+      return HttpResponse.empty("304 Not Modified")
+          .header("ETag", etag)
+          .header("Last-Modified", lastModified);
+    }
+
+    long start = 0;
+    long end = length - 1;
+    String status = "200 OK";
+    String range = request == null ? null : request.header("range");
+    String ifRange = request == null ? null : request.header("if-range");
+    boolean rangeApplies = range != null && (ifRange == null || ifRange.equals(etag)
+        || ifRange.equals(lastModified));
+
+    if (rangeApplies) {
+      long[] bounds = parseRange(range, length);
+      if (bounds == null) {
+        return HttpResponse.of("416 Range Not Satisfiable", "text/html; charset=utf-8", "")
+            .header("Content-Range", "bytes */" + length);
+      }
+      if (bounds.length == 2) {
+        start = bounds[0];
+        end = bounds[1];
+        status = "206 Partial Content";
+      }
+    }
+
+    HttpResponse response = HttpResponse.ofFile(status, file, start, end - start + 1)
+        .header("Content-Type", contentType(file.getName()))
+        .header("ETag", etag)
+        .header("Last-Modified", lastModified)
+        .header("Accept-Ranges", "bytes");
+    if (status.startsWith("206")) {
+      response.header("Content-Range", "bytes " + start + "-" + end + "/" + length);
+    }
+    return response;
+  }
+
+  /**
+   * If-None-Match wins over If-Modified-Since, like the RFC asks
+   */
+  public static boolean notModified(HttpRequest request, String etag, long modified) {
+    if (request == null) {
+      return false;
+    }
+    if (request.hasHeader("if-none-match")) {
+      return etagMatches(request, etag);
+    }
+    String ifModifiedSince = request.header("if-modified-since");
+    if (ifModifiedSince != null) {
+      try {
+        long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+            .toInstant().toEpochMilli();
+        // HTTP dates have second resolution
+        return modified / 1000 <= since / 1000;
+      } catch (DateTimeParseException e) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if If-None-Match lists the etag (or is "*")
+   */
+  static boolean etagMatches(HttpRequest request, String etag) {
+    String ifNoneMatch = request == null ? null : request.header("if-none-match");
+    if (ifNoneMatch == null || etag == null) {
+      return false;
+    }
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      // a tag of the gzip variant matches as well, it is the same file
+      if (tag.equals("*") || tag.equals(etag) || Compression.identityEtag(tag).equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Parses a single "bytes=" range. Multiple ranges are answered with the
+   * whole file, which the RFC allows.
+   * @return {start, end} inclusive, an empty array to send the whole file,
+   *         null if the range can not be satisfied
+   */
+  public static long[] parseRange(String range, long length) {
+    if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+      return new long[0];
+    }
+    String spec = range.substring(6).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return new long[0];
+    }
+    try {
+      long start;
+      long end;
+      if (dash == 0) {
+        // suffix range, the last n bytes
+        long suffix = Long.parseLong(spec.substring(1));
+        if (suffix == 0) {
+          return null;
+        }
+        start = Math.max(0, length - suffix);
+        end = length - 1;
+      } else {
+        start = Long.parseLong(spec.substring(0, dash));
+        end = dash == spec.length() - 1 ? length - 1
+            : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+      }
+      if (start >= length || start > end) {
+        return null;
+      }
+      return new long[] {start, end};
+    } catch (NumberFormatException e) {
+      return new long[0];
+    }
+  }
+
+  public static String etag(long length, long modified) {
+    return "\"" + Long.toHexString(length) + "-" + Long.toHexString(modified) + "\"";
+  }
+
+  public static String httpDate(long millis) {
+    return DateTimeFormatter.RFC_1123_DATE_TIME.format(
+        Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+  }
+
+  /** content types by file extension */
+  private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+  static {
+    CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+    CONTENT_TYPES.put("htm", "text/html; charset=utf-8");
+    CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+    CONTENT_TYPES.put("js", "application/javascript; charset=utf-8");
+    CONTENT_TYPES.put("json", "application/json; charset=utf-8");
+    CONTENT_TYPES.put("xml", "application/xml; charset=utf-8");
+    CONTENT_TYPES.put("txt", "text/plain; charset=utf-8");
+    CONTENT_TYPES.put("md", "text/markdown; charset=utf-8");
+    CONTENT_TYPES.put("csv", "text/csv; charset=utf-8");
+    CONTENT_TYPES.put("java", "text/plain; charset=utf-8");
+    CONTENT_TYPES.put("jpg", "image/jpeg");
+    CONTENT_TYPES.put("jpeg", "image/jpeg");
+    CONTENT_TYPES.put("png", "image/png");
+    CONTENT_TYPES.put("gif", "image/gif");
+    CONTENT_TYPES.put("webp", "image/webp");
+    CONTENT_TYPES.put("ico", "image/x-icon");
+    CONTENT_TYPES.put("svg", "image/svg+xml");
+    CONTENT_TYPES.put("woff2", "font/woff2");
+    CONTENT_TYPES.put("mp3", "audio/mpeg");
+    CONTENT_TYPES.put("mp4", "video/mp4");
+    CONTENT_TYPES.put("pdf", "application/pdf");
+    CONTENT_TYPES.put("zip", "application/zip");
+    CONTENT_TYPES.put("gz", "application/gzip");
+    CONTENT_TYPES.put("jar", "application/java-archive");
+  }
+
+  /**
+   * Content type by file extension
+   */
+  public static String contentType(String name) {
+    int dot = name.lastIndexOf('.');
+    String type = dot < 0 ? null : CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase());
+    return type != null ? type : "application/octet-stream";
+  }
+
+  private static HttpResponse notFound(String path) {
+    return HttpResponse.of("404 Not Found", "text/html; charset=utf-8", "File not found: " + path);
+  }
+}
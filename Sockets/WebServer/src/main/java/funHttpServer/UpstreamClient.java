@@ -0,0 +1,164 @@
+package funHttpServer;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Non-blocking, cached GET requests against one upstream server (the GitHub
+ * API for /github).
+ *
+ * Requests go through one java.net.http.HttpClient, which keeps connections
+ * to the upstream open and never parks a server thread while waiting.
+ * Concurrent requests for the same path share a single upstream call.
+ * Bodies are kept for ttl; after that the cached body is still answered
+ * right away while one request revalidates it in the background with
+ * If-None-Match (a 304 just makes it fresh again). Only entries older than
+ * maxStale make a client wait for the upstream.
+ *
+ * Failed upstream calls are not printed, they are counted (failures and
+ * errors, exported by WebServer); the client gets a 400 that the access log
+ * records.
+ */
+class UpstreamClient {
+  /** most paths we keep, the least recently used one is dropped first */
+  static final int MAX_ENTRIES = 256;
+
+  private static class Entry {
+    final String body;
+    final String etag;
+    final long fetchedAt;
+
+    Entry(String body, String etag, long fetchedAt) {
+      this.body = body;
+      this.etag = etag;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+
+  private final String baseUrl;
+  private final long ttlMillis;
+  private final long maxStaleMillis;
+  private final Duration timeout;
+  private final HttpClient client;
+  /** in access order, guarded by itself */
+  private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+  /** upstream calls that are running, so identical requests can join them */
+  private final Map<String, CompletableFuture<Entry>> inflight = new ConcurrentHashMap<>();
+  /** upstream calls that got no answer (connect, timeout, bad URL) */
+  final LongAdder failures = new LongAdder();
+  /** upstream answers other than 200 and 304 */
+  final LongAdder errors = new LongAdder();
+
+  /**
+   * @param baseUrl prefix of every request, e.g. https://api.github.com/
+   * @param ttl how long a body is answered without asking the upstream
+   * @param maxStale how long after ttl a body may still be answered while revalidating
+   * @param timeout for connecting and for each upstream request
+   */
+  UpstreamClient(String baseUrl, Duration ttl, Duration maxStale, Duration timeout) {
+    this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    this.ttlMillis = ttl.toMillis();
+    this.maxStaleMillis = maxStale.toMillis();
+    this.timeout = timeout;
+    this.client = HttpClient.newBuilder()
+        .connectTimeout(timeout)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .build();
+  }
+
+  /**
+   * @param path below the base URL, e.g. users/amehlhase316/repos
+   * @return the body, completed exceptionally with an IllegalArgumentException
+   *         if the upstream does not answer with 200
+   */
+  CompletableFuture<String> get(String path) {
+    long now = System.currentTimeMillis();
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(path);
+    }
+    if (entry != null) {
+      long age = now - entry.fetchedAt;
+      if (age <= ttlMillis) {
+        return CompletableFuture.completedFuture(entry.body);
+      }
+      if (age <= ttlMillis + maxStaleMillis) {
+        // answer with what we have, refresh it for the next one
+        fetch(path, entry);
+        return CompletableFuture.completedFuture(entry.body);
+      }
+    }
+    return fetch(path, entry).thenApply(fetched -> fetched.body);
+  }
+
+  /**
+   * Starts an upstream request for path or joins the one already running
+   * @param cached entry to revalidate, may be null
+   */
+  private CompletableFuture<Entry> fetch(String path, Entry cached) {
+    CompletableFuture<Entry> created = new CompletableFuture<>();
+    CompletableFuture<Entry> running = inflight.putIfAbsent(path, created);
+    if (running != null) {
+      return running;
+    }
+
+    java.net.http.HttpRequest.Builder request;
+    try {
+      request = java.net.http.HttpRequest.newBuilder(URI.create(baseUrl + path))
+          .timeout(timeout)
+          .header("Accept", "application/json")
+          .method("GET", BodyPublishers.noBody());
+    } catch (IllegalArgumentException e) {
+      inflight.remove(path);
+      failures.increment();
+      created.completeExceptionally(new IllegalArgumentException("Query must point to a github repo\n"));
+      return created;
+    }
+    if (cached != null && cached.etag != null) {
+      request.header("If-None-Match", cached.etag);
+    }
+
+    client.sendAsync(request.build(), BodyHandlers.ofString()).whenComplete((response, error) -> {
+      // done before completing, so a caller that reacts to the result starts a new call
+      inflight.remove(path);
+      if (error != null) {
+        failures.increment();
+        created.completeExceptionally(new IllegalArgumentException("Query must point to a github repo\n"));
+        return;
+      }
+      long now = System.currentTimeMillis();
+      if (response.statusCode() == 304 && cached != null) {
+        Entry refreshed = new Entry(cached.body, cached.etag, now);
+        put(path, refreshed);
+        created.complete(refreshed);
+      } else if (response.statusCode() == 200) {
+        Entry fetched = new Entry(response.body(), response.headers().firstValue("ETag").orElse(null), now);
+        put(path, fetched);
+        created.complete(fetched);
+      } else {
+        errors.increment();
+        created.completeExceptionally(new IllegalArgumentException("Query must point to a github repo\n"));
+      }
+    });
+    return created;
+  }
+
+  private void put(String path, Entry entry) {
+    synchronized (entries) {
+      entries.put(path, entry);
+    }
+  }
+}
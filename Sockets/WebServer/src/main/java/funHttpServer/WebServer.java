@@ -8,6 +8,10 @@ You can also do some other simple GET requests:
 4) /multiply?num1=3&num2=4 multiplies the two inputs and responses with the result
 5) /github?query=users/amehlhase316/repos (or other GitHub repo owners) will lead to receiving
    JSON which will for now only be printed in the console. See the todo below
+   (fetched without blocking and cached, see UpstreamClient)
+6) /www/FILENAME and /images/FILENAME stream the file from that folder, with
+   ETag/Last-Modified (304 Not Modified) and Range (206 Partial Content) support
+7) /metrics shows request counts and latencies per route for Prometheus
 
 The reading of the request is done "manually", meaning no library that helps making things a 
 little easier is used. This is done so you see exactly how to pars the request and 
@@ -27,32 +31,100 @@ import java.util.Random;
 import java.util.Map;
 import java.util.LinkedHashMap;
 import java.util.Base64;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 
 class WebServer {
+  /**
+   * Starts the server. Arguments are optional: [port] [blocking|nio] [workers]
+   * "blocking" is the original single threaded accept loop, "nio" runs a
+   * selector based reactor with a worker pool so both can be compared.
+   */
   public static void main(String args[]) {
-    WebServer server = new WebServer(9000);
+    int port = 9000;
+    String mode = "blocking";
+    int workers = Runtime.getRuntime().availableProcessors() * 4;
+    try {
+      if (args.length > 0) {
+        port = Integer.parseInt(args[0]);
+      }
+      if (args.length > 1) {
+        mode = args[1];
+      }
+      if (args.length > 2) {
+        workers = Integer.parseInt(args[2]);
+      }
+    } catch (NumberFormatException nfe) {
+      System.out.println("Usage: WebServer [port(int)] [blocking|nio] [workers(int)]");
+      System.exit(1);
+    }
+
+    if (mode.equalsIgnoreCase("nio")) {
+      new NioServer(port, workers, new WebServer()).run();
+    } else if (mode.equalsIgnoreCase("blocking")) {
+      WebServer server = new WebServer(port);
+    } else {
+      System.out.println("Unknown mode " + mode + ", expected blocking or nio");
+      System.exit(1);
+    }
   }
 
   /**
-   * Main thread
+   * Creates a server without a socket, used when another front end
+   * (see NioServer) owns the connections and only calls createResponse
+   */
+  public WebServer() {
+  }
+
+  /**
+   * Main thread, runs the blocking accept loop
    * @param port to listen on
    */
   public WebServer(int port) {
+    metrics.gauge("http_open_connections", "Connections being served", () -> serving ? 1 : 0);
     ServerSocket server = null;
     Socket sock = null;
     InputStream in = null;
     OutputStream out = null;
 
     try {
-      server = new ServerSocket(port);
+      // opened through a channel so files can be sent with transferTo
+      ServerSocketChannel channel = ServerSocketChannel.open();
+      channel.bind(new InetSocketAddress(port));
+      server = channel.socket();
       while (true) {
         sock = server.accept();
         out = sock.getOutputStream();
         in = sock.getInputStream();
-        byte[] response = createResponse(in, out);
-        out.write(response);
-        out.flush();
+        // this loop serves one client at a time, so it always closes the
+        // connection instead of letting a kept-alive client block everybody
+        HttpRequest request = HttpRequest.acquire();
+        serving = true;
+        try {
+          // in this loop parsing includes waiting for the client to send the header
+          long parseStart = System.nanoTime();
+          boolean received = RequestParser.read(new BufferedInputStream(in), request);
+          request.parseNanos = System.nanoTime() - parseStart;
+          HttpResponse response = createResponse(received ? request : null);
+          long writeStart = System.nanoTime();
+          long written = response.writeTo(sock.getChannel(), false, received && !request.isHttp10());
+          if (response.metrics != null) {
+            response.metrics.written(written, System.nanoTime() - writeStart);
+          }
+        } catch (RequestParser.BadRequest e) {
+          HttpResponse response = HttpResponse.of(e.status, "text/html; charset=utf-8",
+              "<html>ERROR: " + e.getMessage() + "</html>");
+          metrics.other.responded(response, 0);
+          response.metrics.written(response.writeTo(sock.getChannel(), false), 0);
+        } catch (IOException e) {
+          e.printStackTrace();
+        } finally {
+          serving = false;
+          request.release();
+        }
         in.close();
         out.close();
         sock.close();
@@ -83,349 +155,439 @@ class WebServer {
 
   private Random random = new Random();
 
+  /**
+   * Counters and latency histograms per route, see "/metrics"
+   */
+  final Metrics metrics = new Metrics();
+
+  /**
+   * Requests served, written to logs/access.log by a background thread
+   * (see AccessLog for the -Daccess.log.* settings)
+   */
+  private final AccessLog accessLog = AccessLog.fromSystemProperties("logs/access.log");
+
+  /**
+   * Admission control in nio mode, see limiterFor. -Dlimit=<n>|aimd for the
+   * CPU routes (a fixed 256 by default), -Dlimit.github=<n>|aimd for
+   * "/github" so a slow GitHub cannot use up the slots of the cheap routes.
+   */
+  final ConcurrencyLimiter limiter = ConcurrencyLimiter.fromSystemProperty("default", "limit", "256");
+  final ConcurrencyLimiter githubLimiter = ConcurrencyLimiter.fromSystemProperty("github", "limit.github", "64");
+
+  {
+    metrics.gauge("access_log_dropped", "Access log records dropped because the log fell behind",
+        accessLog::dropped);
+    for (ConcurrencyLimiter l : new ConcurrencyLimiter[] {limiter, githubLimiter}) {
+      metrics.gauge("http_limit_" + l.name, "Requests the " + l.name + " limiter lets in at once", l::limit);
+      metrics.gauge("http_limit_" + l.name + "_inflight", "Requests admitted by the " + l.name + " limiter",
+          l::inflight);
+      metrics.counter("http_limit_" + l.name + "_rejected_total", "Requests refused by the " + l.name + " limiter",
+          l::rejected);
+    }
+  }
+
+  /** true while the blocking loop serves a client */
+  private volatile boolean serving;
+
+  /**
+   * Rendered pages of the hot routes, dropped when www/ or images/ change
+   */
+  private final ResponseCache cache = new ResponseCache(16 * 1024 * 1024, "www", "images");
+
+  /**
+   * GitHub API for "/github", answers are cached for a minute (-Dgithub.ttl=seconds).
+   * Start with -Dgithub.url=http://localhost:8089/ to talk to a local stub instead.
+   */
+  private final UpstreamClient upstream = new UpstreamClient(
+      System.getProperty("github.url", "https://api.github.com/"),
+      Duration.ofSeconds(Long.getLong("github.ttl", 60)), Duration.ofMinutes(10), Duration.ofSeconds(20));
+
+  {
+    metrics.counter("github_upstream_failures_total", "GitHub calls that got no answer", upstream.failures::sum);
+    metrics.counter("github_upstream_errors_total", "GitHub answers other than 200 and 304", upstream.errors::sum);
+  }
+
+  /**
+   * All endpoints of the server. Add new ones here, lookups do not get
+   * slower with more routes.
+   */
+  private final Router router = new Router()
+      .add("", metrics.wrap("root", this::root))
+      .add("json", metrics.wrap("json", this::json))
+      .add("random", metrics.wrap("random", this::random))
+      .add("cat", metrics.wrap("cat", this::cat))
+      .add("ft_to_cm", metrics.wrap("ft_to_cm", this::ftToCm))
+      .addPrefix("file/", metrics.wrap("file", this::file))
+      .add("multiply", metrics.wrap("multiply", this::multiply))
+      .add("github", metrics.wrap("github", (AsyncRoute) this::github))
+      .addPrefix("www/", metrics.wrap("www", this::staticFile))
+      .addPrefix("images/", metrics.wrap("images", this::staticFile))
+      .add("metrics", metrics.wrap("metrics", this::metrics));
+
   public boolean integerChecker(String str) {
     return str.matches("-?\\d+");
   }
 
   /**
-   * Reads in socket stream and generates a response
+   * Reads in socket stream and generates a response for a connection that
+   * is closed afterwards
    * @param inStream HTTP input stream from socket
    * @return the byte encoded HTTP response
    */
   public byte[] createResponse(InputStream inStream, OutputStream outStream) {
+    HttpRequest request = HttpRequest.acquire();
+    try {
+      boolean received = RequestParser.read(new BufferedInputStream(inStream), request);
+      return createResponse(received ? request : null).toBytes(false);
+    } catch (RequestParser.BadRequest e) {
+      return HttpResponse.of(e.status, "text/html; charset=utf-8",
+          "<html>ERROR: " + e.getMessage() + "</html>").toBytes(false);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return HttpResponse.of("400 Bad Request", "text/html; charset=utf-8",
+          "<html>ERROR: " + e.getMessage() + "</html>").toBytes(false);
+    } finally {
+      request.release();
+    }
+  }
+
+  /**
+   * Generates the response for one parsed request, waiting for routes
+   * that are asynchronous
+   * @param httpRequest request header, null if the client sent nothing
+   * @return the response without the framing headers, see HttpResponse.toBytes
+   */
+  public HttpResponse createResponse(HttpRequest httpRequest) {
+    return createResponseAsync(httpRequest).join();
+  }
+
+  /**
+   * Generates the response for one parsed request. The request is not used
+   * any more once this returns, even if the response is not ready yet.
+   * @param httpRequest request header, null if the client sent nothing
+   * @return the response without the framing headers, see HttpResponse.toBytes
+   */
+  public CompletableFuture<HttpResponse> createResponseAsync(HttpRequest httpRequest) {
+    long start = System.nanoTime();
+    CompletableFuture<HttpResponse> response = respond(httpRequest);
+    if (httpRequest == null) {
+      return response;
+    }
+    if (response.isDone() && !response.isCompletedExceptionally()) {
+      log(httpRequest.data, httpRequest.versionEnd, response.join(), null, start);
+      return response;
+    }
+    // the request is reused once this returns, keep a copy of its first line
+    byte[] line = Arrays.copyOf(httpRequest.data, httpRequest.versionEnd);
+    return response.whenComplete((done, error) -> log(line, line.length, done, error, start));
+  }
+
+  /**
+   * Writes one line to the access log (-Daccess.log=file), a failed route
+   * is logged with the status the front end answers with
+   */
+  private void log(byte[] line, int length, HttpResponse response, Throwable error, long start) {
+    int status;
+    long bytes = -1;
+    if (response != null) {
+      status = Metrics.statusCode(response.status);
+      bytes = response.contentLength();
+    } else {
+      Throwable cause = error.getCause() != null ? error.getCause() : error;
+      status = cause instanceof IllegalArgumentException ? 400 : 500;
+    }
+    accessLog.log(line, 0, length, status, bytes, System.nanoTime() - start);
+  }
+
+  /**
+   * Picks the route for the request and runs it
+   */
+  private CompletableFuture<HttpResponse> respond(HttpRequest httpRequest) {
+    // example GET format: GET /index.html HTTP/1.1
+    if (httpRequest == null || !httpRequest.isGet()
+        || httpRequest.data[httpRequest.targetStart] != '/') {
+      return done(unrouted(httpRequest, html("400 Bad Request", "<html>Illegal request: no GET</html>")));
+    }
 
-    byte[] response = null;
-    BufferedReader in = null;
+    // the path without the leading '/' picks the route
+    Route route = router.find(httpRequest);
+    if (route == null) {
+      // if the request is not recognized at all
+      return done(unrouted(httpRequest, html("400 Bad Request", "I am not sure what you want me to do...")));
+    }
 
+    // read now, the request is reused once this method returns
+    String encoding = Compression.negotiate(httpRequest);
+    boolean range = httpRequest.hasHeader("range");
     try {
+      if (route instanceof AsyncRoute) {
+        return ((AsyncRoute) route).handleAsync(httpRequest, httpRequest.query())
+            .thenApply(response -> compress(response, encoding, range));
+      }
+      return done(compress(route.handle(httpRequest, httpRequest.query()), encoding, range));
+    } catch (IllegalArgumentException e) {
+      // e.g. a badly encoded query
+      return done(html("400 Bad Request", "Error code 400: " + e.getMessage()));
+    } catch (IOException e) {
+      e.printStackTrace();
+      return done(html("500 Internal Server Error", "<html>ERROR: " + e.getMessage() + "</html>"));
+    }
+  }
 
-      // Read from socket's input stream. Must use an
-      // InputStreamReader to bridge from streams to a reader
-      in = new BufferedReader(new InputStreamReader(inStream, "UTF-8"));
+  /**
+   * @return the limiter a request has to pass before it is queued for a
+   *     worker, null for "/metrics" which stays reachable under overload
+   */
+  ConcurrencyLimiter limiterFor(HttpRequest request) {
+    int start = request.targetStart + 1;
+    int end = request.pathEnd();
+    if (request.equalsIgnoreCase(start, end, "metrics")) {
+      return null;
+    }
+    return request.equalsIgnoreCase(start, end, "github") ? githubLimiter : limiter;
+  }
 
-      // Get header and save the request from the GET line:
-      // example GET format: GET /index.html HTTP/1.1
+  /**
+   * Answer for a request its limiter refused
+   */
+  HttpResponse overloaded(HttpRequest request) {
+    HttpResponse response = html("503 Service Unavailable", "<html>Server busy, try again later</html>");
+    response.header("Retry-After", "1");
+    request.logTo(accessLog, 503, response.contentLength(), 0);
+    return unrouted(request, response);
+  }
 
-      String request = null;
+  /**
+   * Counts a request that has no route under "other"
+   */
+  private HttpResponse unrouted(HttpRequest request, HttpResponse response) {
+    if (request != null) {
+      metrics.other.received(request);
+    }
+    metrics.other.responded(response, 0);
+    return response;
+  }
 
-      boolean done = false;
-      while (!done) {
-        String line = in.readLine();
+  /**
+   * gzip/deflate the response if the client accepts it, see Compression
+   */
+  private static HttpResponse compress(HttpResponse response, String encoding, boolean range) {
+    try {
+      return Compression.apply(response, encoding, range);
+    } catch (IOException e) {
+      // e.g. the precompressed copy could not be written, send it as it is
+      e.printStackTrace();
+      return response;
+    }
+  }
 
-        System.out.println("Received: " + line);
+  /**
+   * Shows the default directory page
+   */
+  private HttpResponse root(HttpRequest request, QueryParams query) throws IOException {
+    // rendered once and served from the cache until www/ changes
+    return cache.get("/", "www", request, (HttpRequest uncached) -> {
+      // opens the root.html file
+      String page = new String(readFileInBytes(new File("www/root.html")));
+      // performs a template replacement in the page
+      page = page.replace("${links}", buildFileList());
+      return html("200 OK", page);
+    });
+  }
 
-        // find end of header("\n\n")
-        if (line == null || line.equals(""))
-          done = true;
-        // parse GET format ("GET <path> HTTP/1.1")
-        else if (line.startsWith("GET")) {
-          int firstSpace = line.indexOf(" ");
-          int secondSpace = line.indexOf(" ", firstSpace + 1);
+  /**
+   * Shows the JSON of a random image and sets the header name for that image
+   */
+  private HttpResponse json(HttpRequest request, QueryParams query) {
+    // pick a index from the map
+    int index = random.nextInt(_images.size());
+
+    // pull out the information
+    String header = (String) _images.keySet().toArray()[index];
+    String url = _images.get(header);
+
+    StringBuilder builder = new StringBuilder();
+    builder.append("{");
+    builder.append("\"header\":\"").append(header).append("\",");
+    builder.append("\"image\":\"").append(url).append("\"");
+    builder.append("}");
+    return HttpResponse.of("200 OK", "application/json; charset=utf-8", builder.toString());
+  }
 
-          // extract the request, basically everything after the GET up to HTTP/1.1
-          request = line.substring(firstSpace + 2, secondSpace);
-        }
+  /**
+   * Opens the random image page
+   */
+  private HttpResponse random(HttpRequest request, QueryParams query) throws IOException {
+    // www/index.html, kept in memory until www/ changes
+    return cache.get("random", "www", request,
+        (HttpRequest uncached) -> StaticFiles.serve(uncached, new File("www/index.html")));
+  }
 
+  /**
+   * Shows one of the kitty pages, /cat?kitty=1 or /cat?kitty=2
+   */
+  private HttpResponse cat(HttpRequest request, QueryParams query) throws IOException {
+    try {
+      if (query.isEmpty()) {
+        throw new IllegalStateException("Please put a argument for cat\n");
       }
-      System.out.println("FINISHED PARSING HEADER\n");
-
-      // Generate an appropriate response to the user
-      if (request == null) {
-        response = "<html>Illegal request: no GET</html>".getBytes();
-      } else {
-        // create output buffer
-        StringBuilder builder = new StringBuilder();
-        // NOTE: output from buffer is at the end
-
-        if (request.length() == 0) {
-          // shows the default directory page
-
-          // opens the root.html file
-          String page = new String(readFileInBytes(new File("www/root.html")));
-          // performs a template replacement in the page
-          page = page.replace("${links}", buildFileList());
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(page);
-
-        } else if (request.equalsIgnoreCase("json")) {
-          // shows the JSON of a random image and sets the header name for that image
-
-          // pick a index from the map
-          int index = random.nextInt(_images.size());
-
-          // pull out the information
-          String header = (String) _images.keySet().toArray()[index];
-          String url = _images.get(header);
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: application/json; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("{");
-          builder.append("\"header\":\"").append(header).append("\",");
-          builder.append("\"image\":\"").append(url).append("\"");
-          builder.append("}");
-
-        } else if (request.equalsIgnoreCase("random")) {
-          // opens the random image page
-
-          // open the index.html
-          File file = new File("www/index.html");
-
-          // Generate response
-          builder.append("HTTP/1.1 200 OK\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append(new String(readFileInBytes(file)));
-
-        } else if (request.contains("cat?")) {
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          // extract path parameters
-          try {
-          if (request.replace("cat?", "").trim().isEmpty()) {
-            throw new IllegalStateException("Please put a argument for cat\n");
-          }
-          String queryString = request.replace("cat?", "").trim();
-          query_pairs = splitQuery(request.replace("cat?", ""));
-
-            if (query_pairs.containsKey("kitty")) {
-              if (query_pairs.get("kitty").equals("1")) {
-                String page = new String(readFileInBytes(new File("images/kitty1.html")));
-                // performs a template replacement in the page
-
-                // Generate response
-                builder.append("HTTP/1.1 200 OK\n");
-                builder.append("Content-Type: text/html; charset=utf-8\n");
-                builder.append("\n");
-                builder.append(page);
-              } else if (query_pairs.get("kitty").equals("2")) {
-                String page = new String(readFileInBytes(new File("images/kitty2.html")));
-                // performs a template replacement in the page
-
-                // Generate response
-                builder.append("HTTP/1.1 200 OK\n");
-                builder.append("Content-Type: text/html; charset=utf-8\n");
-                builder.append("\n");
-                builder.append(page);
-              } else {
-                throw new IllegalArgumentException("Does not have a number in the correct range of pictures. Please try either 1 or 2.");
-              }
-            } else {
-              throw new IllegalArgumentException("Does not contain correct query argument. Check if you spelled kitty correctly.\n");
-            }
-          } catch (IllegalArgumentException e){
-              builder.append("HTTP/1.1 400 Bad Request\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("Error code 400: " + e.getMessage());
-          } catch (IllegalStateException e) {
-              builder.append("HTTP/1.1 406 Wrong Values: No default\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("Error code 406: " + e.getMessage());
-          } catch (StringIndexOutOfBoundsException e) {
-              builder.append("HTTP/1.1 406 Wrong Values: No default\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("Error code 406: Please input a value after kitty\n");
-          }
-        } else if (request.contains("ft_to_cm?")) {
-
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          int cm = 0;
-          // extract path parameters
-          try {
-          if (request.replace("ft_to_cm?", "").trim().isEmpty()) {
-            throw new IllegalStateException("Please put a argument for ft_to_cm\n");
-          }
-          String queryString = request.replace("ft_to_cm?", "").trim();
-          query_pairs = splitQuery(request.replace("ft_to_cm?", ""));
-            if (query_pairs.containsKey("ft")) {
-              if (!integerChecker(query_pairs.get("ft"))) {
-                throw new IllegalArgumentException("Does not contain an integer for the argument: ft\n");
-              }
-              Integer foot = Integer.parseInt(query_pairs.get("ft"));
-              foot = foot * 12;
-              System.out.println(foot);
-              if (query_pairs.containsKey("in")) {
-                if (!integerChecker(query_pairs.get("in"))) {
-                  throw new IllegalArgumentException("Does not contain an integer for the argument: in\n");
-                }
-                Integer inches = Integer.parseInt(query_pairs.get("in"));
-                System.out.println(inches);
-                inches = inches + foot;
-                System.out.println(inches);
-                double centimeters = inches * 2.54;
-                builder.append("HTTP/1.1 200 OK\n");
-                builder.append("Content-Type: text/html; charset=utf-8\n");
-                builder.append("\n");
-                builder.append("This height in centimeters is " + centimeters);
-              } else {
-                 throw new IllegalArgumentException("Does not contain correct query argument. Check if you inputted in correctly.\n");
-              }
-            } else {
-              throw new IllegalArgumentException("Does not contain correct query argument. Check if you inputted ft correctly.\n");
-            }
-          } catch (IllegalArgumentException e){
-              builder.append("HTTP/1.1 400 Bad Request\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("Error code 400: " + e.getMessage());
-          } catch (IllegalStateException e) {
-              builder.append("HTTP/1.1 406 Wrong Values: No default\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("Error code 406: " + e.getMessage());
-          }
+      if (!query.has("kitty")) {
+        throw new IllegalArgumentException("Does not contain correct query argument. Check if you spelled kitty correctly.\n");
+      }
+      String kitty = query.get("kitty");
+      if (kitty.isEmpty()) {
+        throw new IllegalStateException("Please input a value after kitty\n");
+      }
+      if (!kitty.equals("1") && !kitty.equals("2")) {
+        throw new IllegalArgumentException("Does not have a number in the correct range of pictures. Please try either 1 or 2.");
+      }
+      // kept in memory until images/ changes
+      return cache.get("cat?kitty=" + kitty, "images", request,
+          (HttpRequest uncached) -> StaticFiles.serve(uncached, new File("images/kitty" + kitty + ".html")));
+    } catch (IllegalArgumentException e) {
+      return html("400 Bad Request", "Error code 400: " + e.getMessage());
+    } catch (IllegalStateException e) {
+      return html("406 Wrong Values: No default", "Error code 406: " + e.getMessage());
+    }
+  }
 
-        } else if (request.contains("file/")) {
-          // tries to find the specified file and shows it or shows an error
-
-          // take the path and clean it. try to open the file
-          File file = new File(request.replace("file/", ""));
-
-          // Generate response
-          if (file.exists()) { // success
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("Would theoretically be a file but removed this part, you do not have to do anything with it for the assignment");
-          } else { // failure
-            builder.append("HTTP/1.1 404 Not Found\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-            builder.append("File not found: " + file);
-          }
-        } else if (request.contains("multiply?")) {
-          // This multiplies two numbers, there is NO error handling, so when
-          // wrong data is given this just crashes
-
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          // extract path parameters
-          String queryString = request.replace("multiply?", "").trim();
-          if (!queryString.isEmpty()) {
-            query_pairs = splitQuery(request.replace("multiply?", ""));
-          }
-            // extract required fields from parameters
-            if (query_pairs.isEmpty()) {
-              Integer num1 = 5;
-              Integer num2 = 5;
-              // do math
-              Integer result = num1 * num2;
-
-              // Generate response
-              builder.append("HTTP/1.1 200 OK\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("Default Result is: " + result);
-            }
-            else if (query_pairs.containsKey("num1") && !query_pairs.containsKey("num2")) {
-              Integer num1 = Integer.parseInt(query_pairs.get("num1"));
-              Integer num2 = 5;
-              // do math
-              Integer result = num1 * num2;
-
-              // Generate response
-              builder.append("HTTP/1.1 200 OK\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("Result is: " + result);
-            } else if (!query_pairs.containsKey("num1") && query_pairs.containsKey("num2")) {
-              Integer num2 = Integer.parseInt(query_pairs.get("num2"));
-              Integer num1 = 5;
-              // do math
-              Integer result = num1 * num2;
-
-              // Generate response
-              builder.append("HTTP/1.1 200 OK\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("Result is: " + result);
-              } else if (query_pairs.containsKey("num1") && query_pairs.containsKey("num2")){
-              Integer num1 = Integer.parseInt(query_pairs.get("num1"));
-              Integer num2 = Integer.parseInt(query_pairs.get("num2"));
-            // do math
-              Integer result = num1 * num2;
-
-              // Generate response
-              builder.append("HTTP/1.1 200 OK\n");
-              builder.append("Content-Type: text/html; charset=utf-8\n");
-              builder.append("\n");
-              builder.append("Result is: " + result);
-            } else {
-                builder.append("HTTP/1.1 400 Bad Request\n");
-                builder.append("Content-Type: text/html; charset=utf-8\n");
-                builder.append("\n");
-            }
+  /**
+   * Converts feet and inches to centimeters, /ft_to_cm?ft=5&in=10
+   */
+  private HttpResponse ftToCm(HttpRequest request, QueryParams query) {
+    try {
+      if (query.isEmpty()) {
+        throw new IllegalStateException("Please put a argument for ft_to_cm\n");
+      }
+      if (!query.has("ft")) {
+        throw new IllegalArgumentException("Does not contain correct query argument. Check if you inputted ft correctly.\n");
+      }
+      int foot = query.getInt("ft") * 12;
+      if (!query.has("in")) {
+        throw new IllegalArgumentException("Does not contain correct query argument. Check if you inputted in correctly.\n");
+      }
+      int inches = query.getInt("in") + foot;
+      double centimeters = inches * 2.54;
+      return html("200 OK", "This height in centimeters is " + centimeters);
+    } catch (IllegalArgumentException e) {
+      return html("400 Bad Request", "Error code 400: " + e.getMessage());
+    } catch (IllegalStateException e) {
+      return html("406 Wrong Values: No default", "Error code 406: " + e.getMessage());
+    }
+  }
 
-          }
+  /**
+   * Tries to find the specified file and shows it or shows an error
+   */
+  private HttpResponse file(HttpRequest request, QueryParams query) {
+    // take the path after /file/ and try to open the file
+    String target = request.target();
+    int end = target.indexOf('?');
+    File file = new File(target.substring("/file/".length(), end < 0 ? target.length() : end));
+
+    if (file.exists()) { // success
+      return html("200 OK", "Would theoretically be a file but removed this part, you do not have to do anything with it for the assignment");
+    }
+    // failure
+    return html("404 Not Found", "File not found: " + file);
+  }
 
-          // TODO: Include error handling here with a correct error code and
-          // a response that makes sense
-
-          else if (request.contains("github?")) {
-          // pulls the query from the request and runs it with GitHub's REST API
-          // check out https://docs.github.com/rest/reference/
-          //
-          // HINT: REST is organized by nesting topics. Figure out the biggest one first,
-          //     then drill down to what you care about
-          // "Owner's repo is named RepoName. Example: find RepoName's contributors" translates to
-          //     "/repos/OWNERNAME/REPONAME/contributors"
-
-          Map<String, String> query_pairs = new LinkedHashMap<String, String>();
-          query_pairs = splitQuery(request.replace("github?", ""));
-          try {
-            String json = fetchURL("https://api.github.com/" + query_pairs.get("query"));
-
-          // Make a JSONArray from the json string
-          JSONArray jsonArray = new JSONArray(json);
-            builder.append("HTTP/1.1 200 OK\n");
-            builder.append("Content-Type: text/html; charset=utf-8\n");
-            builder.append("\n");
-          // Loop to go through and print out all of the information from the JsonArray
-          for (int i = 0; i < jsonArray.length(); i++) {
-            JSONObject repository = jsonArray.getJSONObject(i);
-            String repoName = repository.getString("name");
-            String fullName = repository.getString("full_name");
-            long id = repository.getLong("id");
-            JSONObject owner = repository.getJSONObject("owner");
-            String login = owner.getString("login");
-            builder.append("Full Name: " + fullName + "\n\n");
-            builder.append("ID: " + id + "\n\n");
-            builder.append("Login: " + login + "\n\n");
-          }
-          } catch (Exception e) {
-                builder.append("HTTP/1.1 400 Bad Request\n");
-                builder.append("Content-Type: text/html; charset=utf-8\n");
-                builder.append("\n");
-                builder.append("An exception was thrown: " + e.getMessage() + "\n");
-          }
+  /**
+   * Multiplies num1 and num2, a missing number defaults to 5
+   */
+  private HttpResponse multiply(HttpRequest request, QueryParams query) {
+    if (query.isEmpty()) {
+      return html("200 OK", "Default Result is: " + (5 * 5));
+    }
+    if (!query.has("num1") && !query.has("num2")) {
+      return html("400 Bad Request", "Error code 400: expected num1 and/or num2\n");
+    }
+    try {
+      int num1 = query.getInt("num1", 5);
+      int num2 = query.getInt("num2", 5);
+      // do math
+      return html("200 OK", "Result is: " + (num1 * num2));
+    } catch (IllegalArgumentException e) {
+      return html("400 Bad Request", "Error code 400: " + e.getMessage());
+    }
+  }
 
-          // TODO: Parse the JSON returned by your fetch and create an appropriate
-          // response based on what the assignment document asks for
+  /**
+   * Pulls the query from the request and runs it with GitHub's REST API.
+   * The upstream call does not block, see UpstreamClient.
+   */
+  private CompletableFuture<HttpResponse> github(HttpRequest request, QueryParams query) {
+    // check out https://docs.github.com/rest/reference/
+    //
+    // HINT: REST is organized by nesting topics. Figure out the biggest one first,
+    //     then drill down to what you care about
+    // "Owner's repo is named RepoName. Example: find RepoName's contributors" translates to
+    //     "/repos/OWNERNAME/REPONAME/contributors"
+    String path = query.get("query");
+    if (path == null || path.isEmpty()) {
+      return done(html("400 Bad Request", "An exception was thrown: Query must point to a github repo\n"));
+    }
+    return upstream.get(path).handle((json, error) -> {
+      if (error != null) {
+        Throwable cause = error.getCause() != null ? error.getCause() : error;
+        return html("400 Bad Request", "An exception was thrown: " + cause.getMessage() + "\n");
+      }
+      JSONArray jsonArray;
+      try {
+        // Make a JSONArray from the json string
+        jsonArray = new JSONArray(json);
+        for (int i = 0; i < jsonArray.length(); i++) {
+          JSONObject repository = jsonArray.getJSONObject(i);
+          if (!repository.has("full_name") || !repository.has("id")
+              || !repository.getJSONObject("owner").has("login")) {
+            throw new IllegalArgumentException("Not a list of repositories");
+          }
+        }
+      } catch (Exception e) {
+        return html("400 Bad Request", "An exception was thrown: " + e.getMessage() + "\n");
+      }
+      // the listing can be long, it is sent repository by repository
+      return HttpResponse.ofStream("200 OK", "text/html; charset=utf-8", out -> {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        // Loop to go through and print out all of the information from the JsonArray
+        for (int i = 0; i < jsonArray.length(); i++) {
+          JSONObject repository = jsonArray.getJSONObject(i);
+          String fullName = repository.getString("full_name");
+          long id = repository.getLong("id");
+          JSONObject owner = repository.getJSONObject("owner");
+          String login = owner.getString("login");
+          writer.write("Full Name: " + fullName + "\n\n");
+          writer.write("ID: " + id + "\n\n");
+          writer.write("Login: " + login + "\n\n");
+        }
+        writer.flush();
+      });
+    });
+  }
 
-        } else {
-          // if the request is not recognized at all
+  /**
+   * Counters and latency histograms in the Prometheus text format
+   */
+  private HttpResponse metrics(HttpRequest request, QueryParams query) {
+    return HttpResponse.of("200 OK", "text/plain; version=0.0.4; charset=utf-8", metrics.scrape());
+  }
 
-          builder.append("HTTP/1.1 400 Bad Request\n");
-          builder.append("Content-Type: text/html; charset=utf-8\n");
-          builder.append("\n");
-          builder.append("I am not sure what you want me to do...");
-        }
+  /**
+   * Files below www/ and images/
+   */
+  private HttpResponse staticFile(HttpRequest request, QueryParams query) {
+    // e.g. /images/Kitty1.jpg
+    String path = request.target().substring(1);
+    int slash = path.indexOf('/');
+    return StaticFiles.serve(request, path.substring(0, slash), path.substring(slash + 1));
+  }
 
-        // Output
-        response = builder.toString().getBytes();
-      }
-    } catch (IOException e) {
-      e.printStackTrace();
-      response = ("<html>ERROR: " + e.getMessage() + "</html>").getBytes();
-    }
+  private static HttpResponse html(String status, String body) {
+    return HttpResponse.of(status, "text/html; charset=utf-8", body);
+  }
 
-    return response;
+  private static CompletableFuture<HttpResponse> done(HttpResponse response) {
+    return CompletableFuture.completedFuture(response);
   }
 
   /**
@@ -498,8 +660,8 @@ class WebServer {
   /**
    *
    * a method to make a web request. Note that this method will block execution
-   * for up to 20 seconds while the request is being satisfied. Better to use a
-   * non-blocking request.
+   * for up to 20 seconds while the request is being satisfied. "/github" uses
+   * the non-blocking UpstreamClient instead.
    * 
    * @param aUrl the String indicating the query url for the OMDb api search
    * @return the String result of the http request.
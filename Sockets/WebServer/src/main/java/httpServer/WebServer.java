@@ -2,93 +2,422 @@ package httpServer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import funHttpServer.AccessLog;
+import funHttpServer.HttpRequest;
+import funHttpServer.RequestParser;
+import funHttpServer.StaticFiles;
+
+/**
+ * Static file server for a document root (the current directory by default).
+ *
+ * Connections are accepted on the main thread and served by a fixed pool of
+ * workers; when all workers are busy and the queue is full a client gets
+ * 503 right away. Connections are kept alive until the client closes them or
+ * is quiet for IDLE_TIMEOUT_MS.
+ *
+ * Request paths are percent-decoded and normalized, anything that ends up
+ * outside the document root (../, symbolic links) is refused with 403.
+ * Files are sent with their content type, ETag and Last-Modified, answer
+ * conditional requests with 304 and a Range with 206, so downloads can be
+ * resumed or fetched in parallel segments. Directories are answered with
+ * their index.html or a generated listing, which is cached until the
+ * directory or one of its entries changes.
+ */
 class WebServer {
 
-    // 
+    /** keep-alive connections without a request are closed after this */
+    static final int IDLE_TIMEOUT_MS = 5000;
+    /** generated directory listings kept in memory */
+    static final int MAX_LISTINGS = 256;
+
+    private static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\n"
+            + "Retry-After: 1\r\n"
+            + "Content-Length: 0\r\n"
+            + "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    // one line per request, written by a background thread (-Daccess.log=file)
+    private final AccessLog accessLog = AccessLog.fromSystemProperties("logs/access.log");
+
+    /** document root, absolute and without symbolic links */
+    private final Path root;
+
+    /** directory listings by directory, least recently used are dropped */
+    private final Map<Path, Listing> listings = new LinkedHashMap<Path, Listing>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Path, Listing> eldest) {
+            return size() > MAX_LISTINGS;
+        }
+    };
+
+    //
     public static void main(String args[]) {
-        if (args.length != 1) {
-            System.out.println("Usage: WebServer <port>");
+        if (args.length > 3) {
+            System.out.println("Usage: WebServer [port] [docroot] [workers]");
             System.exit(1);
         }
-        
-        WebServer server = new WebServer(Integer.parseInt(args[0]));
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 9000;
+        String root = args.length > 1 ? args[1] : ".";
+        int workers = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors() * 8;
+
+        WebServer server = new WebServer(root);
+        server.serve(port, workers);
     }
 
+    /**
+     * @param root document root, files outside it are never served
+     */
+    public WebServer(String root) {
+        try {
+            this.root = Paths.get(root).toRealPath();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("No such document root: " + root);
+        }
+    }
+
+    /**
+     * Serves the current directory
+     */
     public WebServer(int port) {
-        
-        ServerSocket    server = null;
-        Socket          sock = null;
-        InputStream     in = null;
-        OutputStream    out = null;
+        this(".");
+        serve(port, Runtime.getRuntime().availableProcessors() * 8);
+    }
+
+    /**
+     * Accept loop, runs forever
+     * @param port to listen on
+     * @param workers threads serving connections
+     */
+    public void serve(int port, int workers) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workers * 4), new ThreadPoolExecutor.AbortPolicy());
 
         //*** Open the server socket on the specified port
         //*** Loop forever accepting socket requests
-        //***   Get the response bytes from createResponse
-        //***   Write the bytes to the socket's output stream
-        //***   close streams and socket appropriatels
+        //***   Hand the socket to a worker, which reads the requests,
+        //***   writes the responses and closes the socket
+        // opened through a channel so files can be sent with transferTo
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), 1024);
+            System.out.println("Serving " + root + " on port " + port + " with " + workers + " workers");
+            while (true) {
+                SocketChannel sock = server.accept();
+                try {
+                    pool.execute(() -> serveConnection(sock));
+                } catch (RejectedExecutionException e) {
+                    // every worker is busy and the queue is full
+                    try {
+                        sock.write(ByteBuffer.wrap(SERVICE_UNAVAILABLE));
+                    } catch (IOException ex) {
+                        // client is gone already
+                    }
+                    close(sock);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            pool.shutdown();
+        }
     }
 
+    /**
+     * Answers the requests of one connection until it is closed
+     */
+    private void serveConnection(SocketChannel sock) {
+        HttpRequest request = HttpRequest.acquire();
+        try {
+            sock.socket().setSoTimeout(IDLE_TIMEOUT_MS);
+            sock.socket().setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(sock.socket().getInputStream());
+            boolean keepAlive = true;
+            while (keepAlive) {
+                long start;
+                Response response;
+                try {
+                    if (!RequestParser.read(in, request)) {
+                        break;
+                    }
+                    start = System.nanoTime();
+                    response = respond(request);
+                    // a request body is never read, the connection cannot be reused after one
+                    keepAlive = request.keepAlive() && request.contentLength() == 0
+                            && !request.hasHeader("transfer-encoding");
+                } catch (RequestParser.BadRequest e) {
+                    response = Response.error(e.status, e.getMessage());
+                    response.writeTo(sock, false);
+                    break;
+                }
+                long written = response.writeTo(sock, keepAlive);
+                request.logTo(accessLog, response.code, written, System.nanoTime() - start);
+            }
+        } catch (SocketTimeoutException e) {
+            // idle keep-alive connection
+        } catch (IOException e) {
+            // client went away in the middle of a request
+        } finally {
+            request.release();
+            close(sock);
+        }
+    }
 
+    /**
+     * Reads one request from the stream and returns the whole response
+     * (status line, headers and body), the connection is closed after it
+     * @param inStream HTTP input stream from socket
+     * @return the byte encoded HTTP response
+     */
     public byte[] createResponse(InputStream inStream) {
+        HttpRequest request = HttpRequest.acquire();
+        Response response;
+        try {
+            if (!RequestParser.read(new BufferedInputStream(inStream), request)) {
+                response = Response.error("400 Bad Request", "Illegal request: no GET");
+            } else {
+                response = respond(request);
+            }
+        } catch (RequestParser.BadRequest e) {
+            response = Response.error(e.status, e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            response = Response.error("500 Internal Server Error", e.getMessage());
+        } finally {
+            request.release();
+        }
+        try {
+            return response.toBytes();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Response.error("500 Internal Server Error", e.getMessage()).head(false);
+        }
+    }
 
-        byte[] response = null;
-        BufferedReader in = null;
+    /**
+     * Generates the response to one request
+     */
+    Response respond(HttpRequest request) {
+        //    example GET format: GET /index.html HTTP/1.1
+        boolean head = request.method().equals("HEAD");
+        if (!request.isGet() && !head) {
+            return Response.error("405 Method Not Allowed", "Only GET and HEAD are supported")
+                    .header("Allow", "GET, HEAD");
+        }
+        String target = request.target();
+        int query = target.indexOf('?');
+        String path = StaticFiles.decodePath(query < 0 ? target : target.substring(0, query));
+        if (path == null || !path.startsWith("/")) {
+            return Response.error("400 Bad Request", "Malformed path");
+        }
 
+        // resolve below the root, anything that ends up outside is refused
+        Path resolved = root.resolve(path.substring(1)).normalize();
+        if (!resolved.startsWith(root)) {
+            return Response.error("403 Forbidden", "Outside of the document root");
+        }
+        if (!Files.exists(resolved, LinkOption.NOFOLLOW_LINKS) && !Files.exists(resolved)) {
+            return Response.error("404 Not Found", "File not found: " + escape(path));
+        }
         try {
+            // symbolic links may point anywhere, check where they end up
+            Path real = resolved.toRealPath();
+            if (!real.startsWith(root)) {
+                return Response.error("403 Forbidden", "Outside of the document root");
+            }
+            Response response;
+            if (Files.isDirectory(real)) {
+                response = directory(request, real, path);
+            } else {
+                response = file(request, real.toFile());
+            }
+            response.head = head;
+            return response;
+        } catch (IOException e) {
+            return Response.error("404 Not Found", "File not found: " + escape(path));
+        }
+    }
 
-            // Read from socket's input stream.  Must use an
-            // InputStreamReader to bridge from streams to a reader
-            in = new BufferedReader(
-                        new InputStreamReader(inStream, "UTF-8"));
+    /**
+     * index.html of the directory, or a listing of it
+     */
+    private Response directory(HttpRequest request, Path dir, String path) throws IOException {
+        if (!path.endsWith("/")) {
+            // relative links in the page only work with the slash
+            return Response.of("301 Moved Permanently", "text/html; charset=utf-8", new byte[0])
+                    .header("Location", encodePath(path) + "/");
+        }
+        File index = dir.resolve("index.html").toFile();
+        if (index.isFile()) {
+            return file(request, index);
+        }
+        Listing listing;
+        long dirModified = Files.getLastModifiedTime(dir).toMillis();
+        synchronized (listings) {
+            listing = listings.get(dir);
+        }
+        // the modification time of a directory changes when entries are added or removed,
+        // not when a file in it is written, so the sizes and dates are checked every time
+        File[] files = listing != null && listing.dirModified == dirModified ? listing.files : listFiles(dir, root);
+        long[] state = state(files);
+        if (listing == null || listing.files != files || !Arrays.equals(listing.state, state)) {
+            listing = new Listing(files, dirModified, state, buildListing(files, path));
+            synchronized (listings) {
+                listings.put(dir, listing);
+            }
+        }
+        if (StaticFiles.notModified(request, listing.etag, listing.modified)) {
+            return Response.of("304 Not Modified", null, new byte[0]).header("ETag", listing.etag);
+        }
+        return Response.of("200 OK", "text/html; charset=utf-8", listing.html).header("ETag", listing.etag);
+    }
 
-            // Get header and save the filename from the GET line:
-            //    example GET format: GET /index.html HTTP/1.1
+    /**
+     * A file, whole or the part asked for with Range
+     */
+    private Response file(HttpRequest request, File file) {
+        long length = file.length();
+        long modified = file.lastModified();
+        String etag = StaticFiles.etag(length, modified);
+        String lastModified = StaticFiles.httpDate(modified);
 
-            String filename = null;
+        if (StaticFiles.notModified(request, etag, modified)) {
+            return Response.of("304 Not Modified", null, new byte[0])
+                    .header("ETag", etag)
+                    .header("Last-Modified", lastModified);
+        }
 
-            boolean done = false;
-            while (!done) {
-                String line = in.readLine();
+        long start = 0;
+        long end = length - 1;
+        String status = "200 OK";
+        String range = request.header("range");
+        String ifRange = request.header("if-range");
+        // If-Range: only send the part if the file is still the one the client has
+        if (range != null && (ifRange == null || ifRange.equals(etag) || ifRange.equals(lastModified))) {
+            long[] bounds = StaticFiles.parseRange(range, length);
+            if (bounds == null) {
+                return Response.error("416 Range Not Satisfiable", "Range not satisfiable")
+                        .header("Content-Range", "bytes */" + length);
+            }
+            if (bounds.length == 2) {
+                start = bounds[0];
+                end = bounds[1];
+                status = "206 Partial Content";
+            }
+        }
 
-System.out.println("Received: " + line);
-                if (line == null || line.equals(""))
-                    done = true;
+        Response response = Response.ofFile(status, StaticFiles.contentType(file.getName()), file,
+                start, end - start + 1)
+                .header("ETag", etag)
+                .header("Last-Modified", lastModified)
+                .header("Accept-Ranges", "bytes");
+        if (status.startsWith("206")) {
+            response.header("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        }
+        return response;
+    }
 
-                else if (line.startsWith("GET")) {
-                    int firstSpace = line.indexOf(" ");
-                    int secondSpace = line.indexOf(" ", firstSpace+1);
+    /**
+     * Entries of a directory in listing order, folders first. Symbolic links
+     * that lead outside of root, or nowhere, are left out: they could not be
+     * served, and their size and date would be those of what they point to.
+     */
+    static File[] listFiles(Path dir, Path root) throws IOException {
+        File[] files = dir.toFile().listFiles(f -> !Files.isSymbolicLink(f.toPath()) || inside(f.toPath(), root));
+        if (files == null) {
+            throw new IOException("Cannot list " + dir);
+        }
+        Arrays.sort(files, (a, b) -> a.isDirectory() != b.isDirectory()
+                ? (a.isDirectory() ? -1 : 1) : a.getName().compareToIgnoreCase(b.getName()));
+        return files;
+    }
 
-                    // skipt the leading / (our docroot is the current dir)
-                    filename = line.substring(firstSpace+2, secondSpace);
-                }
+    private static boolean inside(Path link, Path root) {
+        try {
+            return link.toRealPath().startsWith(root);
+        } catch (IOException e) {
+            return false;
+        }
+    }
 
-            }
-System.out.println("FINISHED\n");
+    /**
+     * Size and modification time of each entry, what a listing shows of them
+     */
+    static long[] state(File[] files) {
+        long[] state = new long[files.length * 2];
+        for (int i = 0; i < files.length; i++) {
+            state[2 * i] = files[i].isDirectory() ? -1 : files[i].length();
+            state[2 * i + 1] = files[i].lastModified();
+        }
+        return state;
+    }
 
+    /**
+     * HTML page listing the entries of a directory
+     */
+    static byte[] buildListing(File[] files, String path) {
+        StringBuilder page = new StringBuilder(256 + files.length * 128);
+        String title = escape(path);
+        page.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>Index of ").append(title)
+                .append("</title></head>\n<body><h1>Index of ").append(title).append("</h1>\n<table>\n");
+        if (!path.equals("/")) {
+            page.append("<tr><td><a href=\"../\">../</a></td><td></td><td></td></tr>\n");
+        }
+        for (File f : files) {
+            String name = f.getName() + (f.isDirectory() ? "/" : "");
+            page.append("<tr><td><a href=\"").append(encodePath(name)).append("\">").append(escape(name))
+                    .append("</a></td><td>").append(f.isDirectory() ? "-" : Long.toString(f.length()))
+                    .append("</td><td>").append(StaticFiles.httpDate(f.lastModified())).append("</td></tr>\n");
+        }
+        page.append("</table>\n</body></html>\n");
+        return page.toString().getBytes(StandardCharsets.UTF_8);
+    }
 
-            // Generate an appropriate response to the user
-            if (filename == null) {
-                response =
-                    "<html>Illegal request: no GET</html>".getBytes();
+    /**
+     * Percent-encodes everything but unreserved characters and '/'
+     */
+    static String encodePath(String path) {
+        StringBuilder out = new StringBuilder(path.length() + 16);
+        for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '.' || c == '_' || c == '~' || c == '/') {
+                out.append(c);
             } else {
-            
-                File file = new File(filename);
-                if (!file.exists()) {
-                    response = ("<html>File not found: " +
-                                filename + "</html>").getBytes();
-                } else {
-                    response = readFileInBytes(file);
-                }
+                out.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
             }
         }
-        catch (IOException e) {
-            e.printStackTrace();
-            response = ("<html>ERROR: " +
-                        e.getMessage() + "</html>").getBytes();
-        }
+        return out.toString();
+    }
 
-        return response;
+    static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static void close(SocketChannel sock) {
+        try {
+            sock.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
     }
 
     /** Read bytes from a file and return them in the byte array.
@@ -113,4 +442,154 @@ System.out.println("FINISHED\n");
 
         return result;
     }
+
+    /**
+     * A generated directory page and the directory time it was made for
+     */
+    private static class Listing {
+        final File[] files;
+        final long dirModified;
+        final long[] state;
+        final byte[] html;
+        /** newest of the directory and its entries */
+        final long modified;
+        final String etag;
+
+        Listing(File[] files, long dirModified, long[] state, byte[] html) {
+            this.files = files;
+            this.dirModified = dirModified;
+            this.state = state;
+            this.html = html;
+            long newest = dirModified;
+            for (int i = 1; i < state.length; i += 2) {
+                newest = Math.max(newest, state[i]);
+            }
+            this.modified = newest;
+            this.etag = "\"dir-" + Long.toHexString(modified) + "-" + Integer.toHexString(Arrays.hashCode(html)) + "\"";
+        }
+    }
+
+    /**
+     * Status, header fields and a body that is an array or a part of a file
+     */
+    static class Response {
+        final String status;
+        final int code;
+        final Map<String, String> headers = new LinkedHashMap<>();
+        final byte[] body;
+        File file;
+        long offset;
+        long length;
+        /** HEAD request: headers only */
+        boolean head;
+
+        Response(String status, byte[] body) {
+            this.status = status;
+            this.code = Integer.parseInt(status.substring(0, 3));
+            this.body = body;
+            this.length = body.length;
+        }
+
+        static Response of(String status, String contentType, byte[] body) {
+            Response response = new Response(status, body);
+            if (contentType != null) {
+                response.header("Content-Type", contentType);
+            }
+            return response;
+        }
+
+        static Response ofFile(String status, String contentType, File file, long offset, long length) {
+            Response response = of(status, contentType, new byte[0]);
+            response.file = file;
+            response.offset = offset;
+            response.length = length;
+            return response;
+        }
+
+        static Response error(String status, String message) {
+            return of(status, "text/html; charset=utf-8",
+                    ("<html>" + status + ": " + escape(message) + "</html>").getBytes(StandardCharsets.UTF_8));
+        }
+
+        Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        /**
+         * 1xx, 204 and 304 responses never have a body
+         */
+        boolean bodyless() {
+            return code < 200 || code == 204 || code == 304;
+        }
+
+        byte[] head(boolean keepAlive) {
+            StringBuilder head = new StringBuilder(256);
+            head.append("HTTP/1.1 ").append(status).append("\r\n");
+            for (Map.Entry<String, String> h : headers.entrySet()) {
+                head.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
+            }
+            if (!bodyless()) {
+                head.append("Content-Length: ").append(length).append("\r\n");
+            }
+            head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+            return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * @return number of bytes written
+         */
+        long writeTo(SocketChannel out, boolean keepAlive) throws IOException {
+            ByteBuffer headBuf = ByteBuffer.wrap(head(keepAlive));
+            long written = headBuf.remaining();
+            boolean sendBody = !head && !bodyless();
+            if (file == null || !sendBody) {
+                ByteBuffer bodyBuf = ByteBuffer.wrap(sendBody ? body : new byte[0]);
+                ByteBuffer[] both = {headBuf, bodyBuf};
+                written += bodyBuf.remaining();
+                while (headBuf.hasRemaining() || bodyBuf.hasRemaining()) {
+                    out.write(both);
+                }
+                return written;
+            }
+            while (headBuf.hasRemaining()) {
+                out.write(headBuf);
+            }
+            // the kernel copies the file to the socket (sendfile)
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long position = offset;
+                long remaining = length;
+                while (remaining > 0) {
+                    long sent = channel.transferTo(position, remaining, out);
+                    if (sent <= 0) {
+                        throw new IOException("File " + file + " shrank while being sent");
+                    }
+                    position += sent;
+                    remaining -= sent;
+                }
+            }
+            return written + length;
+        }
+
+        /**
+         * @return the whole response, files are read into the array
+         */
+        byte[] toBytes() throws IOException {
+            byte[] headBytes = head(false);
+            byte[] content = body;
+            if (file != null && !head) {
+                content = new byte[(int) length];
+                try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                    raf.seek(offset);
+                    raf.readFully(content);
+                }
+            }
+            if (head || bodyless()) {
+                content = new byte[0];
+            }
+            byte[] out = Arrays.copyOf(headBytes, headBytes.length + content.length);
+            System.arraycopy(content, 0, out, headBytes.length, content.length);
+            return out;
+        }
+    }
 }
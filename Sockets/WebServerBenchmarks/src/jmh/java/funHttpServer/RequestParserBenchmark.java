@@ -0,0 +1,71 @@
+package funHttpServer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares the byte level RequestParser with the BufferedReader/readLine +
+ * splitQuery way the servers used to read requests.
+ *
+ * Run with: gradle jmh
+ * The gc profiler is enabled in build.gradle; gc.alloc.rate.norm is the
+ * number of bytes allocated per request and should be close to 0 for parse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RequestParserBenchmark {
+
+  private final byte[] request = ("GET /multiply?num1=3&num2=4 HTTP/1.1\r\n"
+      + "Host: localhost:9000\r\n"
+      + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+      + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+      + "Accept-Language: en-US,en;q=0.5\r\n"
+      + "Accept-Encoding: gzip, deflate, br\r\n"
+      + "Connection: keep-alive\r\n"
+      + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+  @Benchmark
+  public int parse() throws Exception {
+    HttpRequest parsed = HttpRequest.acquire();
+    try {
+      RequestParser.parse(request, 0, request.length, parsed);
+      QueryParams query = parsed.query();
+      int result = query.getInt("num1") * query.getInt("num2");
+      return parsed.keepAlive() ? result : -result;
+    } finally {
+      parsed.release();
+    }
+  }
+
+  @Benchmark
+  public int readLineAndSplitQuery() throws Exception {
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+        new ByteArrayInputStream(request), "UTF-8"));
+    String target = null;
+    boolean keepAlive = false;
+    String line;
+    while ((line = in.readLine()) != null && !line.isEmpty()) {
+      if (line.startsWith("GET")) {
+        int firstSpace = line.indexOf(" ");
+        target = line.substring(firstSpace + 2, line.indexOf(" ", firstSpace + 1));
+      } else if (line.toLowerCase().startsWith("connection:")) {
+        keepAlive = line.substring(11).trim().equalsIgnoreCase("keep-alive");
+      }
+    }
+    Map<String, String> query = WebServer.splitQuery(target.replace("multiply?", ""));
+    int result = Integer.parseInt(query.get("num1")) * Integer.parseInt(query.get("num2"));
+    return keepAlive ? result : -result;
+  }
+}
@@ -0,0 +1,117 @@
+package funHttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Hot paths of funHttpServer.WebServer: a whole request through
+ * createResponse for some of the routes, and the helpers splitQuery,
+ * readFileInBytes and buildFileList on their own.
+ *
+ * Run with: gradle jmh
+ * The working directory needs www/ and images/, the jmh task copies them
+ * from the WebServer project first.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WebServerBenchmark {
+
+  /**
+   * One request per route, only createResponse is run for each of them
+   */
+  @State(Scope.Thread)
+  public static class Route {
+    /** no route that leaves the process */
+    @Param({"/", "/multiply?num1=3&num2=4", "/json", "/ft_to_cm?ft=5&in=3", "/www/index.html"})
+    public String target;
+
+    byte[] request;
+    byte[] blockingRequest;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      request = ("GET " + target + " HTTP/1.1\r\n"
+          + "Host: localhost:9000\r\n"
+          + "Accept-Encoding: gzip\r\n"
+          + "Connection: keep-alive\r\n"
+          + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+      blockingRequest = ("GET " + target + " HTTP/1.1\r\nHost: localhost:9000\r\n\r\n")
+          .getBytes(StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  private WebServer server;
+  private File smallFile;
+  private File largeFile;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    if (!new File("www").isDirectory() || !new File("images").isDirectory()) {
+      throw new IllegalStateException("www/ and images/ are missing in " + new File("").getAbsolutePath()
+          + ", run gradle docroot first");
+    }
+    server = new WebServer();
+    smallFile = new File("www/index.html");
+    largeFile = new File("images/Kitty1.jpg");
+  }
+
+  /**
+   * Parse, route and render, the way both front ends call it
+   */
+  @Benchmark
+  public int createResponse(Route route) throws Exception {
+    HttpRequest parsed = HttpRequest.acquire();
+    try {
+      RequestParser.parse(route.request, 0, route.request.length, parsed);
+      // files are read into the array, so every route does the same work
+      return server.createResponse(parsed).toBytes(true).length;
+    } finally {
+      parsed.release();
+    }
+  }
+
+  /**
+   * The stream based variant of the blocking loop, the response is
+   * rendered into a byte array
+   */
+  @Benchmark
+  public int createResponseFromStream(Route route) {
+    return server.createResponse(new ByteArrayInputStream(route.blockingRequest), new ByteArrayOutputStream())
+        .length;
+  }
+
+  @Benchmark
+  public Map<String, String> splitQuery() throws Exception {
+    return WebServer.splitQuery("num1=3&num2=4&q=hello+world%2Fme&bob=5");
+  }
+
+  @Benchmark
+  public String buildFileList() {
+    return WebServer.buildFileList();
+  }
+
+  @Benchmark
+  public byte[] readSmallFile() throws Exception {
+    return WebServer.readFileInBytes(smallFile);
+  }
+
+  @Benchmark
+  public byte[] readLargeFile() throws Exception {
+    return WebServer.readFileInBytes(largeFile);
+  }
+}
@@ -0,0 +1,69 @@
+package httpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The static file server httpServer.WebServer: createResponse for a file,
+ * a part of a file, a generated (cached) directory listing and a refused
+ * path, and readFileInBytes on its own.
+ *
+ * Run with: gradle jmh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WebServerBenchmark {
+
+  @State(Scope.Thread)
+  public static class Request {
+    @Param({"/www/index.html", "/images/Kitty1.jpg range", "/images/", "/../etc/passwd"})
+    public String target;
+
+    byte[] request;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      String path = target.replace(" range", "");
+      request = ("GET " + path + " HTTP/1.1\r\n"
+          + "Host: localhost:9000\r\n"
+          + (target.endsWith(" range") ? "Range: bytes=1000-17383\r\n" : "")
+          + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  private WebServer server;
+  private File file;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    if (!new File("www").isDirectory() || !new File("images").isDirectory()) {
+      throw new IllegalStateException("www/ and images/ are missing in " + new File("").getAbsolutePath()
+          + ", run gradle docroot first");
+    }
+    server = new WebServer(".");
+    file = new File("www/index.html");
+  }
+
+  @Benchmark
+  public int createResponse(Request request) {
+    return server.createResponse(new ByteArrayInputStream(request.request)).length;
+  }
+
+  @Benchmark
+  public byte[] readFileInBytes() throws Exception {
+    return WebServer.readFileInBytes(file);
+  }
+}
@@ -0,0 +1,85 @@
+package simple;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * createResponse and readFileInBytes of SimpleWebServer's ClientHandler.
+ *
+ * SimpleWebServer lives in the default package, which JMH benchmarks
+ * cannot be in, so the package private ClientHandler is reached through
+ * method handles that are looked up once.
+ *
+ * Run with: gradle jmh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SimpleWebServerBenchmark {
+
+  private final byte[] request = ("GET /www/index.html HTTP/1.1\r\n"
+      + "Host: localhost:9099\r\n"
+      + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+  private Object handler;
+  private MethodHandle createResponse;
+  private MethodHandle readFileInBytes;
+  private File file;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    file = new File("www/index.html");
+    if (!file.isFile()) {
+      throw new IllegalStateException("www/ is missing in " + new File("").getAbsolutePath()
+          + ", run gradle docroot first");
+    }
+    Class<?> type = Class.forName("ClientHandler");
+    Constructor<?> constructor = type.getDeclaredConstructor(Socket.class);
+    constructor.setAccessible(true);
+    // the handler only takes the streams of its socket, createResponse gets its own
+    handler = constructor.newInstance(new Socket() {
+      public InputStream getInputStream() {
+        return InputStream.nullInputStream();
+      }
+
+      public OutputStream getOutputStream() {
+        return OutputStream.nullOutputStream();
+      }
+    });
+
+    Method create = type.getDeclaredMethod("createResponse", InputStream.class);
+    create.setAccessible(true);
+    createResponse = MethodHandles.lookup().unreflect(create);
+    Method read = type.getDeclaredMethod("readFileInBytes", File.class);
+    read.setAccessible(true);
+    readFileInBytes = MethodHandles.lookup().unreflect(read);
+  }
+
+  @Benchmark
+  public byte[] createResponse() throws Throwable {
+    return (byte[]) createResponse.invoke(handler, (InputStream) new ByteArrayInputStream(request));
+  }
+
+  @Benchmark
+  public byte[] readFileInBytes() throws Throwable {
+    return (byte[]) readFileInBytes.invoke(file);
+  }
+}
@@ -0,0 +1,83 @@
+package loadgen;
+
+/**
+ * Counts latencies in microseconds in log-linear buckets: exact below 128us,
+ * above that every power of two is split into 64 buckets, so a percentile is
+ * off by less than 1.6% at any scale. Recording is a shift and an increment,
+ * every client thread has its own histogram and they are merged at the end.
+ */
+class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int HALF = SUB_BUCKETS / 2;
+  /** enough buckets for any positive long */
+  private static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF;
+
+  private final long[] counts = new long[BUCKETS];
+  private long total;
+  private long max;
+
+  void record(long micros) {
+    if (micros < 0) {
+      micros = 0;
+    }
+    counts[index(micros)]++;
+    total++;
+    if (micros > max) {
+      max = micros;
+    }
+  }
+
+  void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] += other.counts[i];
+    }
+    total += other.total;
+    max = Math.max(max, other.max);
+  }
+
+  long count() {
+    return total;
+  }
+
+  long max() {
+    return max;
+  }
+
+  /**
+   * @param percentile 0 to 100
+   * @return the latency that percentile of the values is at or below, highest value of its bucket
+   */
+  long percentile(double percentile) {
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(max, highestValue(i));
+      }
+    }
+    return max;
+  }
+
+  private static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    // value >>> shift is in [HALF, SUB_BUCKETS)
+    int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+    return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+  }
+
+  private static long highestValue(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKETS) / HALF + 1;
+    long mantissa = (index - SUB_BUCKETS) % HALF + HALF;
+    return ((mantissa + 1) << shift) - 1;
+  }
+}
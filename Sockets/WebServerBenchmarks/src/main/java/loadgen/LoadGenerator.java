@@ -0,0 +1,450 @@
+package loadgen;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * HTTP load generator for the servers of this repository.
+ *
+ * closed loop: every connection sends its next request as soon as the
+ *   answer to the last one is in. Shows the throughput the server can take,
+ *   but a slow server also slows the clients down, so latencies look better
+ *   than users would see them.
+ * open loop: requests are sent at a constant rate no matter how fast the
+ *   server answers. Each connection has its own schedule (rate/connections);
+ *   a request that cannot go out on time because the connection is still
+ *   waiting is sent late, and its latency is counted from when it should
+ *   have been sent. That corrects for coordinated omission: stalls show up
+ *   in the percentiles with the requests they held back. The uncorrected
+ *   latency (from the actual send) is reported next to it.
+ *
+ * Connections are kept alive while the server allows it; answers without
+ * a status line (SimpleWebServer) are read until the server closes.
+ * Errors are failed connects, reads and timeouts; answers with a status
+ * code of 400 or above are counted per status.
+ *
+ * Usage:
+ *   LoadGenerator <url> <closed|open> <connections> <seconds> [requests/s]
+ * System properties:
+ *   loadgen.start=fun|nio|static|simple  starts that server on the url's
+ *     port first (from ../WebServer or ../SimpleWebServer, see loadgen.dir)
+ *     and stops it at the end
+ *   loadgen.warmup=seconds  results of the first seconds are not counted (2)
+ *   loadgen.timeout=seconds  read timeout per answer (10)
+ */
+public class LoadGenerator {
+
+  public static void main(String args[]) throws Exception {
+    if (args.length < 4 || (args[1].equals("open") && args.length < 5)) {
+      System.out.println("Usage: LoadGenerator <url> <closed|open> <connections> <seconds> [requests/s for open]");
+      System.exit(1);
+    }
+    URI url = new URI(args[0]);
+    boolean open = args[1].equalsIgnoreCase("open");
+    if (!open && !args[1].equalsIgnoreCase("closed")) {
+      System.out.println("Unknown mode " + args[1] + ", expected closed or open");
+      System.exit(1);
+    }
+    int connections = Integer.parseInt(args[2]);
+    int seconds = Integer.parseInt(args[3]);
+    double rate = open ? Double.parseDouble(args[4]) : 0;
+
+    Process server = null;
+    String start = System.getProperty("loadgen.start");
+    if (start != null) {
+      server = startServer(start, url.getPort());
+    }
+    try {
+      LoadGenerator generator = new LoadGenerator(url, open, connections, rate,
+          Integer.getInteger("loadgen.warmup", 2), seconds, Integer.getInteger("loadgen.timeout", 10));
+      generator.run();
+      generator.report(System.out);
+    } finally {
+      if (server != null) {
+        server.destroy();
+        server.waitFor(5, TimeUnit.SECONDS);
+      }
+    }
+  }
+
+  /**
+   * Starts one of the servers in its own JVM with this classpath and waits
+   * until it accepts connections
+   * @param name fun (blocking loop), nio, static (httpServer) or simple
+   */
+  static Process startServer(String name, int port) throws IOException, InterruptedException {
+    String base = System.getProperty("loadgen.dir", "..");
+    List<String> command = new ArrayList<>();
+    command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    File dir;
+    switch (name) {
+      case "fun":
+      case "nio":
+        dir = new File(base, "WebServer");
+        command.add("funHttpServer.WebServer");
+        command.add(Integer.toString(port));
+        command.add(name.equals("nio") ? "nio" : "blocking");
+        break;
+      case "static":
+        dir = new File(base, "WebServer");
+        command.add("httpServer.WebServer");
+        command.add(Integer.toString(port));
+        break;
+      case "simple":
+        dir = new File(base, "SimpleWebServer");
+        command.add("SimpleWebServer");
+        command.add(Integer.toString(port));
+        command.add("pool");
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown server " + name + ", expected fun, nio, static or simple");
+    }
+    File log = new File("build/server-" + name + ".log");
+    log.getParentFile().mkdirs();
+    Process process = new ProcessBuilder(command)
+        .directory(dir)
+        .redirectErrorStream(true)
+        .redirectOutput(log)
+        .start();
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+    while (true) {
+      try (Socket probe = new Socket()) {
+        probe.connect(new InetSocketAddress("localhost", port), 1000);
+        System.out.println("Started " + name + " server (pid " + process.pid() + ", output in " + log + ")");
+        return process;
+      } catch (IOException e) {
+        if (!process.isAlive() || System.nanoTime() > deadline) {
+          process.destroy();
+          throw new IOException("Server " + name + " did not start, see " + log);
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  private final InetSocketAddress address;
+  private final byte[] request;
+  private final String requestLine;
+  private final boolean open;
+  private final int connections;
+  private final double rate;
+  private final long warmupNanos;
+  private final long durationNanos;
+  private final int timeoutMillis;
+  private final List<Client> clients = new ArrayList<>();
+
+  LoadGenerator(URI url, boolean open, int connections, double rate, int warmupSeconds, int seconds,
+      int timeoutSeconds) {
+    String host = url.getHost() == null ? "localhost" : url.getHost();
+    int port = url.getPort() < 0 ? 80 : url.getPort();
+    String target = url.getRawPath() == null || url.getRawPath().isEmpty() ? "/" : url.getRawPath();
+    if (url.getRawQuery() != null) {
+      target += "?" + url.getRawQuery();
+    }
+    this.address = new InetSocketAddress(host, port);
+    this.requestLine = "GET " + target + " HTTP/1.1";
+    this.request = (requestLine + "\r\nHost: " + host + ":" + port
+        + "\r\nConnection: keep-alive\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    this.open = open;
+    this.connections = connections;
+    this.rate = rate;
+    this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+    this.durationNanos = TimeUnit.SECONDS.toNanos(seconds);
+    this.timeoutMillis = timeoutSeconds * 1000;
+  }
+
+  /**
+   * Runs warmup and measurement on one thread per connection
+   */
+  void run() throws InterruptedException {
+    long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+    // every connection sends at rate / connections, the schedules are
+    // staggered so the requests are spread evenly over time
+    double interval = open ? 1e9 * connections / rate : 0;
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < connections; i++) {
+      Client client = new Client(start, (long) (interval * i / connections), interval);
+      clients.add(client);
+      Thread thread = new Thread(client, "loadgen-" + i);
+      thread.setDaemon(true);
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+  }
+
+  void report(PrintStream out) {
+    LatencyHistogram corrected = new LatencyHistogram();
+    LatencyHistogram uncorrected = new LatencyHistogram();
+    Map<Integer, Long> statuses = new TreeMap<>();
+    long errors = 0;
+    long late = 0;
+    for (Client client : clients) {
+      corrected.add(client.corrected);
+      uncorrected.add(client.uncorrected);
+      client.statuses.forEach((status, count) -> statuses.merge(status, count, Long::sum));
+      errors += client.errors;
+      late += client.late;
+    }
+    double seconds = durationNanos / 1e9;
+    long requests = uncorrected.count();
+
+    out.printf("%s %s, %d connections, %.0f s%s%n", requestLine, open ? "open loop" : "closed loop",
+        connections, seconds, open ? String.format(", target %.0f req/s", rate) : "");
+    out.printf("requests %d  throughput %.1f req/s  errors %d%n", requests, requests / seconds, errors);
+    if (open) {
+      out.printf("sent late %d (%.1f%%), the server could not keep up with the rate%n", late,
+          requests == 0 ? 0.0 : 100.0 * late / requests);
+    }
+    out.printf("%-22s %9s %9s %9s %9s %9s%n", "latency ms", "p50", "p90", "p99", "p99.9", "max");
+    if (open) {
+      print(out, "corrected (intended)", corrected);
+      print(out, "uncorrected (sent)", uncorrected);
+    } else {
+      print(out, "closed loop", uncorrected);
+    }
+    for (Map.Entry<Integer, Long> status : statuses.entrySet()) {
+      out.printf("status %s: %d%n", status.getKey() == 0 ? "none (read to close)" : status.getKey(),
+          status.getValue());
+    }
+  }
+
+  private static void print(PrintStream out, String name, LatencyHistogram histogram) {
+    out.printf("%-22s %9.2f %9.2f %9.2f %9.2f %9.2f%n", name,
+        histogram.percentile(50) / 1000.0, histogram.percentile(90) / 1000.0,
+        histogram.percentile(99) / 1000.0, histogram.percentile(99.9) / 1000.0, histogram.max() / 1000.0);
+  }
+
+  /**
+   * One connection, sends requests and records their latencies on its own
+   * thread, nothing is shared until the report
+   */
+  private class Client implements Runnable {
+    final LatencyHistogram corrected = new LatencyHistogram();
+    final LatencyHistogram uncorrected = new LatencyHistogram();
+    final Map<Integer, Long> statuses = new TreeMap<>();
+    long errors;
+    long late;
+
+    private final long start;
+    private final long offset;
+    private final double interval;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private final byte[] buffer = new byte[16 * 1024];
+
+    Client(long start, long offset, double interval) {
+      this.start = start;
+      this.offset = offset;
+      this.interval = interval;
+    }
+
+    public void run() {
+      long measureFrom = start + warmupNanos;
+      long end = measureFrom + durationNanos;
+      long sent = 0;
+      while (true) {
+        long intended;
+        if (open) {
+          intended = start + offset + (long) (sent * interval);
+          if (intended >= end) {
+            break;
+          }
+          long wait = intended - System.nanoTime();
+          while (wait > 0) {
+            LockSupport.parkNanos(wait);
+            wait = intended - System.nanoTime();
+          }
+        } else {
+          intended = System.nanoTime();
+          if (intended >= end) {
+            break;
+          }
+        }
+        sent++;
+
+        long sendTime = System.nanoTime();
+        int status = exchange();
+        long done = System.nanoTime();
+        if (intended < measureFrom) {
+          continue;
+        }
+        if (status < 0) {
+          errors++;
+          continue;
+        }
+        if (sendTime - intended > TimeUnit.MILLISECONDS.toNanos(1)) {
+          late++;
+        }
+        corrected.record((done - intended) / 1000);
+        uncorrected.record((done - sendTime) / 1000);
+        if (status == 0 || status >= 400) {
+          statuses.merge(status, 1L, Long::sum);
+        }
+      }
+      close();
+    }
+
+    /**
+     * Sends the request and reads the whole answer
+     * @return the status code, 0 for an answer without a status line, -1 on error
+     */
+    private int exchange() {
+      try {
+        if (socket == null) {
+          socket = new Socket();
+          socket.setTcpNoDelay(true);
+          socket.setSoTimeout(timeoutMillis);
+          socket.connect(address, timeoutMillis);
+          in = new BufferedInputStream(socket.getInputStream(), buffer.length);
+          out = socket.getOutputStream();
+        }
+        out.write(request);
+        out.flush();
+        return readResponse();
+      } catch (IOException e) {
+        close();
+        return -1;
+      }
+    }
+
+    /**
+     * Reads status line, header and body (Content-Length, chunked or until
+     * the server closes), closes the connection unless it is kept alive
+     */
+    private int readResponse() throws IOException {
+      String statusLine = readLine();
+      if (statusLine == null) {
+        throw new IOException("Connection closed before the answer");
+      }
+      if (!statusLine.startsWith("HTTP/")) {
+        // no status line, the body goes until the server closes
+        skipToEnd();
+        close();
+        return 0;
+      }
+      int status = Integer.parseInt(statusLine.substring(9, 12));
+      long length = -1;
+      boolean chunked = false;
+      boolean keepAlive = statusLine.startsWith("HTTP/1.1");
+      String line;
+      while ((line = readLine()) != null && !line.isEmpty()) {
+        int colon = line.indexOf(':');
+        if (colon < 0) {
+          continue;
+        }
+        String name = line.substring(0, colon).trim().toLowerCase();
+        String value = line.substring(colon + 1).trim();
+        if (name.equals("content-length")) {
+          length = Long.parseLong(value);
+        } else if (name.equals("transfer-encoding")) {
+          chunked = value.toLowerCase().contains("chunked");
+        } else if (name.equals("connection")) {
+          keepAlive = !value.equalsIgnoreCase("close");
+        }
+      }
+      if (line == null) {
+        throw new IOException("Connection closed inside the header");
+      }
+      boolean bodyless = status < 200 || status == 204 || status == 304;
+      if (bodyless) {
+        // nothing to read
+      } else if (chunked) {
+        readChunked();
+      } else if (length >= 0) {
+        skip(length);
+      } else {
+        skipToEnd();
+        keepAlive = false;
+      }
+      if (!keepAlive) {
+        close();
+      }
+      return status;
+    }
+
+    private void readChunked() throws IOException {
+      while (true) {
+        String size = readLine();
+        if (size == null) {
+          throw new IOException("Connection closed inside a chunked body");
+        }
+        int semicolon = size.indexOf(';');
+        long length = Long.parseLong((semicolon < 0 ? size : size.substring(0, semicolon)).trim(), 16);
+        if (length == 0) {
+          // trailer fields up to the empty line
+          String line;
+          while ((line = readLine()) != null && !line.isEmpty()) {
+          }
+          return;
+        }
+        skip(length + 2);
+      }
+    }
+
+    private void skip(long count) throws IOException {
+      while (count > 0) {
+        int n = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+        if (n < 0) {
+          throw new IOException("Connection closed inside the body");
+        }
+        count -= n;
+      }
+    }
+
+    private void skipToEnd() throws IOException {
+      while (in.read(buffer) >= 0) {
+      }
+    }
+
+    /**
+     * @return one header line without CRLF, null if the connection closed first
+     */
+    private String readLine() throws IOException {
+      StringBuilder line = new StringBuilder(64);
+      int c;
+      while ((c = in.read()) >= 0) {
+        if (c == '\n') {
+          int length = line.length();
+          if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+          }
+          return line.toString();
+        }
+        line.append((char) c);
+      }
+      return line.length() == 0 ? null : line.toString();
+    }
+
+    private void close() {
+      if (socket != null) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // nothing left to do with it
+        }
+      }
+      socket = null;
+    }
+  }
+}